@@ -0,0 +1,39 @@
+package gr.iti.mklab.sfc.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the item pipeline.
+ *
+ * Every benchmark reports throughput and the latency distribution (percentiles of the
+ * SampleTime mode), and the GC profiler adds the bytes allocated per operation
+ * (gc.alloc.rate.norm). Results are also written to benchmarks.json, to compare runs.
+ *
+ * Usage:
+ * 	java -jar target/benchmarks.jar [JMH options] [benchmark regexp]
+ *
+ * 	e.g. java -Dprofiles=../src/main/resources/profiles.sm -jar target/benchmarks.jar Filter
+ *
+ */
+public class BenchmarkRunner {
+	
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		
+		Options options = new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result("benchmarks.json")
+				.build();
+		
+		new Runner(options).run();
+	}
+}
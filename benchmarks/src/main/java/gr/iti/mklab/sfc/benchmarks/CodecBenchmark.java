@@ -0,0 +1,92 @@
+package gr.iti.mklab.sfc.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.sfc.storages.codecs.BinaryItemCodec.Compression;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodec;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodecs;
+
+/**
+ * Encoding and decoding of items by the codecs of the storages. The encode benchmark counts
+ * the bytes it produces, reported in throughput mode next to its operations: their ratio is the
+ * average size of the items encoded by each codec.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	
+	@Param({"json", "java", "binary", "binary-deflate", "binary-lz4"})
+	public String codec;
+	
+	private ItemCodec itemCodec;
+	
+	private List<Item> items;
+	private byte[][] encoded;
+	private int index = 0;
+	
+	/**
+	 * Bytes of the encoded items
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class EncodedBytes {
+		
+		public long bytes;
+		
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		String[] name = codec.split("-");
+		itemCodec = ItemCodecs.create(name[0], Compression.valueOf(name.length > 1 ? name[1].toUpperCase() : "NONE"));
+		
+		items = Fixtures.items(1024, 42L);
+		encoded = new byte[items.size()][];
+		for(int i = 0; i < items.size(); i++) {
+			encoded[i] = itemCodec.encode(items.get(i));
+		}
+	}
+	
+	@Benchmark
+	public byte[] encode(EncodedBytes counters) throws IOException {
+		Item item = items.get(index);
+		index = (index + 1) & 1023;
+		
+		byte[] data = itemCodec.encode(item);
+		counters.bytes += data.length;
+		return data;
+	}
+	
+	@Benchmark
+	public Item decode() throws IOException {
+		byte[] data = encoded[index];
+		index = (index + 1) & 1023;
+		return itemCodec.decode(data, Item.class);
+	}
+}
@@ -0,0 +1,88 @@
+package gr.iti.mklab.sfc.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.filters.ItemFilter;
+import gr.iti.mklab.sfc.filters.LanguageItemFilter;
+import gr.iti.mklab.sfc.filters.LengthItemFilter;
+import gr.iti.mklab.sfc.filters.RelevantNgramsFilter;
+import gr.iti.mklab.sfc.filters.SwearItemFilter;
+import gr.iti.mklab.sfc.filters.TagsItemFilter;
+import gr.iti.mklab.sfc.filters.TokensItemFilter;
+import gr.iti.mklab.sfc.filters.UrlItemFilter;
+
+/**
+ * Cost of a single accept call of each filter, with the default configuration of the filter.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+	
+	@Param({"length", "language", "relevantNgrams", "swear", "tags", "tokens", "url"})
+	public String filter;
+	
+	private ItemFilter itemFilter;
+	
+	private List<Item> items;
+	private int index = 0;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		items = Fixtures.items(1024, 42L);
+		
+		Configuration configuration = new Configuration();
+		switch(filter) {
+			case "length":
+				itemFilter = new LengthItemFilter(configuration);
+				break;
+			case "language":
+				itemFilter = new LanguageItemFilter(configuration);
+				break;
+			case "relevantNgrams":
+				itemFilter = new RelevantNgramsFilter(Fixtures.relevantNgramsConfiguration());
+				break;
+			case "swear":
+				itemFilter = new SwearItemFilter(configuration);
+				break;
+			case "tags":
+				itemFilter = new TagsItemFilter(configuration);
+				break;
+			case "tokens":
+				itemFilter = new TokensItemFilter(configuration);
+				break;
+			case "url":
+				itemFilter = new UrlItemFilter(configuration);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown filter: " + filter);
+		}
+	}
+	
+	@Benchmark
+	public boolean accept() {
+		Item item = items.get(index);
+		index = (index + 1) & 1023;
+		return itemFilter.accept(item);
+	}
+}
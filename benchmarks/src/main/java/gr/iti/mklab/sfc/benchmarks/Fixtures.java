@@ -0,0 +1,175 @@
+package gr.iti.mklab.sfc.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import gr.iti.mklab.framework.abstractions.socialmedia.items.TwitterItem;
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+
+/**
+ * Items used by the benchmarks.
+ *
+ * Items are created the same way the Twitter subscriber creates them: statuses in the
+ * JSON format of the streaming API are parsed by twitter4j and wrapped in a {@link TwitterItem}.
+ * Texts are mixed so that every filter both accepts and rejects some of them: short texts,
+ * texts with many hashtags or links, non English and offensive texts, and retweets.
+ *
+ */
+public class Fixtures {
+	
+	private static final String[] TEXTS = {
+		"Breaking: strong earthquake hits the coast of Greece, no damage reported so far http://t.co/aB3dE5fG7h",
+		"Thousands of people gathered in Syntagma square tonight to protest against the new austerity measures #greece #protest",
+		"Just watched the game, what a finish! @olympiacos deserved the win #football #superleague",
+		"lol",
+		"RT @BBCBreaking: Heavy rain and flooding expected across the north of England this weekend http://t.co/Xy12Ab34Cd",
+		"New paper on near-duplicate detection of tweets with MinHash signatures http://t.co/Qw56Er78Ty http://t.co/Zx90Cv12Bn",
+		"#news #world #breaking #live #update #today #now check this out",
+		"Σεισμός 5,2 Ρίχτερ στην Κρήτη, αισθητός και στην Αθήνα",
+		"Manifestation à Paris contre la réforme des retraites, la police estime à 20 000 le nombre de manifestants",
+		"what the fuck is going on with the trains today, third delay this week",
+		"I'm at the airport and it's raining again... don't even ask what's next",
+		"@john @mary @nick @anna @george see you all at the conference tomorrow",
+		"Big data meetup tonight: stream processing, storage engines and a talk on the LMAX disruptor http://t.co/Lm34No56Pq #bigdata",
+		"Die Bundesregierung hat heute neue Maßnahmen gegen den Klimawandel beschlossen",
+		"Great thread on how to benchmark Java code properly, warmup matters more than you think #java #jmh",
+		"ok"
+	};
+	
+	private static final String[] USERS = {"manosetro", "papadop", "mklab_iti", "breaking_news", "sports_fan", "researcher"};
+	
+	private static final String TWEET = "{\"created_at\":\"Mon Oct 12 10:%02d:%02d +0000 2015\",\"id\":%d,\"id_str\":\"%d\","
+			+ "\"text\":%s,\"source\":\"web\",\"truncated\":false,\"in_reply_to_status_id\":null,\"in_reply_to_user_id\":null,"
+			+ "\"user\":{\"id\":%d,\"id_str\":\"%d\",\"name\":\"%s\",\"screen_name\":\"%s\",\"location\":\"Thessaloniki, Greece\","
+			+ "\"description\":\"Benchmark user\",\"followers_count\":%d,\"friends_count\":%d,\"listed_count\":3,"
+			+ "\"created_at\":\"Wed Jan 05 12:00:00 +0000 2011\",\"favourites_count\":12,\"statuses_count\":%d,\"verified\":false,"
+			+ "\"lang\":\"en\",\"profile_image_url\":\"http://pbs.twimg.com/profile_images/%d/normal.jpg\"},"
+			+ "\"geo\":null,\"coordinates\":null,\"place\":null,\"retweet_count\":%d,\"favorite_count\":%d,"
+			+ "\"entities\":{\"hashtags\":[%s],\"urls\":[%s],\"user_mentions\":[%s],\"symbols\":[]},"
+			+ "\"favorited\":false,\"retweeted\":false,\"possibly_sensitive\":false,\"filter_level\":\"low\",\"lang\":\"%s\","
+			+ "\"timestamp_ms\":\"%d\"}";
+	
+	/**
+	 * @return count items, deterministic for the given seed
+	 */
+	public static List<Item> items(int count, long seed) {
+		Random random = new Random(seed);
+		List<Item> items = new ArrayList<Item>(count);
+		for(int i = 0; i < count; i++) {
+			String text = TEXTS[random.nextInt(TEXTS.length)];
+			items.add(item(1000000000L + i, text, USERS[random.nextInt(USERS.length)], random));
+		}
+		return items;
+	}
+	
+	/**
+	 * @return the titles of count items, deterministic for the given seed
+	 */
+	public static List<String> texts(int count, long seed) {
+		Random random = new Random(seed);
+		List<String> texts = new ArrayList<String>(count);
+		for(int i = 0; i < count; i++) {
+			texts.add(TEXTS[random.nextInt(TEXTS.length)]);
+		}
+		return texts;
+	}
+	
+	private static Item item(long id, String text, String user, Random random) {
+		String json = String.format(TWEET, random.nextInt(60), random.nextInt(60), id, id, quote(text),
+				user.hashCode() & 0x7fffffff, user.hashCode() & 0x7fffffff, user, user,
+				random.nextInt(100000), random.nextInt(2000), random.nextInt(50000), id,
+				random.nextInt(100), random.nextInt(100),
+				entities(text, '#', "{\"text\":\"%s\",\"indices\":[%d,%d]}"),
+				entities(text, 'h', "{\"url\":\"%s\",\"expanded_url\":\"%1$s\",\"display_url\":\"%1$s\",\"indices\":[%d,%d]}"),
+				entities(text, '@', "{\"screen_name\":\"%s\",\"name\":\"%1$s\",\"id\":1,\"id_str\":\"1\",\"indices\":[%d,%d]}"),
+				language(text), 1444644000000L + id);
+		
+		try {
+			Status status = TwitterObjectFactory.createStatus(json);
+			return new TwitterItem(status);
+		} catch (TwitterException e) {
+			throw new IllegalStateException("Invalid fixture: " + json, e);
+		}
+	}
+	
+	/**
+	 * Builds the entities of a kind (hashtags, urls or mentions) found in the text.
+	 */
+	private static String entities(String text, char prefix, String format) {
+		StringBuffer sb = new StringBuffer();
+		int start = 0;
+		for(String token : text.split(" ")) {
+			int index = text.indexOf(token, start);
+			start = index + token.length();
+			
+			boolean matches = (prefix == 'h') ? token.startsWith("http://") : token.length() > 1 && token.charAt(0) == prefix;
+			if(!matches) {
+				continue;
+			}
+			
+			String value = (prefix == 'h') ? token : token.substring(1).replace(":", "");
+			if(sb.length() > 0) {
+				sb.append(",");
+			}
+			sb.append(String.format(format, value, index, index + token.length()));
+		}
+		return sb.toString();
+	}
+	
+	private static String language(String text) {
+		if(text.startsWith("Σεισμός")) {
+			return "el";
+		}
+		else if(text.startsWith("Manifestation")) {
+			return "fr";
+		}
+		else if(text.startsWith("Die ")) {
+			return "de";
+		}
+		return "en";
+	}
+	
+	private static String quote(String text) {
+		return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+	
+	/**
+	 * Writes the n-grams used by the relevant n-grams filter to a temporary file.
+	 */
+	public static Configuration relevantNgramsConfiguration() throws IOException {
+		File file = File.createTempFile("relevant-ngrams", ".txt");
+		file.deleteOnExit();
+		
+		PrintWriter writer = new PrintWriter(file, "UTF-8");
+		// tokens of an n-gram are tab separated
+		try {
+			for(String ngram : new String[] {"earthquake", "flooding", "protest", "austerity\tmeasures", "stream\tprocessing"}) {
+				writer.println(ngram);
+			}
+		}
+		finally {
+			writer.close();
+		}
+		
+		Configuration configuration = new Configuration();
+		configuration.setParameter("RelevantTermsFilename", file.getAbsolutePath());
+		return configuration;
+	}
+	
+	/**
+	 * The directory of the language profiles, given by the profiles system property.
+	 * Defaults to the profiles of the stream manager, when run from the benchmarks directory.
+	 */
+	public static String profileDirectory() {
+		return System.getProperty("profiles", "../src/main/resources/profiles.sm");
+	}
+}
@@ -0,0 +1,76 @@
+package gr.iti.mklab.sfc.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.processors.LanguageDetector;
+
+/**
+ * Language detection of items without a language.
+ *
+ * Language profiles can be loaded only once per JVM, so the detector is shared by all
+ * the benchmark threads. Profiles are read from the directory given by -Dprofiles.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LanguageDetectorBenchmark {
+	
+	private LanguageDetector detector;
+	
+	/**
+	 * Items of a benchmark thread, as the detector sets their language
+	 */
+	@State(Scope.Thread)
+	public static class Items {
+		
+		private List<Item> items;
+		private int index = 0;
+		
+		@Setup(Level.Trial)
+		public void setup() {
+			items = Fixtures.items(1024, 42L);
+		}
+		
+		Item next() {
+			Item item = items.get(index);
+			index = (index + 1) & 1023;
+			return item;
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		Configuration configuration = new Configuration();
+		configuration.setParameter("profileDirectory", Fixtures.profileDirectory());
+		detector = new LanguageDetector(configuration);
+	}
+	
+	@Benchmark
+	public String detect(Items items) {
+		Item item = items.next();
+		
+		// the detector skips items with a language
+		item.setLanguage(null);
+		detector.process(item);
+		return item.getLanguage();
+	}
+}
@@ -0,0 +1,75 @@
+package gr.iti.mklab.sfc.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gr.iti.mklab.sfc.utils.MinHash;
+
+/**
+ * MinHash calculation and comparison, with the sizes used by the MinHash extractor
+ * (32 hashes for the minhash and 128 for the signature, 1 bit each).
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MinHashBenchmark {
+	
+	@Param({"32", "128"})
+	public int hashes;
+	
+	private MinHash minHash;
+	
+	private List<String> texts;
+	private byte[][] hashed;
+	private int index = 0;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		minHash = MinHash.getInstance(1, hashes);
+		
+		texts = Fixtures.texts(1024, 42L);
+		hashed = new byte[texts.size()][];
+		for(int i = 0; i < texts.size(); i++) {
+			hashed[i] = minHash.calculate(texts.get(i).toLowerCase());
+		}
+	}
+	
+	@Benchmark
+	public byte[] calculate() throws IOException {
+		String text = texts.get(index);
+		index = (index + 1) & 1023;
+		return minHash.calculate(text);
+	}
+	
+	@Benchmark
+	public float compare() {
+		byte[] data1 = hashed[index];
+		index = (index + 1) & 1023;
+		return MinHash.compare(data1, hashed[index]);
+	}
+	
+	@Benchmark
+	public String toBinaryString() {
+		byte[] data = hashed[index];
+		index = (index + 1) & 1023;
+		return MinHash.toBinaryString(data);
+	}
+}
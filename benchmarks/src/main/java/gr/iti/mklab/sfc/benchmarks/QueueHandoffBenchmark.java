@@ -0,0 +1,141 @@
+package gr.iti.mklab.sfc.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.sfc.management.ItemQueue;
+
+/**
+ * Handoff of items from the producers (stream subscribers and retrievers calling the
+ * storage handler) to the consumers, through the ingest queue of the storage handler.
+ *
+ * Each group runs 1, 4 or 16 producers against 4 consumers. Producers use the SHED policy
+ * with the high watermark at full capacity, so that they never block: a blocked producer
+ * would never return once the consumers stop at the end of an iteration. Items that do not
+ * fit are counted in the shed counter instead.
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueHandoffBenchmark {
+	
+	@State(Scope.Group)
+	public static class Queue {
+		
+		@Param({"1000", "100000"})
+		public int capacity;
+		
+		ItemQueue queue;
+		List<Item> items;
+		
+		@Setup(Level.Iteration)
+		public void setup() throws IOException {
+			queue = new ItemQueue(capacity, 1.0f, 0.5f, ItemQueue.OverflowPolicy.SHED, null);
+			items = Fixtures.items(1024, 42L);
+		}
+		
+		@TearDown(Level.Iteration)
+		public void tearDown() {
+			queue.close();
+		}
+	}
+	
+	/**
+	 * Items handed to the queue and items shed, per producer
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class ProducerCounters {
+		
+		public long handed;
+		public long shed;
+		
+		int index = 0;
+		
+		@Setup(Level.Iteration)
+		public void reset() {
+			handed = 0;
+			shed = 0;
+		}
+	}
+	
+	private static void produce(Queue queue, ProducerCounters counters) throws InterruptedException {
+		Item item = queue.items.get(counters.index);
+		counters.index = (counters.index + 1) & 1023;
+		
+		if(queue.queue.offer(item)) {
+			counters.handed++;
+		}
+		else {
+			counters.shed++;
+		}
+	}
+	
+	private static Item consume(Queue queue) {
+		return queue.queue.poll();
+	}
+	
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(1)
+	public void produce1(Queue queue, ProducerCounters counters) throws InterruptedException {
+		produce(queue, counters);
+	}
+	
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(4)
+	public Item consume1(Queue queue) {
+		return consume(queue);
+	}
+	
+	@Benchmark
+	@Group("producers4")
+	@GroupThreads(4)
+	public void produce4(Queue queue, ProducerCounters counters) throws InterruptedException {
+		produce(queue, counters);
+	}
+	
+	@Benchmark
+	@Group("producers4")
+	@GroupThreads(4)
+	public Item consume4(Queue queue) {
+		return consume(queue);
+	}
+	
+	@Benchmark
+	@Group("producers16")
+	@GroupThreads(16)
+	public void produce16(Queue queue, ProducerCounters counters) throws InterruptedException {
+		produce(queue, counters);
+	}
+	
+	@Benchmark
+	@Group("producers16")
+	@GroupThreads(4)
+	public Item consume16(Queue queue) {
+		return consume(queue);
+	}
+}
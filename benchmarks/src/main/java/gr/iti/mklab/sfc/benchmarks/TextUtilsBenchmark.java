@@ -0,0 +1,73 @@
+package gr.iti.mklab.sfc.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import gr.iti.mklab.sfc.utils.TextUtils;
+
+/**
+ * Text preparation steps of the MinHash extractor.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextUtilsBenchmark {
+	
+	private List<String> texts;
+	private int index = 0;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		texts = Fixtures.texts(1024, 42L);
+	}
+	
+	private String next() {
+		String text = texts.get(index);
+		index = (index + 1) & 1023;
+		return text;
+	}
+	
+	@Benchmark
+	public String clean() {
+		return TextUtils.clean(next());
+	}
+	
+	@Benchmark
+	public String normalize() {
+		return TextUtils.normalize(next().toLowerCase());
+	}
+	
+	@Benchmark
+	public List<String> tokenize() {
+		return TextUtils.tokenize(next());
+	}
+	
+	/**
+	 * All the steps, as run by the MinHash extractor
+	 */
+	@Benchmark
+	public List<String> pipeline() {
+		String text = TextUtils.clean(next());
+		text = TextUtils.normalize(text.toLowerCase());
+		
+		List<String> tokens = TextUtils.tokenize(text);
+		TextUtils.cleanTokens(tokens);
+		return tokens;
+	}
+}
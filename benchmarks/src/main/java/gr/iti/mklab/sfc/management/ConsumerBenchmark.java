@@ -0,0 +1,148 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.benchmarks.Fixtures;
+import gr.iti.mklab.sfc.filters.ItemFilter;
+import gr.iti.mklab.sfc.filters.LanguageItemFilter;
+import gr.iti.mklab.sfc.filters.LengthItemFilter;
+import gr.iti.mklab.sfc.filters.SwearItemFilter;
+import gr.iti.mklab.sfc.filters.TagsItemFilter;
+import gr.iti.mklab.sfc.filters.UrlItemFilter;
+import gr.iti.mklab.sfc.processors.MinHashExtractor;
+import gr.iti.mklab.sfc.processors.Processor;
+import gr.iti.mklab.sfc.storages.BatchStorage;
+import gr.iti.mklab.sfc.storages.Storage;
+
+/**
+ * A batch of items through the filters, processors and storages of a consumer.
+ *
+ * The consumer runs the filters and the MinHash extractor with their default configuration
+ * and stores into a storage that only consumes the items, so the benchmark measures the
+ * pipeline itself. It lives in the package of the consumer to call its batch processing directly.
+ * Scores are per batch.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumerBenchmark {
+	
+	@Param({"1", "100"})
+	public int batchSize;
+	
+	private Consumer consumer;
+	private BlackholeStorage storage;
+	
+	private List<Item> items;
+	private List<Item> batch;
+	private int index = 0;
+	
+	/**
+	 * Consumes the stored items without keeping them
+	 */
+	private static class BlackholeStorage implements BatchStorage {
+		
+		private Blackhole blackhole;
+		
+		@Override
+		public boolean open() {
+			return true;
+		}
+		
+		@Override
+		public void store(Item item) throws IOException {
+			blackhole.consume(item);
+		}
+		
+		@Override
+		public void store(List<Item> items) throws IOException {
+			for(Item item : items) {
+				blackhole.consume(item);
+			}
+		}
+		
+		@Override
+		public void store(ItemState itemState) {
+			blackhole.consume(itemState);
+		}
+		
+		@Override
+		public boolean delete(String id) throws IOException {
+			return true;
+		}
+		
+		@Override
+		public boolean checkStatus() {
+			return true;
+		}
+		
+		@Override
+		public void close() {
+		
+		}
+		
+		@Override
+		public String getStorageName() {
+			return "Blackhole";
+		}
+	}
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		Configuration configuration = new Configuration();
+		
+		List<ItemFilter> filters = Arrays.<ItemFilter>asList(new LengthItemFilter(configuration),
+				new LanguageItemFilter(configuration), new SwearItemFilter(configuration),
+				new TagsItemFilter(configuration), new UrlItemFilter(configuration));
+		
+		List<Processor> processors = Arrays.<Processor>asList(new MinHashExtractor(configuration));
+		
+		storage = new BlackholeStorage();
+		List<Storage> storages = new ArrayList<Storage>();
+		storages.add(storage);
+		
+		// the consumer is not started, batches are passed to it by the benchmark
+		consumer = new Consumer(null, storages, filters, processors, batchSize, 0);
+		
+		items = Fixtures.items(1024, 42L);
+		batch = new ArrayList<Item>(batchSize);
+	}
+	
+	@Benchmark
+	public void process(Blackhole blackhole) {
+		storage.blackhole = blackhole;
+		
+		batch.clear();
+		for(int i = 0; i < batchSize; i++) {
+			batch.add(items.get(index));
+			index = (index + 1) & 1023;
+		}
+		
+		consumer.process(batch);
+	}
+}
@@ -17,10 +17,12 @@ import gr.iti.mklab.framework.common.domain.config.Configuration;
 import gr.iti.mklab.framework.common.domain.feeds.Feed;
 import gr.iti.mklab.sfc.input.CollectionsManager;
 import gr.iti.mklab.sfc.management.StorageHandler;
+import gr.iti.mklab.sfc.metrics.Metrics;
 import gr.iti.mklab.sfc.streams.Stream;
 import gr.iti.mklab.sfc.streams.StreamException;
 import gr.iti.mklab.sfc.streams.StreamsManagerConfiguration;
 import gr.iti.mklab.sfc.streams.monitors.StreamsMonitor;
+import gr.iti.mklab.sfc.utils.Threads;
 
 /**
  * Class for retrieving content according to  keywords - user - location feeds from social networks.
@@ -58,6 +60,9 @@ public class FeedsManager implements Runnable {
 		//Set the configuration files
 		this.config = config;
 		
+		//Set the execution mode of consumers, fetch tasks and subscribers
+		Threads.configure(config.getParameter(Threads.EXECUTION_MODE, "platform"));
+		
 		//Set up the Streams
 		initStreams();
 	}
@@ -86,6 +91,10 @@ public class FeedsManager implements Runnable {
 				throw new StreamException("There are no streams to open.");
 			}
 			
+			//Export the metrics of the pipeline
+			Metrics.start(Integer.parseInt(config.getParameter(Metrics.PORT, "-1")), 
+					Boolean.parseBoolean(config.getParameter(Metrics.JMX, "true")));
+			
 			//Start stream handler 
 			storageHandler = new StorageHandler(config);
 			storageHandler.start();	
@@ -134,6 +143,8 @@ public class FeedsManager implements Runnable {
 				storageHandler.stop();
 			}
 			
+			Metrics.stop();
+			
 			state = ManagerState.CLOSE;
 		}
 		catch(Exception e) {
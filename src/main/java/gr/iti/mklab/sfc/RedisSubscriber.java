@@ -8,6 +8,7 @@ import org.apache.logging.log4j.Logger;
 import org.mongodb.morphia.Morphia;
 
 import gr.iti.mklab.framework.common.domain.collections.Collection;
+import gr.iti.mklab.sfc.utils.Threads;
 
 import com.mongodb.DBObject;
 import com.mongodb.util.JSON;
@@ -156,8 +157,7 @@ public class RedisSubscriber extends JedisPubSub implements Runnable {
 		public void start() {
 			stop = false;
 			
-			Thread thread = new Thread(this);
-			thread.start();
+			Threads.execute(this, "RedisSubscriber");
 		}
 		
 		public void close() {
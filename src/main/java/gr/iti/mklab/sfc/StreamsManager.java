@@ -24,12 +24,14 @@ import gr.iti.mklab.framework.common.domain.config.Configuration;
 import gr.iti.mklab.framework.common.domain.feeds.Feed;
 import gr.iti.mklab.sfc.input.CollectionsManager;
 import gr.iti.mklab.sfc.management.StorageHandler;
+import gr.iti.mklab.sfc.metrics.Metrics;
 import gr.iti.mklab.sfc.streams.Stream;
 import gr.iti.mklab.sfc.streams.StreamException;
 import gr.iti.mklab.sfc.streams.StreamsManagerConfiguration;
 import gr.iti.mklab.sfc.streams.monitors.ItemsMonitor;
 import gr.iti.mklab.sfc.streams.monitors.StreamsMonitor;
 import gr.iti.mklab.sfc.subscribers.Subscriber;
+import gr.iti.mklab.sfc.utils.Threads;
 
 /**
  * Class for retrieving content according to  keywords - user - location feeds from social networks.
@@ -82,6 +84,9 @@ public class StreamsManager implements Runnable {
 		//Set the configuration files
 		this.config = config;
 		
+		//Set the execution mode of consumers, fetch tasks and subscribers
+		Threads.configure(config.getParameter(Threads.EXECUTION_MODE, "platform"));
+		
 		//Set up the Subscribers
 		initSubscribers();
 		
@@ -109,6 +114,10 @@ public class StreamsManager implements Runnable {
 			
 			redisHost = inputConfig.getParameter("redis.host", "127.0.0.1");
 			
+			//Export the metrics of the pipeline
+			Metrics.start(Integer.parseInt(config.getParameter(Metrics.PORT, "-1")), 
+					Boolean.parseBoolean(config.getParameter(Metrics.JMX, "true")));
+			
 			//Start stream handler 
 			storageHandler = new StorageHandler(config);
 			storageHandler.start();	
@@ -187,6 +196,8 @@ public class StreamsManager implements Runnable {
 				storageHandler.stop();
 			}
 			
+			Metrics.stop();
+			
 			jedisPubSub.close();
 			
 			state = ManagerState.CLOSE;
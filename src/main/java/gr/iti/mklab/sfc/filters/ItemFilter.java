@@ -1,5 +1,7 @@
 package gr.iti.mklab.sfc.filters;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
 
@@ -7,8 +9,8 @@ public abstract class ItemFilter {
 	
 	protected Configuration configuration;
 
-	private int discarded = 0;
-	private int accepted = 0;
+	private AtomicLong discarded = new AtomicLong(0L);
+	private AtomicLong accepted = new AtomicLong(0L);
 
 	public ItemFilter(Configuration configuration) {
 		this.configuration = configuration;
@@ -19,19 +21,15 @@ public abstract class ItemFilter {
 	public abstract String name();
 	
 	public String status() {
-		return name() + ": " + discarded + " items discarded, " + accepted + " items accepted.";
+		return name() + ": " + discarded.get() + " items discarded, " + accepted.get() + " items accepted.";
 	}
 	
 	public void incrementAccepted() {
-		synchronized (this) {
-	    	accepted++;
-	    }
+		accepted.incrementAndGet();
 	}
 	
 	public void incrementDiscarded() {
-		synchronized (this) {
-			discarded++;
-	    }
+		discarded.incrementAndGet();
 	}
 	
 }
@@ -2,6 +2,8 @@ package gr.iti.mklab.sfc.filters;
 
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -9,6 +11,7 @@ import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 
 
+@ThreadSafety(Policy.THREAD_SAFE)
 public class LanguageItemFilter extends ItemFilter {
 
 	private Set<String> languages = new HashSet<String>();
@@ -2,9 +2,12 @@ package gr.iti.mklab.sfc.filters;
 
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
 import org.apache.logging.log4j.LogManager;
 
+@ThreadSafety(Policy.THREAD_SAFE)
 public class LengthItemFilter extends ItemFilter {
 
 	private Integer minTextLenth = 15;
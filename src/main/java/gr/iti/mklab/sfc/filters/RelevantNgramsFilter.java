@@ -2,6 +2,8 @@ package gr.iti.mklab.sfc.filters;
 
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -11,6 +13,7 @@ import java.util.List;
 
 import org.apache.commons.io.IOUtils;
 
+@ThreadSafety(Policy.THREAD_SAFE)
 public class RelevantNgramsFilter  extends ItemFilter {
 
 	private List<String[]> ngrams = new ArrayList<String[]>();
@@ -14,7 +14,10 @@ import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
+@ThreadSafety(Policy.THREAD_SAFE)
 public class SwearItemFilter extends ItemFilter {
 
 	private Set<String> swearwords = new HashSet<String>();
@@ -2,6 +2,8 @@ package gr.iti.mklab.sfc.filters;
 
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
 import org.apache.logging.log4j.LogManager;
 
@@ -12,6 +14,7 @@ import org.apache.logging.log4j.LogManager;
  * This filter discard items that have many hashtags as possible spam.
  * 	
  */
+@ThreadSafety(Policy.THREAD_SAFE)
 public class TagsItemFilter extends ItemFilter {
 
 	private int maxTags = 4;
@@ -25,7 +28,7 @@ public class TagsItemFilter extends ItemFilter {
 	}
 	
 	@Override
-	public synchronized boolean accept(Item item) {
+	public boolean accept(Item item) {
 		if(item == null) {
 			incrementDiscarded();
 			return false;
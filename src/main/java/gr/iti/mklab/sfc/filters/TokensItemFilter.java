@@ -2,6 +2,8 @@ package gr.iti.mklab.sfc.filters;
 
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
 import java.io.Reader;
 import java.io.StringReader;
@@ -13,6 +15,7 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.WhitespaceTokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 
+@ThreadSafety(Policy.THREAD_SAFE)
 public class TokensItemFilter  extends ItemFilter {
 
 	private int maxTokens;
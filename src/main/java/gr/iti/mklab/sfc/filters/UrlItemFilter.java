@@ -4,6 +4,8 @@ import org.apache.logging.log4j.LogManager;
 
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
 /**
  * 
@@ -12,6 +14,7 @@ import gr.iti.mklab.framework.common.domain.config.Configuration;
  * This filter discard items that have many embedded URLs as possible spam.
  * 	
  */
+@ThreadSafety(Policy.THREAD_SAFE)
 public class UrlItemFilter extends ItemFilter {
 
 	private int maxUrls = 4;
@@ -25,7 +28,7 @@ public class UrlItemFilter extends ItemFilter {
 	}
 	
 	@Override
-	public synchronized boolean accept(Item item) {
+	public boolean accept(Item item) {
 		if(item == null) {
 			incrementDiscarded();
 			return false;
@@ -0,0 +1,209 @@
+package gr.iti.mklab.sfc.management;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Grows and shrinks the consumers of the {@link StorageHandler} between a minimum and a maximum.
+ *
+ * Every interval the pool looks at the depth of the ingest queue, at how busy the consumers
+ * have been and at how their time splits between filtering, processing and storing, and at
+ * the CPU load of the machine:
+ * 	- consumers busy and queue filling up: add consumers, unless the CPU is saturated by
+ * 	  CPU-bound stages (filters, processors such as NER), where more threads do not help
+ * 	- consumers mostly idle and queue drained: retire a consumer
+ *
+ * The last decision and its inputs are reported in the status of the storage handler.
+ *
+ */
+public class AdaptiveConsumerPool implements Runnable {
+	
+	private Logger logger = LogManager.getLogger(AdaptiveConsumerPool.class);
+	
+	private static final float BUSY_HIGH = 0.8f;
+	private static final float BUSY_LOW = 0.3f;
+	private static final float CPU_SATURATED = 0.9f;
+	
+	private StorageHandler handler;
+	private ItemQueue queue;
+	
+	private List<Consumer> consumers = new CopyOnWriteArrayList<Consumer>();
+	
+	private int min;
+	private int max;
+	private long interval;
+	
+	private OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+	private int cores = Runtime.getRuntime().availableProcessors();
+	
+	// totals of the previous round
+	private long lastTime;
+	private long lastItems = 0L;
+	private long[] lastStageTimes = new long[3];
+	private int lastQueueSize = 0;
+	
+	private volatile String lastDecision = "none";
+	private volatile boolean running = true;
+	
+	private Thread thread;
+	
+	public AdaptiveConsumerPool(StorageHandler handler, ItemQueue queue, int min, int max, long interval) {
+		this.handler = handler;
+		this.queue = queue;
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		this.interval = interval;
+	}
+	
+	public void start() {
+		for(int i = 0; i < min; i++) {
+			addConsumer();
+		}
+		lastTime = System.nanoTime();
+		
+		if(min < max) {
+			thread = new Thread(this);
+			thread.setName("AdaptiveConsumerPool");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		logger.info(consumers.size() + " consumers initialized. Pool bounds: [" + min + ", " + max + "]");
+	}
+	
+	private void addConsumer() {
+		Consumer consumer = handler.newConsumer();
+		consumers.add(consumer);
+		consumer.start();
+	}
+	
+	private void retireConsumer() {
+		Consumer consumer = consumers.remove(consumers.size() - 1);
+		consumer.retire();
+		handler.releaseConsumer(consumer);
+	}
+	
+	public void run() {
+		while(running) {
+			try {
+				Thread.sleep(interval);
+				adapt();
+			}
+			catch(InterruptedException e) {
+				break;
+			}
+			catch(Exception e) {
+				logger.error("Consumer pool adaptation failed.", e);
+			}
+		}
+	}
+	
+	private void adapt() {
+		long now = System.nanoTime();
+		long elapsed = now - lastTime;
+		
+		long items = 0L;
+		long[] stageTimes = new long[3];
+		for(Consumer consumer : consumers) {
+			items += consumer.getConsumedItems();
+			long[] times = consumer.getStageTimes();
+			for(int i = 0; i < 3; i++) {
+				stageTimes[i] += times[i];
+			}
+		}
+		
+		long consumed = Math.max(0L, items - lastItems);
+		long[] deltas = new long[3];
+		long busy = 0L;
+		for(int i = 0; i < 3; i++) {
+			deltas[i] = Math.max(0L, stageTimes[i] - lastStageTimes[i]);
+			busy += deltas[i];
+		}
+		
+		int size = consumers.size();
+		float busyRatio = (float) busy / (float) (elapsed * size);
+		float cpuBoundShare = busy == 0 ? 0 : (float) (deltas[0] + deltas[1]) / (float) busy;
+		
+		double loadAverage = os.getSystemLoadAverage();
+		float cpu = loadAverage < 0 ? 0 : (float) (loadAverage / cores);
+		
+		int queueSize = queue.size();
+		boolean filling = queueSize > lastQueueSize;
+		float queueLoad = queue.getLoad();
+		
+		String inputs = "queue " + Math.round(100 * queueLoad) + "%" + (filling ? " and filling" : "")
+				+ ", busy " + Math.round(100 * busyRatio) + "%, cpu " + Math.round(100 * cpu) + "%, latency per item "
+				+ "(filter/process/store): " + perItem(deltas[0], consumed) + "/" + perItem(deltas[1], consumed)
+				+ "/" + perItem(deltas[2], consumed) + " ms";
+		
+		String decision;
+		if(busyRatio >= BUSY_HIGH && (filling || queue.isAboveHighWatermark()) && size < max) {
+			if(cpu >= CPU_SATURATED && cpuBoundShare > 0.5f) {
+				decision = "hold " + size + ", CPU saturated by filters and processors";
+			}
+			else {
+				// grow by a quarter of the pool, at least by one
+				int target = Math.min(max, size + Math.max(1, size / 4));
+				for(int i = size; i < target; i++) {
+					addConsumer();
+				}
+				decision = "grow " + size + " -> " + target;
+			}
+		}
+		else if(busyRatio <= BUSY_LOW && queue.isBelowLowWatermark() && size > min) {
+			retireConsumer();
+			decision = "shrink " + size + " -> " + (size - 1);
+		}
+		else {
+			decision = "hold " + size;
+		}
+		
+		lastDecision = decision + " (" + inputs + ")";
+		if(!decision.startsWith("hold")) {
+			logger.info("Consumer pool: " + lastDecision);
+		}
+		
+		// start the next round from the current consumers
+		lastTime = now;
+		lastQueueSize = queueSize;
+		lastItems = 0L;
+		lastStageTimes = new long[3];
+		for(Consumer consumer : consumers) {
+			lastItems += consumer.getConsumedItems();
+			long[] times = consumer.getStageTimes();
+			for(int i = 0; i < 3; i++) {
+				lastStageTimes[i] += times[i];
+			}
+		}
+	}
+	
+	private static String perItem(long nanos, long items) {
+		if(items == 0) {
+			return "-";
+		}
+		return String.format("%.2f", nanos / 1000000.0 / items);
+	}
+	
+	public List<Consumer> getConsumers() {
+		return consumers;
+	}
+	
+	/**
+	 * Stops adapting. Consumers are stopped by the storage handler.
+	 */
+	public void stop() {
+		running = false;
+		if(thread != null) {
+			thread.interrupt();
+		}
+	}
+	
+	public String status() {
+		return "Consumer pool: " + consumers.size() + " consumers in [" + min + ", " + max + "]. Last decision: " + lastDecision;
+	}
+}
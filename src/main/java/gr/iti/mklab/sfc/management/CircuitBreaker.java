@@ -0,0 +1,311 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Metrics;
+
+/**
+ * Circuit breaker of a storage, shared by all the threads that write to it, with the retry buffer
+ * of the items that could not be stored.
+ *
+ * The breaker is closed while the storage works. After a number of consecutive failures it opens:
+ * items are no longer sent to the storage but kept in the retry buffer. Once the backoff has elapsed
+ * the breaker is half-open and a single batch is let through as a probe. If it is stored the breaker
+ * closes and the buffered items are retried, otherwise it opens again with a doubled backoff.
+ *
+ * The retry buffer keeps items in memory up to a capacity, then appends them to a spill file.
+ * When both are full, items are rejected. On close, the items in memory are appended to the spill
+ * file, which is kept: the items deferred to a breaker of the same name are retried after a restart.
+ *
+ * 	breaker.enabled: whether the storage has a circuit breaker (default true)
+ * 	breaker.failureThreshold: consecutive failures that open the breaker (default 5)
+ * 	breaker.backoff: milliseconds before the first probe (default 1000)
+ * 	breaker.maxBackoff: maximum milliseconds between two probes (default 300000)
+ * 	breaker.bufferCapacity: items kept in memory (default 10000)
+ * 	breaker.spillCapacity: items kept in the spill file, 0 to disable it (default 1000000)
+ * 	breaker.spillDirectory: directory of the spill file (default: the temporary directory)
+ *
+ */
+public class CircuitBreaker {
+	
+	public static final String ENABLED = "breaker.enabled";
+	public static final String FAILURE_THRESHOLD = "breaker.failureThreshold";
+	public static final String BACKOFF = "breaker.backoff";
+	public static final String MAX_BACKOFF = "breaker.maxBackoff";
+	public static final String BUFFER_CAPACITY = "breaker.bufferCapacity";
+	public static final String SPILL_CAPACITY = "breaker.spillCapacity";
+	public static final String SPILL_DIRECTORY = "breaker.spillDirectory";
+	
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	private Logger logger = LogManager.getLogger(CircuitBreaker.class);
+	
+	// names of the spill files in use, so that breakers of storages with the same name do not share one
+	private static final Set<String> spillNames = new HashSet<String>();
+	
+	private String name;
+	private String spillName;
+	
+	private int failureThreshold = 5;
+	private long initialBackoff = 1000L;
+	private long maxBackoff = 300000L;
+	private int bufferCapacity = 10000;
+	private long spillCapacity = 1000000L;
+	private File spillDirectory;
+	
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long backoff;
+	private long openUntil = 0L;
+	
+	private Deque<Item> buffer = new ArrayDeque<Item>();
+	private ItemSpillFile spillFile = null;
+	
+	private AtomicLong opened = new AtomicLong(0L);
+	private AtomicLong deferred = new AtomicLong(0L);
+	private AtomicLong rejected = new AtomicLong(0L);
+	
+	/**
+	 * @return the circuit breaker configured for a storage, or null if it is disabled
+	 */
+	public static CircuitBreaker create(String name, Configuration config) {
+		if(!Boolean.parseBoolean(config.getParameter(ENABLED, "true"))) {
+			return null;
+		}
+		return new CircuitBreaker(name, config);
+	}
+	
+	public CircuitBreaker(String name, Configuration config) {
+		this.name = name;
+		
+		this.failureThreshold = Math.max(1, Integer.parseInt(config.getParameter(FAILURE_THRESHOLD, Integer.toString(failureThreshold))));
+		this.initialBackoff = Long.parseLong(config.getParameter(BACKOFF, Long.toString(initialBackoff)));
+		this.maxBackoff = Long.parseLong(config.getParameter(MAX_BACKOFF, Long.toString(maxBackoff)));
+		this.bufferCapacity = Integer.parseInt(config.getParameter(BUFFER_CAPACITY, Integer.toString(bufferCapacity)));
+		this.spillCapacity = Long.parseLong(config.getParameter(SPILL_CAPACITY, Long.toString(spillCapacity)));
+		this.spillDirectory = new File(config.getParameter(SPILL_DIRECTORY, System.getProperty("java.io.tmpdir")));
+		
+		this.backoff = initialBackoff;
+		
+		this.spillName = reserveSpillName(name);
+		if(spillCapacity > 0 && new File(spillDirectory, spillName + ".spill").exists()) {
+			try {
+				spillFile = new ItemSpillFile(spillDirectory, spillName, true);
+				logger.info(spillFile.size() + " items of " + name + " to retry recovered from " + spillFile.getFile());
+			}
+			catch(IOException e) {
+				logger.error("Cannot recover the spilled items of " + name, e);
+			}
+		}
+		
+		Metrics.gauge("sfc_breaker_state", new Gauge() {
+			@Override
+			public double getValue() {
+				return getState().ordinal();
+			}
+		}, "storage", name);
+		Metrics.gauge("sfc_breaker_buffered", new Gauge() {
+			@Override
+			public double getValue() {
+				return getBuffered();
+			}
+		}, "storage", name);
+		registerCount("sfc_breaker_opened_total", opened);
+		registerCount("sfc_breaker_deferred_total", deferred);
+		registerCount("sfc_breaker_rejected_total", rejected);
+	}
+	
+	private static String reserveSpillName(String name) {
+		synchronized(spillNames) {
+			String spillName = name + "-breaker";
+			for(int i = 1; !spillNames.add(spillName); i++) {
+				spillName = name + "-breaker-" + i;
+			}
+			return spillName;
+		}
+	}
+	
+	private void registerCount(String metric, final AtomicLong count) {
+		Metrics.gauge(metric, new Gauge() {
+			@Override
+			public double getValue() {
+				return count.get();
+			}
+		}, "storage", name);
+	}
+	
+	/**
+	 * @return whether a batch can be sent to the storage. When the backoff of an open breaker has
+	 * 	elapsed, the breaker becomes half-open and only the caller that gets true sends its batch, as a probe.
+	 */
+	public synchronized boolean allowRequest() {
+		switch(state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if(System.currentTimeMillis() >= openUntil) {
+					state = State.HALF_OPEN;
+					return true;
+				}
+				return false;
+			default:
+				// a probe is in progress
+				return false;
+		}
+	}
+	
+	public synchronized void onSuccess() {
+		if(state != State.CLOSED) {
+			logger.info("Circuit breaker of " + name + " closed. " + getBuffered() + " items to retry.");
+		}
+		state = State.CLOSED;
+		failures = 0;
+		backoff = initialBackoff;
+	}
+	
+	public synchronized void onFailure(Exception e) {
+		failures++;
+		if(state == State.HALF_OPEN) {
+			backoff = Math.min(backoff * 2, maxBackoff);
+			open("Probe of " + name + " failed (" + e.getMessage() + ")");
+		}
+		else if(state == State.CLOSED && failures >= failureThreshold) {
+			open(failures + " consecutive failures of " + name + " (" + e.getMessage() + ")");
+		}
+	}
+	
+	private void open(String reason) {
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + backoff;
+		opened.incrementAndGet();
+		logger.error(reason + ". Circuit breaker open for " + backoff + " ms.");
+	}
+	
+	public synchronized State getState() {
+		return state;
+	}
+	
+	/**
+	 * Keeps items to be retried once the storage works again.
+	 *
+	 * @throws IOException if the retry buffer is full. The items that did not fit are rejected.
+	 */
+	public synchronized void defer(List<Item> items) throws IOException {
+		int kept = 0;
+		try {
+			for(Item item : items) {
+				if(spillFile == null || spillFile.size() == 0) {
+					if(buffer.size() < bufferCapacity) {
+						buffer.add(item);
+						kept++;
+						continue;
+					}
+				}
+				
+				if(spillCapacity <= 0 || (spillFile != null && spillFile.size() >= spillCapacity)) {
+					break;
+				}
+				
+				if(spillFile == null) {
+					spillFile = new ItemSpillFile(spillDirectory, spillName, true);
+				}
+				spillFile.write(item);
+				kept++;
+			}
+		}
+		finally {
+			deferred.addAndGet(kept);
+			if(kept < items.size()) {
+				rejected.addAndGet(items.size() - kept);
+			}
+		}
+		
+		if(kept < items.size()) {
+			throw new IOException("Retry buffer of " + name + " is full. " + (items.size() - kept) + " items rejected.");
+		}
+	}
+	
+	/**
+	 * Removes up to max items from the retry buffer, oldest first.
+	 */
+	public synchronized List<Item> take(int max) {
+		List<Item> items = new ArrayList<Item>(Math.min(max, 1024));
+		while(items.size() < max && !buffer.isEmpty()) {
+			items.add(buffer.poll());
+		}
+		
+		try {
+			Item item;
+			while(items.size() < max && spillFile != null && (item = spillFile.read()) != null) {
+				items.add(item);
+			}
+		}
+		catch(IOException e) {
+			logger.error("Cannot read the spilled items of " + name, e);
+		}
+		return items;
+	}
+	
+	public synchronized long getBuffered() {
+		return buffer.size() + (spillFile == null ? 0 : spillFile.size());
+	}
+	
+	/**
+	 * Moves the items in memory to the spill file, beyond its capacity, and keeps the file for the next start.
+	 */
+	public synchronized void close() {
+		if(!buffer.isEmpty() && spillCapacity > 0) {
+			try {
+				if(spillFile == null) {
+					spillFile = new ItemSpillFile(spillDirectory, spillName, true);
+				}
+				while(!buffer.isEmpty()) {
+					spillFile.write(buffer.peek());
+					buffer.poll();
+				}
+			}
+			catch(IOException e) {
+				logger.error("Cannot spill the buffered items of " + name, e);
+			}
+		}
+		
+		if(!buffer.isEmpty()) {
+			logger.error(buffer.size() + " items of " + name + " are not retried and are discarded.");
+		}
+		buffer.clear();
+		
+		if(spillFile != null) {
+			if(spillFile.size() > 0) {
+				logger.info(spillFile.size() + " items of " + name + " are kept in " + spillFile.getFile() + " and retried on restart.");
+			}
+			spillFile.close();
+			spillFile = null;
+		}
+		
+		synchronized(spillNames) {
+			spillNames.remove(spillName);
+		}
+	}
+	
+	public synchronized String status() {
+		return "Circuit breaker of " + name + ": " + state + ", " + getBuffered() + " items to retry, "
+				+ opened.get() + " times opened, " + deferred.get() + " items deferred, " + rejected.get() + " rejected.";
+	}
+
+}
@@ -0,0 +1,103 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.sfc.storages.BatchStorage;
+import gr.iti.mklab.sfc.storages.Storage;
+import gr.iti.mklab.sfc.storages.StorageUtils;
+
+/**
+ * View of a storage guarded by its {@link CircuitBreaker}. Items that cannot be stored, or that arrive
+ * while the breaker is open, are kept in the retry buffer of the breaker instead of failing, so a broken
+ * storage costs neither a store call nor an exception per item. Buffered items are retried in batches
+ * by the writers of the storage, after their own batches, once the breaker is closed.
+ *
+ * Lifecycle calls are passed to the storage: the breaker and its buffer outlive the close and open
+ * of the storage by the status monitor.
+ *
+ */
+public class CircuitBreakerStorage implements BatchStorage {
+	
+	// buffered items retried after a successful batch
+	private static final int RETRY_BATCH = 500;
+	
+	private Storage storage;
+	private CircuitBreaker breaker;
+	
+	public CircuitBreakerStorage(Storage storage, CircuitBreaker breaker) {
+		this.storage = storage;
+		this.breaker = breaker;
+	}
+	
+	@Override
+	public void store(Item item) throws IOException {
+		store(Collections.singletonList(item));
+	}
+	
+	@Override
+	public void store(List<Item> items) throws IOException {
+		if(!send(items)) {
+			breaker.defer(items);
+			return;
+		}
+		
+		List<Item> retries = breaker.take(RETRY_BATCH);
+		if(!retries.isEmpty() && !send(retries)) {
+			breaker.defer(retries);
+		}
+	}
+	
+	/**
+	 * @return whether the items were stored. False if the breaker is open or the storage failed.
+	 */
+	private boolean send(List<Item> items) {
+		if(!breaker.allowRequest()) {
+			return false;
+		}
+		
+		try {
+			StorageUtils.store(storage, items);
+			breaker.onSuccess();
+			return true;
+		}
+		catch(Exception e) {
+			breaker.onFailure(e);
+			return false;
+		}
+	}
+	
+	@Override
+	public void store(ItemState itemState) {
+		storage.store(itemState);
+	}
+	
+	@Override
+	public boolean delete(String id) throws IOException {
+		return storage.delete(id);
+	}
+	
+	@Override
+	public boolean open() {
+		return storage.open();
+	}
+	
+	@Override
+	public void close() {
+		storage.close();
+	}
+	
+	@Override
+	public boolean checkStatus() {
+		return storage.checkStatus();
+	}
+	
+	@Override
+	public String getStorageName() {
+		return storage.getStorageName();
+	}
+
+}
@@ -1,120 +1,313 @@
 package gr.iti.mklab.sfc.management;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.sfc.filters.ItemFilter;
+import gr.iti.mklab.sfc.metrics.Histogram;
+import gr.iti.mklab.sfc.metrics.Metrics;
 import gr.iti.mklab.sfc.processors.Processor;
 import gr.iti.mklab.sfc.storages.Storage;
+import gr.iti.mklab.sfc.storages.StorageUtils;
+import gr.iti.mklab.sfc.utils.Threads;
 
 /**
  * Class for storing items to databases
- * 
- * 
+ *
+ * Items are taken from the queue in micro-batches: a consumer waits for the first item,
+ * then collects up to batchSize items or until batchWait milliseconds have passed. The whole
+ * batch is passed through filters and processors and is then handed to each storage at once.
+ * A batch size of 1 processes items one by one.
+ *
+ * Each consumer gets its own view of the filters, processors and storages, as prepared by 
+ * the {@link StorageHandler} according to their {@link ThreadSafety} policy. Stages are called 
+ * without any locking here; the ones that are not thread safe are wrapped in {@link SynchronizedStages}.
+ *
  * @author manosetro - manosetro@iti.gr
  *
  */
-public class Consumer extends Thread {
+public class Consumer implements Runnable {
 	
 	private Logger _logger = LogManager.getLogger(Consumer.class);
 	
 	private static int id = 0;
 	
-	private boolean isAlive = true;
+	private String name;
+	
+	// the thread running the consumer, which may be a virtual or a pooled thread 
+	private volatile Thread thread = null;
+	private CountDownLatch finished = new CountDownLatch(1);
+	
+	private volatile boolean isAlive = true;
+	private volatile boolean drainOnExit = true;
 	private List<Storage> storages = null;
 	
-	private BlockingQueue<Item> queue;
+	private ItemQueue queue;
 	
 	private Collection<ItemFilter> filters;
 	private Collection<Processor> processors;
 	
+	private int batchSize = 1;
+	private long batchWait = 0;
+	
+	private ItemJournal journal = null;
+	private boolean ackStored = true;
+	
 	private long lastAccess = 0;
-	private long itemsConsumed = 0L;
+	private volatile long itemsConsumed = 0L;
+	private long batchesConsumed = 0L;
+	
+	// time spent in each stage, in nanoseconds
+	private volatile long filteringTime = 0L;
+	private volatile long processingTime = 0L;
+	private volatile long storingTime = 0L;
+	
+	// latency of each filter and processor per item, and of each storage per batch
+	private Histogram[] filterLatency;
+	private Histogram[] processorLatency;
+	private Histogram[] storageLatency;
+	
 	private int lastAction = 0;
 	private String[] actions = {"initialization", "taking from queue", "filtering", "running processors", "storing", " handling"};
 	
-	public Consumer(BlockingQueue<Item> queue, List<Storage> storages, Collection<ItemFilter> filters, Collection<Processor> processors) {
+	public Consumer(ItemQueue queue, List<Storage> storages, Collection<ItemFilter> filters, Collection<Processor> processors) {
+		this(queue, storages, filters, processors, 1, 0);
+	}
+	
+	public Consumer(ItemQueue queue, List<Storage> storages, Collection<ItemFilter> filters, Collection<Processor> processors,
+			int batchSize, long batchWait) {
 		this.storages = storages;
 		this.queue = queue;
 		this.filters = filters;
 		this.processors = processors;
 		
-		this.setName("Consumer_" + (id++));
+		this.batchSize = Math.max(1, batchSize);
+		this.batchWait = Math.max(0, batchWait);
+		
+		this.name = "Consumer_" + (id++);
+		
+		this.filterLatency = new Histogram[filters.size()];
+		int i = 0;
+		for(ItemFilter filter : filters) {
+			filterLatency[i++] = Metrics.stageLatency("filter", filter.name());
+		}
+		
+		this.processorLatency = new Histogram[processors.size()];
+		i = 0;
+		for(Processor processor : processors) {
+			processorLatency[i++] = Metrics.stageLatency("processor", processor.name());
+		}
+		
+		this.storageLatency = new Histogram[storages == null ? 0 : storages.size()];
+		for(i = 0; i < storageLatency.length; i++) {
+			storageLatency[i] = Metrics.stageLatency("storage", storages.get(i).getStorageName());
+		}
+	}
+	
+	/**
+	 * @param journal the journal to acknowledge handled items to
+	 * @param ackStored whether stored items are acknowledged here. If false (e.g. the storages 
+	 * 	are asynchronous lanes) only filtered out items are acknowledged. 
+	 */
+	public void setJournal(ItemJournal journal, boolean ackStored) {
+		this.journal = journal;
+		this.ackStored = ackStored;
+	}
+	
+	/**
+	 * Starts the consumer according to the execution mode.
+	 */
+	public void start() {
+		Threads.execute(this, name);
+	}
+	
+	/**
+	 * Waits for the consumer to finish, up to the given time.
+	 * 
+	 * @return true if the consumer has finished
+	 */
+	public boolean join(long millis) throws InterruptedException {
+		return finished.await(millis, TimeUnit.MILLISECONDS);
+	}
+	
+	public String getName() {
+		return name;
 	}
 	
 	/**
-	 * Stores an item if the latter is found waiting in the queue
+	 * Stores items if the latter are found waiting in the queue
 	 */
-	public void run() {			
-		Item item = null;
+	public void run() {
+		thread = Thread.currentThread();
+		try {
+			consume();
+		}
+		finally {
+			thread = null;
+			finished.countDown();
+		}
+	}
+	
+	private void consume() {
+		List<Item> batch = new ArrayList<Item>(batchSize);
 		while (isAlive) {
 			try {
-				item = queue.take();
+				batch.clear();
+				
+				// poll, so that a retired consumer notices without being interrupted
+				Item item = queue.poll(1, TimeUnit.SECONDS);
 				if (item == null) {
-					_logger.error("Item is null.");
-				} 
-				else {
-					lastAction = 1;
-					lastAccess = System.currentTimeMillis();
-					itemsConsumed++;
-					
-					process(item);
+					continue;
 				}
-			} catch(IOException e) {
-				_logger.error(e);
+				
+				batch.add(item);
+				if(batchSize > 1) {
+					fill(batch);
+				}
+				
+				lastAction = 1;
+				lastAccess = System.currentTimeMillis();
+				itemsConsumed += batch.size();
+				batchesConsumed++;
+				
+				process(batch);
+			
 			} catch (InterruptedException e) {
 				_logger.error(e);
 			}
 		}
 		
-		//empty queue before exit 
+		if(!drainOnExit) {
+			return;
+		}
+		
+		// an interrupt of die() that landed during process() would make the lanes drop every drained item
+		Thread.interrupted();
+		
+		//empty queue before exit
+		batch.clear();
+		Item item;
 		while ((item = queue.poll()) != null) {
-			try {
-				process(item);
-			} catch (IOException e) {
-				_logger.error(e);
+			batch.add(item);
+			if(batch.size() >= batchSize) {
+				process(batch);
+				batch.clear();
 			}
 		}
+		process(batch);
 	}
 	
-	private void process(Item item) throws IOException {
-		if (storages != null) {
-			for(ItemFilter filter : filters) {
-				boolean accept = true;
-				synchronized(filter) {
-					accept = filter.accept(item);
-				}
-				if(!accept) {
-					return;
-				}
+	/**
+	 * Collects items until the batch is full or the batch wait time expires.
+	 */
+	private void fill(List<Item> batch) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + batchWait;
+		
+		queue.drainTo(batch, batchSize - batch.size());
+		while(batch.size() < batchSize) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				break;
 			}
-			lastAction = 2;
 			
-			for(Processor processor : processors) {
-				synchronized(processor) {
-					processor.process(item);	
-				}
+			Item item = queue.poll(remaining, TimeUnit.MILLISECONDS);
+			if(item == null) {
+				break;
 			}
-			lastAction = 3;
 			
-			for(Storage storage : storages) {
-				synchronized(storage) {
-					storage.store(item);
-				}
+			batch.add(item);
+			queue.drainTo(batch, batchSize - batch.size());
+		}
+	}
+	
+	/**
+	 * Passes a batch through the filters, the processors and the storages.
+	 * Package visible for the benchmarks of the pipeline.
+	 */
+	void process(List<Item> batch) {
+		if (storages == null) {
+			_logger.error("Sorages list in null. Cannot process items.");
+			return;
+		}
+		
+		if(batch.isEmpty()) {
+			return;
+		}
+		
+		long t0 = System.nanoTime();
+		
+		List<Item> accepted = new ArrayList<Item>(batch.size());
+		for(Item item : batch) {
+			if(accept(item)) {
+				accepted.add(item);
+			}
+			else if(journal != null) {
+				journal.ackAll(item);
 			}
-			lastAction = 4;
 		}
-		else {
-			_logger.error("Sorages list in null. Cannot process item.");
+		lastAction = 2;
+		long t1 = System.nanoTime();
+		
+		for(Item item : accepted) {
+			int i = 0;
+			for(Processor processor : processors) {
+				long t = System.nanoTime();
+				processor.process(item);
+				processorLatency[i++].recordSince(t);
+			}
 		}
+		lastAction = 3;
+		long t2 = System.nanoTime();
 		
+		boolean stored = true;
+		for(int i = 0; i < storages.size() && !accepted.isEmpty(); i++) {
+			Storage storage = storages.get(i);
+			long t = System.nanoTime();
+			try {
+				StorageUtils.store(storage, accepted);
+			}
+			catch(IOException e) {
+				stored = false;
+				_logger.error("Failed to store " + accepted.size() + " items to " + storage.getStorageName(), e);
+			}
+			storageLatency[i].recordSince(t);
+		}
+		lastAction = 4;
+		long t3 = System.nanoTime();
+		
+		filteringTime += (t1 - t0);
+		processingTime += (t2 - t1);
+		storingTime += (t3 - t2);
+		
+		// items that a storage failed to store stay pending in the journal, and are replayed on restart
+		if(journal != null && ackStored && stored) {
+			for(Item item : accepted) {
+				journal.ackAll(item);
+			}
+		}
+	}
+	
+	private boolean accept(Item item) {
+		int i = 0;
+		for(ItemFilter filter : filters) {
+			long t = System.nanoTime();
+			boolean accepted = filter.accept(item);
+			filterLatency[i++].recordSince(t);
+			
+			if(!accepted) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	/**
@@ -123,23 +316,49 @@ public class Consumer extends Thread {
 	public synchronized void die() {
 		isAlive = false;
 		try {
-			this.interrupt();
+			Thread current = thread;
+			if(current != null) {
+				current.interrupt();
+			}
 		}
 		catch(Exception e) {
 			_logger.error(e);
 		}
 	}
 	
+	/**
+	 * Stops the consumer thread after its current batch, leaving the queued items to the other consumers.
+	 * Unlike die(), the thread is not interrupted, so an ongoing storage call is not disturbed. 
+	 */
+	public void retire() {
+		drainOnExit = false;
+		isAlive = false;
+	}
+	
+	public boolean isRetired() {
+		return !isAlive;
+	}
+	
+	/**
+	 * @return time spent in filtering, processing and storing so far, in nanoseconds
+	 */
+	public long[] getStageTimes() {
+		return new long[] {filteringTime, processingTime, storingTime};
+	}
+	
 	private Date getLastAccess() {
 		return new Date(lastAccess);
 	}
-
-	private long getConsumedItems() {
+	
+	public long getConsumedItems() {
 		return itemsConsumed;
 	}
 	
 	public String status() {
-		return getName() + " consumed " + getConsumedItems() + ". Last access [" + getLastAccess() 
-				+ "]. Current state: " + getState() + " after " + actions[lastAction];
+		String batches = batchSize > 1 ? " in " + batchesConsumed + " batches" : "";
+		Thread current = thread;
+		String state = (current == null) ? "TERMINATED" : current.getState().toString();
+		return getName() + " consumed " + getConsumedItems() + batches + ". Last access [" + getLastAccess()
+				+ "]. Current state: " + state + " after " + actions[lastAction];
 	}
 }
@@ -0,0 +1,427 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import gr.iti.mklab.framework.common.domain.Item;
+
+/**
+ * Write-ahead log of the items handled by the {@link StorageHandler}.
+ *
+ * Items are appended to memory-mapped segment files before they enter the ingest buffer.
+ * Each record holds its length, a sequence number and the serialized item. Once an item has
+ * been stored (or filtered out) by every storage it is acknowledged. A background thread
+ * periodically forces the current segment to disk and writes the checkpoint: the lowest
+ * sequence number that is still pending. Segments entirely below the checkpoint are deleted.
+ *
+ * On restart, records from the checkpoint onwards are replayed. Items acknowledged after the
+ * last checkpoint are replayed as well, so storages see them at least once. Items that a storage
+ * failed to store are never acknowledged: they hold the checkpoint back, and their segments are
+ * kept until the restart replays them. A segment of the previous run is deleted once all its
+ * items are appended again. If it cannot be read, or one of its items cannot be appended, it is
+ * kept with the old checkpoint and replayed again on the next restart.
+ *
+ */
+public class ItemJournal {
+	
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	
+	// length (int) and sequence number (long)
+	private static final int HEADER_SIZE = 12;
+	
+	private Logger logger = LogManager.getLogger(ItemJournal.class);
+	
+	private File directory;
+	private int segmentSize;
+	private long flushInterval;
+	
+	// number of acknowledgements an item needs before it is released
+	private int parties = 1;
+	
+	private List<Segment> segments = new ArrayList<Segment>();
+	private Segment current;
+	
+	// segments written by a previous run, replayed on start
+	private List<Segment> replaySegments = new ArrayList<Segment>();
+	private volatile boolean replaying = false;
+	
+	private long nextSequence = 0L;
+	private long checkpoint = 0L;
+	private RandomAccessFile checkpointFile;
+	
+	// pending sequence numbers and, per item id, the sequence numbers with their missing acknowledgements
+	private TreeSet<Long> pending = new TreeSet<Long>();
+	private Map<String, LinkedList<long[]>> pendingById = new HashMap<String, LinkedList<long[]>>();
+	
+	private long appended = 0L, acknowledged = 0L, replayed = 0L;
+	
+	private Thread flusher;
+	private volatile boolean closed = false;
+	
+	private static class Segment {
+		
+		long firstSequence;
+		File file;
+		RandomAccessFile raf;
+		MappedByteBuffer buffer;
+		
+		Segment(File file, long firstSequence) {
+			this.file = file;
+			this.firstSequence = firstSequence;
+		}
+		
+		void close() {
+			if(buffer != null) {
+				buffer.force();
+				buffer = null;
+			}
+			
+			try {
+				if(raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				// nothing to do here
+			}
+		}
+	}
+	
+	public ItemJournal(File directory, int segmentSize, long flushInterval) throws IOException {
+		if(!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + directory);
+		}
+		
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.flushInterval = flushInterval;
+		
+		this.checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw");
+		if(checkpointFile.length() >= 8) {
+			checkpoint = checkpointFile.readLong();
+		}
+		
+		recover();
+		roll(HEADER_SIZE);
+		
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!closed) {
+					try {
+						Thread.sleep(ItemJournal.this.flushInterval);
+						checkpoint();
+					}
+					catch(InterruptedException e) {
+						break;
+					}
+					catch(Exception e) {
+						logger.error("Journal checkpoint failed.", e);
+					}
+				}
+			}
+		});
+		flusher.setName("ItemJournalFlusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		
+		logger.info("Item journal opened in " + directory + ". Checkpoint: " + checkpoint + ", next sequence: "
+				+ nextSequence + ", " + replaySegments.size() + " segments to replay.");
+	}
+	
+	/**
+	 * Sets the number of acknowledgements each item needs, e.g. one per storage lane.
+	 */
+	public synchronized void setParties(int parties) {
+		this.parties = Math.max(1, parties);
+	}
+	
+	/**
+	 * Finds the segments of a previous run and the last sequence number written.
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		
+		nextSequence = checkpoint;
+		for(File file : files) {
+			String name = file.getName();
+			long first = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			
+			Segment segment = new Segment(file, first);
+			long last = scan(segment, null);
+			if(last < 0 || last < checkpoint) {
+				// empty or fully acknowledged
+				file.delete();
+				continue;
+			}
+			
+			replaySegments.add(segment);
+			nextSequence = Math.max(nextSequence, last + 1);
+		}
+		replaying = !replaySegments.isEmpty();
+	}
+	
+	/**
+	 * Reads the records of a segment. Records at or after the checkpoint are passed to the given list.
+	 *
+	 * @return the last sequence number in the segment, or -1 if empty
+	 */
+	private long scan(Segment segment, List<Item> items) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			
+			long last = -1;
+			while(buffer.remaining() >= HEADER_SIZE) {
+				int length = buffer.getInt();
+				if(length <= 0 || length > buffer.remaining() - 8) {
+					// end of written data, or a torn record
+					break;
+				}
+				
+				long sequence = buffer.getLong();
+				if(items != null && sequence >= checkpoint) {
+					byte[] data = new byte[length];
+					buffer.get(data);
+					try {
+						items.add((Item) SerializationUtils.deserialize(data));
+					}
+					catch(Exception e) {
+						logger.error("Cannot deserialize journal record " + sequence, e);
+					}
+				}
+				else {
+					buffer.position(buffer.position() + length);
+				}
+				last = sequence;
+			}
+			return last;
+		}
+		finally {
+			raf.close();
+		}
+	}
+	
+	private void roll(int required) throws IOException {
+		if(current != null) {
+			current.close();
+		}
+		
+		File file = new File(directory, String.format(SEGMENT_PREFIX + "%020d" + SEGMENT_SUFFIX, nextSequence));
+		Segment segment = new Segment(file, nextSequence);
+		segment.raf = new RandomAccessFile(file, "rw");
+		segment.buffer = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, required + 4));
+		
+		segments.add(segment);
+		current = segment;
+	}
+	
+	/**
+	 * Appends an item to the journal.
+	 *
+	 * @return the sequence number of the item
+	 */
+	public synchronized long append(Item item) throws IOException {
+		if(closed) {
+			throw new IOException("Journal is closed");
+		}
+		
+		byte[] data = SerializationUtils.serialize(item);
+		
+		// keep 4 zero bytes after each record as an end marker
+		if(current.buffer.remaining() < HEADER_SIZE + data.length + 4) {
+			roll(HEADER_SIZE + data.length);
+		}
+		
+		long sequence = nextSequence++;
+		current.buffer.putInt(data.length);
+		current.buffer.putLong(sequence);
+		current.buffer.put(data);
+		
+		pending.add(sequence);
+		LinkedList<long[]> sequences = pendingById.get(item.getId());
+		if(sequences == null) {
+			sequences = new LinkedList<long[]>();
+			pendingById.put(item.getId(), sequences);
+		}
+		sequences.add(new long[] {sequence, parties});
+		
+		appended++;
+		return sequence;
+	}
+	
+	/**
+	 * Acknowledges an item on behalf of one party.
+	 */
+	public void ack(Item item) {
+		ack(item, 1);
+	}
+	
+	/**
+	 * Acknowledges an item on behalf of all parties, e.g. when it is filtered out or dropped.
+	 */
+	public void ackAll(Item item) {
+		ack(item, Integer.MAX_VALUE);
+	}
+	
+	private synchronized void ack(Item item, int count) {
+		LinkedList<long[]> sequences = pendingById.get(item.getId());
+		if(sequences == null) {
+			return;
+		}
+		
+		long[] entry = sequences.getFirst();
+		entry[1] -= Math.min(count, entry[1]);
+		if(entry[1] == 0) {
+			sequences.removeFirst();
+			pending.remove(entry[0]);
+			acknowledged++;
+			
+			if(sequences.isEmpty()) {
+				pendingById.remove(item.getId());
+			}
+		}
+	}
+	
+	/**
+	 * Passes the unacknowledged items of the previous run to the given handler,
+	 * one segment at a time.
+	 */
+	public void replay(StorageHandler handler) {
+		if(replaySegments.isEmpty()) {
+			return;
+		}
+		
+		logger.info("Replaying " + replaySegments.size() + " journal segments from sequence " + checkpoint);
+		List<Segment> kept = new ArrayList<Segment>();
+		for(Segment segment : replaySegments) {
+			boolean complete = true;
+			
+			List<Item> items = new ArrayList<Item>();
+			try {
+				scan(segment, items);
+			}
+			catch(IOException e) {
+				logger.error("Cannot read journal segment " + segment.file, e);
+				complete = false;
+			}
+			
+			for(Item item : items) {
+				try {
+					handler.append(item);
+				}
+				catch(IOException e) {
+					logger.error("Cannot append replayed item " + item.getId() + " to the journal.", e);
+					complete = false;
+				}
+			}
+			replayed += items.size();
+			
+			if(complete) {
+				// replayed items have been appended again
+				segment.file.delete();
+			}
+			else {
+				kept.add(segment);
+			}
+		}
+		logger.info(replayed + " items replayed from the journal.");
+		
+		synchronized(this) {
+			replaySegments = kept;
+			replaying = !kept.isEmpty();
+		}
+		
+		if(!kept.isEmpty()) {
+			logger.warn(kept.size() + " journal segments are kept with checkpoint " + checkpoint + " and replayed on the next restart.");
+		}
+	}
+	
+	/**
+	 * Forces the current segment to disk, persists the checkpoint and removes acknowledged segments.
+	 */
+	public void checkpoint() throws IOException {
+		List<Segment> obsolete = new ArrayList<Segment>();
+		synchronized(this) {
+			if(current.buffer != null) {
+				current.buffer.force();
+			}
+			
+			if(replaying) {
+				// records of the previous run are not pending, keep the old checkpoint until they are replayed
+				return;
+			}
+			
+			checkpoint = pending.isEmpty() ? nextSequence : pending.first();
+			checkpointFile.seek(0);
+			checkpointFile.writeLong(checkpoint);
+			checkpointFile.getFD().sync();
+			
+			// a segment is obsolete if the next one starts at or before the checkpoint
+			while(segments.size() > 1 && segments.get(1).firstSequence <= checkpoint) {
+				obsolete.add(segments.remove(0));
+			}
+		}
+		
+		for(Segment segment : obsolete) {
+			segment.close();
+			segment.file.delete();
+		}
+	}
+	
+	public synchronized int getPending() {
+		return pending.size();
+	}
+	
+	public void close() {
+		closed = true;
+		flusher.interrupt();
+		try {
+			checkpoint();
+		}
+		catch(IOException e) {
+			logger.error("Failed to write the last journal checkpoint.", e);
+		}
+		
+		synchronized(this) {
+			for(Segment segment : segments) {
+				segment.close();
+			}
+			
+			try {
+				checkpointFile.close();
+			} catch (IOException e) {
+				logger.error(e);
+			}
+		}
+		
+		logger.info("Item journal closed. " + getPending() + " items are pending and will be replayed on restart.");
+	}
+	
+	public synchronized String status() {
+		return "Journal: " + appended + " items appended, " + acknowledged + " acknowledged, " + pending.size()
+				+ " pending, " + replayed + " replayed. Checkpoint: " + checkpoint + ", segments: " + segments.size();
+	}
+}
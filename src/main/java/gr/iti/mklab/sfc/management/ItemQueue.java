@@ -0,0 +1,264 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import gr.iti.mklab.framework.common.domain.Item;
+
+/**
+ * Bounded buffer between the producers of items (streams and subscribers) and
+ * the consumer threads of the {@link StorageHandler}.
+ *
+ * When the buffer is full the overflow policy decides what happens to an incoming item:
+ * 	BLOCK: the producer waits until there is free space
+ * 	SHED: items of low priority are dropped as soon as the high watermark is reached,
+ * 		  all items are dropped when the buffer is full
+ * 	SPILL: items are appended to a spill file and they are moved back to memory when
+ * 		   the buffer drains below the low watermark
+ *
+ */
+public class ItemQueue {
+
+	public enum OverflowPolicy {
+		BLOCK, SHED, SPILL
+	}
+
+	private final Logger logger = LogManager.getLogger(ItemQueue.class);
+
+	private BlockingQueue<Item> queue;
+
+	private int capacity;
+	private int highWatermark;
+	private int lowWatermark;
+
+	private OverflowPolicy policy;
+
+	private ItemSpillFile spillFile = null;
+	private ReentrantLock refillLock = new ReentrantLock();
+
+	private AtomicLong shed = new AtomicLong(0L);
+	private AtomicLong spilled = new AtomicLong(0L);
+
+	private volatile boolean closed = false;
+
+	public ItemQueue(int capacity, float highWatermark, float lowWatermark, OverflowPolicy policy,
+			File spillDirectory) throws IOException {
+
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+		}
+
+		if(lowWatermark > highWatermark || highWatermark > 1f) {
+			throw new IllegalArgumentException("Invalid watermarks: low=" + lowWatermark + ", high=" + highWatermark);
+		}
+
+		this.capacity = capacity;
+		this.highWatermark = (int) (highWatermark * capacity);
+		this.lowWatermark = (int) (lowWatermark * capacity);
+		this.policy = policy;
+
+		this.queue = new ArrayBlockingQueue<Item>(capacity);
+
+		if(policy == OverflowPolicy.SPILL) {
+			spillFile = new ItemSpillFile(spillDirectory, "items-" + System.currentTimeMillis());
+		}
+
+		logger.info("Item queue initialized. Capacity: " + capacity + ", watermarks: [" + this.lowWatermark
+				+ ", " + this.highWatermark + "], overflow policy: " + policy);
+	}
+
+	/**
+	 * Inserts an item applying the overflow policy.
+	 *
+	 * @return false if the item has been dropped
+	 * @throws InterruptedException if interrupted while waiting for free space (BLOCK policy)
+	 */
+	public boolean offer(Item item) throws InterruptedException {
+		switch (policy) {
+			case SHED:
+				if(queue.size() >= highWatermark && !isHighPriority(item)) {
+					shed.incrementAndGet();
+					return false;
+				}
+
+				if(!queue.offer(item)) {
+					shed.incrementAndGet();
+					return false;
+				}
+				return true;
+
+			case SPILL:
+				// keep FIFO order: once items are spilled, new items follow them to disk
+				if(spillFile.size() == 0 && queue.offer(item)) {
+					return true;
+				}
+
+				try {
+					spillFile.write(item);
+					spilled.incrementAndGet();
+					return true;
+				} catch (IOException e) {
+					logger.error("Failed to spill item " + item.getId(), e);
+					shed.incrementAndGet();
+					return false;
+				}
+
+			default:
+				while(!closed) {
+					if(queue.offer(item, 1, TimeUnit.SECONDS)) {
+						return true;
+					}
+				}
+				return queue.offer(item);
+		}
+	}
+
+	public Item take() throws InterruptedException {
+		Item item = queue.poll();
+		if(item == null) {
+			refill();
+			item = queue.take();
+		}
+		refill();
+
+		return item;
+	}
+
+	public Item poll() {
+		Item item = queue.poll();
+		if(item == null && refill()) {
+			item = queue.poll();
+		}
+		return item;
+	}
+
+	public Item poll(long timeout, TimeUnit unit) throws InterruptedException {
+		Item item = queue.poll();
+		if(item == null) {
+			refill();
+			item = queue.poll(timeout, unit);
+		}
+		refill();
+
+		return item;
+	}
+
+	public int drainTo(Collection<? super Item> items, int maxItems) {
+		int drained = queue.drainTo(items, maxItems);
+		refill();
+
+		return drained;
+	}
+
+	/**
+	 * Moves spilled items back to memory once the buffer drains below the low watermark.
+	 * Only one consumer at a time performs the refill.
+	 *
+	 * @return true if any item has been moved
+	 */
+	private boolean refill() {
+		if(spillFile == null || spillFile.size() == 0 || queue.size() > lowWatermark) {
+			return false;
+		}
+
+		if(!refillLock.tryLock()) {
+			return false;
+		}
+
+		int moved = 0;
+		try {
+			int toMove = queue.remainingCapacity();
+			Item item;
+			while(moved < toMove && (item = spillFile.read()) != null) {
+				queue.put(item);
+				moved++;
+			}
+		}
+		catch (IOException e) {
+			logger.error("Failed to read spilled items.", e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			refillLock.unlock();
+		}
+
+		return moved > 0;
+	}
+
+	private boolean isHighPriority(Item item) {
+		// retweets, reshares and replies are the first to go under load
+		return item.isOriginal();
+	}
+
+	/**
+	 * @return number of items buffered in memory
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return number of items waiting in the spill file
+	 */
+	public long spilledSize() {
+		return spillFile == null ? 0 : spillFile.size();
+	}
+
+	/**
+	 * @return the fraction of the in-memory buffer that is in use (0 to 1.0f)
+	 */
+	public float getLoad() {
+		return (float) queue.size() / (float) capacity;
+	}
+
+	public boolean isAboveHighWatermark() {
+		return queue.size() >= highWatermark || spilledSize() > 0;
+	}
+
+	public boolean isBelowLowWatermark() {
+		return queue.size() <= lowWatermark && spilledSize() == 0;
+	}
+
+	public long getShedItems() {
+		return shed.get();
+	}
+
+	public long getSpilledItems() {
+		return spilled.get();
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public void close() {
+		closed = true;
+		if(spillFile != null) {
+			if(spillFile.size() > 0) {
+				logger.error(spillFile.size() + " spilled items are discarded on close.");
+			}
+			spillFile.close();
+		}
+	}
+
+	public String status() {
+		return size() + " items queued in memory (load: " + Math.round(100 * getLoad()) + "%), "
+				+ spilledSize() + " in spill file. Policy: " + policy + ". "
+				+ getShedItems() + " items shed, " + getSpilledItems() + " items spilled in total.";
+	}
+}
@@ -0,0 +1,183 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import gr.iti.mklab.framework.common.domain.Item;
+
+/**
+ * Append-only file used as a FIFO overflow area for items that do not fit in memory.
+ * Records are written as a length prefix followed by the serialized item.
+ * The file is truncated every time the reader catches up with the writer.
+ *
+ * A temporary spill file is deleted on close and does not survive restarts. A persistent one keeps
+ * the items not read yet on close, and reads the items of the existing file first when it is opened
+ * again. After a crash, the items read since it was opened are read again.
+ */
+public class ItemSpillFile {
+
+	// size of a block copied when the file is compacted
+	private static final int BLOCK_SIZE = 65536;
+
+	private File file;
+	private RandomAccessFile raf;
+	private boolean persistent;
+
+	private long readPosition = 0L;
+	private long writePosition = 0L;
+
+	private volatile long count = 0L;
+
+	public ItemSpillFile(File directory, String name) throws IOException {
+		this(directory, name, false);
+	}
+
+	/**
+	 * @param persistent whether the items not read yet are kept on close, and read on the next open
+	 */
+	public ItemSpillFile(File directory, String name, boolean persistent) throws IOException {
+		if(!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("Cannot create spill directory " + directory);
+		}
+
+		this.file = new File(directory, name + ".spill");
+		this.raf = new RandomAccessFile(file, "rw");
+		this.persistent = persistent;
+
+		if(persistent) {
+			recover();
+		}
+		else {
+			this.raf.setLength(0);
+		}
+	}
+
+	/**
+	 * Counts the records of an existing file. A torn record, written when the process stopped, is discarded.
+	 */
+	private void recover() throws IOException {
+		long length = raf.length();
+		while(writePosition + 4 <= length) {
+			raf.seek(writePosition);
+			int size = raf.readInt();
+			if(size < 0 || writePosition + 4 + size > length) {
+				break;
+			}
+
+			writePosition += 4 + size;
+			count++;
+		}
+		raf.setLength(writePosition);
+	}
+
+	public synchronized void write(Item item) throws IOException {
+		byte[] data = SerializationUtils.serialize(item);
+
+		ByteBuffer record = ByteBuffer.allocate(4 + data.length);
+		record.putInt(data.length);
+		record.put(data);
+
+		raf.seek(writePosition);
+		raf.write(record.array());
+
+		writePosition += record.capacity();
+		count++;
+	}
+
+	/**
+	 * @return the oldest spilled item, or null if the spill file is empty
+	 */
+	public synchronized Item read() throws IOException {
+		if(count == 0) {
+			return null;
+		}
+
+		byte[] header = new byte[4];
+		raf.seek(readPosition);
+		raf.readFully(header);
+
+		byte[] data = new byte[ByteBuffer.wrap(header).getInt()];
+		raf.readFully(data);
+
+		readPosition += 4 + data.length;
+		count--;
+
+		if(count == 0) {
+			// reader caught up with the writer. reclaim disk space
+			readPosition = writePosition = 0L;
+			raf.setLength(0);
+		}
+
+		return (Item) SerializationUtils.deserialize(data);
+	}
+
+	public long size() {
+		return count;
+	}
+
+	public long bytes() {
+		return writePosition - readPosition;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Deletes the file, unless it is persistent and has items not read yet. These are forced to disk,
+	 * and copied to a new file without the items already read.
+	 */
+	public synchronized void close() {
+		boolean keep = persistent && count > 0;
+		try {
+			if(keep) {
+				raf.getFD().sync();
+			}
+			raf.close();
+		} catch (IOException e) {
+			// nothing to do here
+		}
+
+		if(!keep) {
+			file.delete();
+			return;
+		}
+
+		try {
+			compact();
+		} catch (IOException e) {
+			// the file is kept as it is: the items already read are read again as well
+		}
+	}
+
+	private void compact() throws IOException {
+		if(readPosition == 0L) {
+			return;
+		}
+
+		File compacted = new File(file.getPath() + ".tmp");
+		try (RandomAccessFile in = new RandomAccessFile(file, "r");
+				FileOutputStream out = new FileOutputStream(compacted)) {
+			byte[] block = new byte[BLOCK_SIZE];
+			in.seek(readPosition);
+			for(long remaining = writePosition - readPosition; remaining > 0; ) {
+				int size = (int) Math.min(block.length, remaining);
+				in.readFully(block, 0, size);
+				out.write(block, 0, size);
+				remaining -= size;
+			}
+			out.getFD().sync();
+		}
+
+		if(!compacted.renameTo(file)) {
+			compacted.delete();
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+
+}
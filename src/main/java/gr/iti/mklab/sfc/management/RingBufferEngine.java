@@ -0,0 +1,424 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.WorkHandler;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.sfc.filters.ItemFilter;
+import gr.iti.mklab.sfc.metrics.Histogram;
+import gr.iti.mklab.sfc.metrics.Metrics;
+import gr.iti.mklab.sfc.processors.Processor;
+import gr.iti.mklab.sfc.storages.Storage;
+import gr.iti.mklab.sfc.storages.StorageUtils;
+
+/**
+ * Alternative to the ingest queue and the consumer threads of the {@link StorageHandler},
+ * based on the LMAX Disruptor.
+ *
+ * Items are published into pre-allocated slots of a ring buffer and flow through three
+ * dependent stages: a pool of filter workers, a pool of processor workers and one handler
+ * per storage. Each slot is claimed by a single filter and a single processor worker, while
+ * every storage handler sees all slots and stores the accepted items in batches, at the end
+ * of each batch made available by the ring buffer. Handoff between stages is driven by
+ * sequence barriers, without locks or per-item allocation.
+ *
+ * The buffer is bounded by its size. Under the SHED policy items that do not fit are dropped,
+ * otherwise producers wait for a free slot.
+ *
+ */
+public class RingBufferEngine {
+	
+	public static final String BUFFER_SIZE = "disruptor.bufferSize";
+	public static final String WAIT_STRATEGY = "disruptor.waitStrategy";
+	public static final String WORKERS = "disruptor.workers";
+	
+	private Logger logger = LogManager.getLogger(RingBufferEngine.class);
+	
+	/**
+	 * A slot of the ring buffer
+	 */
+	public static class ItemEvent {
+		
+		private Item item;
+		private boolean accepted;
+		// set by a storage handler that failed to store the item
+		private volatile boolean failed;
+		
+		public Item getItem() {
+			return item;
+		}
+	}
+	
+	private static final EventFactory<ItemEvent> FACTORY = new EventFactory<ItemEvent>() {
+		@Override
+		public ItemEvent newInstance() {
+			return new ItemEvent();
+		}
+	};
+	
+	private static final EventTranslatorOneArg<ItemEvent, Item> TRANSLATOR = new EventTranslatorOneArg<ItemEvent, Item>() {
+		@Override
+		public void translateTo(ItemEvent event, long sequence, Item item) {
+			event.item = item;
+			event.accepted = false;
+		}
+	};
+	
+	// pause of a producer waiting for a free slot
+	private static final long PUBLISH_PARK_NANOS = 100000L;
+	
+	private Disruptor<ItemEvent> disruptor;
+	private RingBuffer<ItemEvent> ringBuffer;
+	private ExecutorService executor;
+	
+	private volatile boolean closed = false;
+	
+	private int bufferSize;
+	private int highWatermark;
+	private int lowWatermark;
+	private boolean shed;
+	
+	private ItemJournal journal = null;
+	
+	private List<StorageEventHandler> storageHandlers = new ArrayList<StorageEventHandler>();
+	
+	private AtomicLong published = new AtomicLong(0L);
+	private AtomicLong shedItems = new AtomicLong(0L);
+	
+	/**
+	 * @param bufferSize number of slots, rounded up to a power of 2
+	 * @param waitStrategy one of blocking, sleeping, yielding, busySpin
+	 */
+	public RingBufferEngine(int bufferSize, String waitStrategy, float highWatermark, float lowWatermark,
+			ItemQueue.OverflowPolicy policy) {
+		
+		this.bufferSize = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+		this.highWatermark = (int) (highWatermark * this.bufferSize);
+		this.lowWatermark = (int) (lowWatermark * this.bufferSize);
+		
+		this.shed = (policy == ItemQueue.OverflowPolicy.SHED);
+		if(policy == ItemQueue.OverflowPolicy.SPILL) {
+			logger.error("SPILL policy is not supported by the ring buffer engine. Producers will block instead.");
+		}
+		
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger id = new AtomicInteger(0);
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "RingBufferStage_" + id.getAndIncrement());
+			}
+		});
+		
+		this.disruptor = new Disruptor<ItemEvent>(FACTORY, this.bufferSize, executor, ProducerType.MULTI,
+				getWaitStrategy(waitStrategy));
+		
+		this.disruptor.setDefaultExceptionHandler(new ExceptionHandler<ItemEvent>() {
+			@Override
+			public void handleEventException(Throwable ex, long sequence, ItemEvent event) {
+				logger.error("Exception while handling item " + (event.item == null ? null : event.item.getId()), ex);
+			}
+			
+			@Override
+			public void handleOnStartException(Throwable ex) {
+				logger.error("Exception during ring buffer start.", ex);
+			}
+			
+			@Override
+			public void handleOnShutdownException(Throwable ex) {
+				logger.error("Exception during ring buffer shutdown.", ex);
+			}
+		});
+		
+		logger.info("Ring buffer engine initialized. Buffer size: " + this.bufferSize + ", wait strategy: " + waitStrategy);
+	}
+	
+	private static WaitStrategy getWaitStrategy(String name) {
+		if("sleeping".equalsIgnoreCase(name)) {
+			return new SleepingWaitStrategy();
+		}
+		else if("yielding".equalsIgnoreCase(name)) {
+			return new YieldingWaitStrategy();
+		}
+		else if("busySpin".equalsIgnoreCase(name)) {
+			return new BusySpinWaitStrategy();
+		}
+		return new BlockingWaitStrategy();
+	}
+	
+	/**
+	 * Items are acknowledged to the journal once every storage handler has stored them.
+	 * Items that a storage failed to store stay pending, and are replayed on restart.
+	 */
+	public void setJournal(ItemJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Wires the stages and starts the ring buffer.
+	 *
+	 * @param filters the filters used by each filter worker
+	 * @param processors the processors used by each processor worker
+	 * @param storages the storages, each one used by a single handler thread
+	 */
+	public void start(List<List<ItemFilter>> filters, List<List<Processor>> processors, List<Storage> storages, int batchSize) {
+		
+		FilterWorker[] filterWorkers = new FilterWorker[filters.size()];
+		for(int i = 0; i < filterWorkers.length; i++) {
+			filterWorkers[i] = new FilterWorker(filters.get(i));
+		}
+		
+		ProcessorWorker[] processorWorkers = new ProcessorWorker[processors.size()];
+		for(int i = 0; i < processorWorkers.length; i++) {
+			processorWorkers[i] = new ProcessorWorker(processors.get(i));
+		}
+		
+		for(Storage storage : storages) {
+			storageHandlers.add(new StorageEventHandler(storage, batchSize));
+		}
+		
+		disruptor.handleEventsWithWorkerPool(filterWorkers)
+			.thenHandleEventsWithWorkerPool(processorWorkers)
+			.then(storageHandlers.toArray(new StorageEventHandler[storageHandlers.size()]))
+			.then(new ClearingHandler());
+		
+		ringBuffer = disruptor.start();
+		
+		logger.info("Ring buffer started with " + filterWorkers.length + " filter workers, " + processorWorkers.length
+				+ " processor workers and " + storageHandlers.size() + " storage handlers.");
+	}
+	
+	/**
+	 * Publishes an item to the ring buffer. Unless items are shed, waits for a free slot while the ring buffer is open.
+	 *
+	 * @return false if the item has been dropped
+	 */
+	public boolean offer(Item item) {
+		if(closed) {
+			return false;
+		}
+		
+		if(shed) {
+			int used = bufferSize - (int) ringBuffer.remainingCapacity();
+			if((used >= highWatermark && !item.isOriginal()) || !ringBuffer.tryPublishEvent(TRANSLATOR, item)) {
+				shedItems.incrementAndGet();
+				return false;
+			}
+		}
+		else {
+			// publishEvent would wait forever for a slot once close() has halted the workers
+			while(!ringBuffer.tryPublishEvent(TRANSLATOR, item)) {
+				if(closed) {
+					return false;
+				}
+				LockSupport.parkNanos(PUBLISH_PARK_NANOS);
+			}
+		}
+		
+		published.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * @return number of items in the ring buffer, in any stage
+	 */
+	public int size() {
+		return bufferSize - (int) ringBuffer.remainingCapacity();
+	}
+	
+	/**
+	 * @return the fraction of the ring buffer that is in use (0 to 1.0f)
+	 */
+	public float getLoad() {
+		return (float) (bufferSize - ringBuffer.remainingCapacity()) / (float) bufferSize;
+	}
+	
+	public boolean isAboveHighWatermark() {
+		return (bufferSize - ringBuffer.remainingCapacity()) >= highWatermark;
+	}
+	
+	public boolean isBelowLowWatermark() {
+		return (bufferSize - ringBuffer.remainingCapacity()) <= lowWatermark;
+	}
+	
+	/**
+	 * Waits until all published items pass through every stage and stops the stage threads.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			disruptor.shutdown(30, TimeUnit.SECONDS);
+		} catch (TimeoutException e) {
+			logger.error("Ring buffer did not drain in time. Halting.");
+			disruptor.halt();
+		}
+		executor.shutdown();
+	}
+	
+	public String status() {
+		StringBuffer sb = new StringBuffer();
+		sb.append(published.get() + " items published to the ring buffer (load: " + Math.round(100 * getLoad()) + "%). ");
+		sb.append(shedItems.get() + " items shed.");
+		for(StorageEventHandler handler : storageHandlers) {
+			sb.append(" " + handler.storage.getStorageName() + ": " + handler.stored + " stored in "
+					+ handler.batches + " batches.");
+		}
+		return sb.toString();
+	}
+	
+	private static class FilterWorker implements WorkHandler<ItemEvent> {
+		
+		private List<ItemFilter> filters;
+		private Histogram[] latency;
+		
+		public FilterWorker(List<ItemFilter> filters) {
+			this.filters = filters;
+			this.latency = new Histogram[filters.size()];
+			for(int i = 0; i < latency.length; i++) {
+				latency[i] = Metrics.stageLatency("filter", filters.get(i).name());
+			}
+		}
+		
+		@Override
+		public void onEvent(ItemEvent event) {
+			for(int i = 0; i < latency.length; i++) {
+				long t = System.nanoTime();
+				boolean accepted = filters.get(i).accept(event.item);
+				latency[i].recordSince(t);
+				
+				if(!accepted) {
+					event.accepted = false;
+					return;
+				}
+			}
+			event.accepted = true;
+		}
+	}
+	
+	private static class ProcessorWorker implements WorkHandler<ItemEvent> {
+		
+		private List<Processor> processors;
+		private Histogram[] latency;
+		
+		public ProcessorWorker(List<Processor> processors) {
+			this.processors = processors;
+			this.latency = new Histogram[processors.size()];
+			for(int i = 0; i < latency.length; i++) {
+				latency[i] = Metrics.stageLatency("processor", processors.get(i).name());
+			}
+		}
+		
+		@Override
+		public void onEvent(ItemEvent event) {
+			if(!event.accepted) {
+				return;
+			}
+			
+			for(int i = 0; i < latency.length; i++) {
+				long t = System.nanoTime();
+				processors.get(i).process(event.item);
+				latency[i].recordSince(t);
+			}
+		}
+	}
+	
+	private class StorageEventHandler implements EventHandler<ItemEvent> {
+		
+		private Storage storage;
+		private int batchSize;
+		private Histogram latency;
+		
+		// reused between batches
+		private List<Item> batch;
+		private List<ItemEvent> events;
+		
+		private volatile long stored = 0L;
+		private volatile long batches = 0L;
+		
+		public StorageEventHandler(Storage storage, int batchSize) {
+			this.storage = storage;
+			this.batchSize = Math.max(1, batchSize);
+			this.batch = new ArrayList<Item>(this.batchSize);
+			this.events = new ArrayList<ItemEvent>(this.batchSize);
+			this.latency = Metrics.stageLatency("storage", storage.getStorageName());
+		}
+		
+		@Override
+		public void onEvent(ItemEvent event, long sequence, boolean endOfBatch) {
+			if(event.accepted) {
+				batch.add(event.item);
+				events.add(event);
+			}
+			
+			if(endOfBatch || batch.size() >= batchSize) {
+				flush();
+			}
+		}
+		
+		private void flush() {
+			if(batch.isEmpty()) {
+				return;
+			}
+			
+			long t = System.nanoTime();
+			try {
+				StorageUtils.store(storage, batch);
+				stored += batch.size();
+				batches++;
+				latency.recordSince(t);
+			}
+			catch(IOException e) {
+				logger.error("Failed to store " + batch.size() + " items to " + storage.getStorageName(), e);
+				for(ItemEvent event : events) {
+					event.failed = true;
+				}
+			}
+			finally {
+				batch.clear();
+				events.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Releases the item of a slot once every storage handler has seen it.
+	 */
+	private class ClearingHandler implements EventHandler<ItemEvent> {
+		
+		@Override
+		public void onEvent(ItemEvent event, long sequence, boolean endOfBatch) {
+			if(journal != null && event.item != null && !event.failed) {
+				journal.ackAll(event.item);
+			}
+			event.item = null;
+			event.accepted = false;
+			event.failed = false;
+		}
+	}
+}
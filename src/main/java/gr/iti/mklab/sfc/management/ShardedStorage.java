@@ -0,0 +1,178 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.storages.BatchStorage;
+import gr.iti.mklab.sfc.storages.Storage;
+import gr.iti.mklab.sfc.storages.StorageUtils;
+
+/**
+ * Routes the items of a sharded storage to its shards, by consistent hash of the item id.
+ *
+ * Each shard is a separate instance of the storage, with its own connection, so writes are not
+ * serialized on a single instance. An item always goes to the same shard, so the updates of an item
+ * are stored in order. Changing the number of shards moves only a fraction of the ids to other shards.
+ *
+ * 	storage.shards: number of instances of the storage (default 1, not sharded)
+ *
+ * The other shards are created with a copy of the configuration of the storage, where storage.shard is
+ * the number of the shard. Storages that keep local files append it to their paths (see
+ * {@link #getShardPath(Configuration, String)}), so that shards do not write to the same files.
+ *
+ * Item states are stored by the first shard.
+ *
+ */
+public class ShardedStorage implements BatchStorage {
+	
+	public static final String SHARDS = "storage.shards";
+	public static final String SHARD = "storage.shard";
+	
+	private static final HashFunction HASH = Hashing.murmur3_128();
+	
+	private String name;
+	
+	// one instance, view or lane per shard
+	private List<Storage> shards;
+	
+	public ShardedStorage(String name, List<Storage> shards) {
+		if(shards == null || shards.isEmpty()) {
+			throw new IllegalArgumentException("A sharded storage needs at least one shard.");
+		}
+		
+		this.name = name;
+		this.shards = shards;
+	}
+	
+	/**
+	 * @return the number of shards requested in the configuration of a storage
+	 */
+	public static int getShards(Configuration config) {
+		return Math.max(1, Integer.parseInt(config.getParameter(SHARDS, "1")));
+	}
+	
+	/**
+	 * @return a copy of the configuration of a storage, for the instance of the given shard
+	 */
+	public static Configuration getShardConfig(Configuration config, int shard) {
+		Configuration shardConfig = SerializationUtils.clone(config);
+		shardConfig.setParameter(SHARD, Integer.toString(shard));
+		return shardConfig;
+	}
+	
+	/**
+	 * @return the path of a local file or directory of a storage, suffixed with the number of its
+	 * 	shard unless it is the first one
+	 */
+	public static String getShardPath(Configuration config, String path) {
+		int shard = Integer.parseInt(config.getParameter(SHARD, "0"));
+		return (shard == 0 || path == null) ? path : path + "-" + shard;
+	}
+	
+	/**
+	 * @return the shard of an item id, among the given number of shards
+	 */
+	public static int getShard(String id, int shards) {
+		if(shards <= 1 || id == null) {
+			return 0;
+		}
+		return Hashing.consistentHash(HASH.hashString(id, StandardCharsets.UTF_8), shards);
+	}
+	
+	/**
+	 * @return the name of a shard, used for its lane, circuit breaker and metrics
+	 */
+	public static String getShardName(String name, int shard) {
+		return name + "-" + shard;
+	}
+	
+	@Override
+	public void store(Item item) throws IOException {
+		shards.get(getShard(item.getId(), shards.size())).store(item);
+	}
+	
+	/**
+	 * Splits a batch per shard, keeping the order of the items. A failed shard does not prevent
+	 * the others from storing their part of the batch.
+	 */
+	@Override
+	public void store(List<Item> items) throws IOException {
+		if(shards.size() == 1) {
+			StorageUtils.store(shards.get(0), items);
+			return;
+		}
+		
+		List<List<Item>> batches = new ArrayList<List<Item>>(shards.size());
+		for(int i = 0; i < shards.size(); i++) {
+			batches.add(new ArrayList<Item>());
+		}
+		for(Item item : items) {
+			batches.get(getShard(item.getId(), shards.size())).add(item);
+		}
+		
+		IOException failure = null;
+		for(int i = 0; i < shards.size(); i++) {
+			try {
+				StorageUtils.store(shards.get(i), batches.get(i));
+			}
+			catch(IOException e) {
+				failure = e;
+			}
+		}
+		
+		if(failure != null) {
+			throw failure;
+		}
+	}
+	
+	@Override
+	public void store(ItemState itemState) {
+		shards.get(0).store(itemState);
+	}
+	
+	@Override
+	public boolean delete(String id) throws IOException {
+		return shards.get(getShard(id, shards.size())).delete(id);
+	}
+	
+	@Override
+	public boolean open() {
+		boolean open = true;
+		for(Storage shard : shards) {
+			open &= shard.open();
+		}
+		return open;
+	}
+	
+	@Override
+	public void close() {
+		for(Storage shard : shards) {
+			shard.close();
+		}
+	}
+	
+	@Override
+	public boolean checkStatus() {
+		boolean status = true;
+		for(Storage shard : shards) {
+			status &= shard.checkStatus();
+		}
+		return status;
+	}
+	
+	@Override
+	public String getStorageName() {
+		return name;
+	}
+
+}
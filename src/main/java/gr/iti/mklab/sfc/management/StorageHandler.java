@@ -1,13 +1,17 @@
 package gr.iti.mklab.sfc.management;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.Logger;
@@ -17,7 +21,11 @@ import gr.iti.mklab.framework.common.domain.config.Configuration;
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.ItemState;
 import gr.iti.mklab.sfc.filters.ItemFilter;
+import gr.iti.mklab.sfc.metrics.Counter;
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Metrics;
 import gr.iti.mklab.sfc.processors.Processor;
+import gr.iti.mklab.sfc.storages.SegmentStorage;
 import gr.iti.mklab.sfc.storages.Storage;
 import gr.iti.mklab.sfc.streams.StreamException;
 import gr.iti.mklab.sfc.streams.StreamsManagerConfiguration;
@@ -33,20 +41,86 @@ public class StorageHandler implements Runnable {
 	
 	public final Logger logger = LogManager.getLogger(StorageHandler.class);
 	
-	// Internal queue used as a buffer of incoming items 
-	private BlockingQueue<Item> queue = new LinkedBlockingDeque<Item>();
+	private static final String QUEUE_CAPACITY = "queue.capacity";
+	private static final String QUEUE_POLICY = "queue.policy";
+	private static final String QUEUE_HIGH_WATERMARK = "queue.highWatermark";
+	private static final String QUEUE_LOW_WATERMARK = "queue.lowWatermark";
+	private static final String QUEUE_SPILL_DIRECTORY = "queue.spillDirectory";
 	
-	private int numberOfConsumers = 16;
-	private List<Consumer> consumers = new ArrayList<Consumer>(numberOfConsumers);
+	private static final String ENGINE = "storageHandler.engine";
+	
+	private static final String JOURNAL_ENABLED = "journal.enabled";
+	private static final String JOURNAL_DIRECTORY = "journal.directory";
+	private static final String JOURNAL_SEGMENT_SIZE = "journal.segmentSize";
+	private static final String JOURNAL_FLUSH_INTERVAL = "journal.flushInterval";
+	
+	private static final String CONSUMERS_BATCH_SIZE = "consumers.batchSize";
+	private static final String CONSUMERS_BATCH_WAIT = "consumers.batchWait";
+	private static final String CONSUMERS_MIN = "consumers.min";
+	private static final String CONSUMERS_MAX = "consumers.max";
+	private static final String CONSUMERS_ADAPT_INTERVAL = "consumers.adaptInterval";
+	
+	private static final String STORAGE_LANES = "storage.lanes";
+	
+	// Internal bounded queue used as a buffer of incoming items 
+	private ItemQueue queue;
+	
+	// Ring buffer used instead of the queue and the consumers, if the disruptor engine is selected
+	private RingBufferEngine ringBuffer = null;
+	private int ringBufferWorkers = 4;
+	
+	// Write-ahead log of handled items. Null if disabled
+	private ItemJournal journal = null;
+	
+	// Consumers are added and retired by the pool, within [minConsumers, maxConsumers]
+	private int minConsumers = Runtime.getRuntime().availableProcessors();
+	private int maxConsumers = 4 * Runtime.getRuntime().availableProcessors();
+	private long adaptInterval = 10000;
+	
+	private volatile AdaptiveConsumerPool consumerPool = null;
+	private int createdConsumers = 0;
+	
+	// PER_THREAD instances created for each consumer, released when the consumer is retired
+	private Map<Consumer, List<Object>> consumerInstances = new IdentityHashMap<Consumer, List<Object>>();
+	
+	// Micro-batching of consumers. A batch size of 1 disables batching
+	private int batchSize = 1;
+	private long batchWait = 100;
 	
 	private List<Storage> storages = new ArrayList<Storage>();
 	
+	// primary instance of each storage, by its id in the configuration
+	private Map<String, Storage> storageIds = new HashMap<String, Storage>();
+	
+	// Asynchronous writer per storage. Empty if consumers write to the storages directly 
+	private boolean useLanes = true;
+	private List<StorageLane> lanes = new ArrayList<StorageLane>();
+	// what consumers write to: a lane per storage, or a router over the lanes of its shards
+	private List<Storage> laneStorages = new ArrayList<Storage>();
+	
+	// Instances of each sharded storage, in shard order. The first one is the storage itself
+	private Map<Storage, List<Storage>> shards = new IdentityHashMap<Storage, List<Storage>>();
+	
+	// Circuit breaker of each storage, shared by its views. Null values if disabled
+	private Map<Storage, CircuitBreaker> breakers = new IdentityHashMap<Storage, CircuitBreaker>();
+	
 	private List<ItemFilter> filters = new ArrayList<ItemFilter>();
 	private List<Processor> processors = new ArrayList<Processor>();
 	
+	// All instances, including the ones created for PER_THREAD stages
+	private List<ItemFilter> filterInstances = new CopyOnWriteArrayList<ItemFilter>();
+	private List<Storage> storageInstances = new CopyOnWriteArrayList<Storage>();
+	
+	// Configuration of each filter, processor and storage instance 
+	private Map<Object, Configuration> configurations = Collections.synchronizedMap(new IdentityHashMap<Object, Configuration>());
+	
 	private Map<String, Boolean> workingStatuses = new HashMap<String, Boolean>();
 	
 	private AtomicLong handled = new AtomicLong(0L);
+	private AtomicLong dropped = new AtomicLong(0L);
+	
+	// items received from each source (Twitter, Youtube, etc.)
+	private ConcurrentMap<String, Counter> itemsPerSource = new ConcurrentHashMap<String, Counter>();
 	
 	enum StorageHandlerState {
 		OPEN, CLOSE
@@ -60,6 +134,19 @@ public class StorageHandler implements Runnable {
 		try {	
 			state = StorageHandlerState.OPEN;
 			
+			createQueue(config);
+			createJournal(config);
+			
+			batchSize = Integer.parseInt(config.getParameter(CONSUMERS_BATCH_SIZE, "1"));
+			batchWait = Long.parseLong(config.getParameter(CONSUMERS_BATCH_WAIT, "100"));
+			logger.info("Consumers batch size: " + batchSize + ", batch wait: " + batchWait + " ms");
+			
+			minConsumers = Integer.parseInt(config.getParameter(CONSUMERS_MIN, Integer.toString(minConsumers)));
+			maxConsumers = Integer.parseInt(config.getParameter(CONSUMERS_MAX, Integer.toString(maxConsumers)));
+			adaptInterval = Long.parseLong(config.getParameter(CONSUMERS_ADAPT_INTERVAL, Long.toString(adaptInterval)));
+			
+			useLanes = Boolean.parseBoolean(config.getParameter(STORAGE_LANES, "true"));
+			
 			createFilters(config);
 			logger.info(filters.size() + " filters initialized!");
 			
@@ -68,6 +155,8 @@ public class StorageHandler implements Runnable {
 			
 			initializeStorageHandler(config);	
 			
+			registerMetrics();
+			
 			statusThread = new Thread(this);	
 			
 		} catch (StreamException e) {
@@ -83,29 +172,184 @@ public class StorageHandler implements Runnable {
 	 * Starts the consumer threads responsible for storing items to the database.
 	 */
 	public void start() {
-		for(int i = 0; i < numberOfConsumers; i++) {
-			Consumer consumer = new Consumer(queue, storages, filters, processors);
-			consumers.add(consumer);
+		if(ringBuffer != null) {
+			ringBuffer.setJournal(journal);
+			startRingBuffer();
 		}
-		
-		for(Consumer consumer : consumers) {
-			consumer.start();
+		else {
+			if(useLanes) {
+				createLanes();
+			}
+			
+			consumerPool = new AdaptiveConsumerPool(this, queue, minConsumers, maxConsumers, adaptInterval);
+			consumerPool.start();
 		}
-		logger.info(consumers.size() + " consumers initialized.");
 		
 		statusThread.start();
+		
+		if(journal != null) {
+			Thread replay = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					journal.replay(StorageHandler.this);
+				}
+			});
+			replay.setName("JournalReplay");
+			replay.start();
+		}
+		
+		replaySegments();
+	}
+	
+	/**
+	 * Rebuilds the storages named by a segment storage from its log, in a background thread.
+	 */
+	private void replaySegments() {
+		for(Storage storage : storages) {
+			if(!(storage instanceof SegmentStorage) || ((SegmentStorage) storage).getReplayTargets().isEmpty()) {
+				continue;
+			}
+			
+			final SegmentStorage segmentStorage = (SegmentStorage) storage;
+			final Map<String, Storage> targets = new HashMap<String, Storage>();
+			for(String storageId : segmentStorage.getReplayTargets()) {
+				Storage target = storageIds.get(storageId);
+				if(target == null || target == storage) {
+					logger.error("Cannot replay " + storage.getStorageName() + " to storage " + storageId + ": no such storage.");
+					continue;
+				}
+				targets.put(storageId, getStorageView(target, false, null));
+			}
+			
+			Thread replay = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					segmentStorage.replay(targets);
+				}
+			});
+			replay.setName("SegmentReplay");
+			replay.start();
+		}
 	}
 
+	/**
+	 * Creates a consumer with its own view of the filters, processors and storages. 
+	 * Called by the consumer pool.
+	 */
+	synchronized Consumer newConsumer() {
+		boolean first = (createdConsumers++ == 0);
+		List<Object> created = new ArrayList<Object>();
+		Consumer consumer = new Consumer(queue, getConsumerStorages(first, created), getConsumerFilters(first, created), 
+				getConsumerProcessors(first, created), batchSize, batchWait);
+		consumer.setJournal(journal, lanes.isEmpty());
+		
+		if(!created.isEmpty()) {
+			consumerInstances.put(consumer, created);
+		}
+		return consumer;
+	}
+	
+	/**
+	 * Closes and forgets the PER_THREAD instances created for a retired consumer, once it has finished 
+	 * its last batch. Called by the consumer pool.
+	 */
+	void releaseConsumer(Consumer consumer) {
+		List<Object> created;
+		synchronized(this) {
+			created = consumerInstances.get(consumer);
+		}
+		if(created == null) {
+			return;
+		}
+		
+		try {
+			if(!consumer.join(10000)) {
+				logger.warn(consumer.getName() + " is still running. Its instances are closed when the handler stops.");
+				return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		
+		synchronized(this) {
+			consumerInstances.remove(consumer);
+		}
+		for(Object instance : created) {
+			if(instance instanceof Storage) {
+				storageInstances.remove(instance);
+				((Storage) instance).close();
+			}
+			else if(instance instanceof ItemFilter) {
+				filterInstances.remove(instance);
+			}
+			configurations.remove(instance);
+		}
+	}
+	
 	public void handle(Item item) {
 		try {
-			handled.incrementAndGet();
-			queue.add(item);
+			append(item);
+		}
+		catch(IOException e) {
+			logger.error("Failed to write item " + item.getId() + " to the journal.", e);
+		}
+	}
+	
+	/**
+	 * Appends an item to the journal, if any, and passes it to the consumers. 
+	 * Used by the journal to replay the items of a previous run.
+	 * 
+	 * @throws IOException if the item cannot be written to the journal. It is passed to the consumers anyway.
+	 */
+	void append(Item item) throws IOException {
+		countSource(item);
+		
+		IOException failure = null;
+		if(journal != null) {
+			try {
+				journal.append(item);
+			}
+			catch(IOException e) {
+				failure = e;
+			}
+		}
+		
+		try {
+			boolean accepted = (ringBuffer != null) ? ringBuffer.offer(item) : queue.offer(item);
+			if(accepted) {
+				handled.incrementAndGet();
+			}
+			else {
+				dropped.incrementAndGet();
+				if(journal != null) {
+					journal.ackAll(item);
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			dropped.incrementAndGet();
+			Thread.currentThread().interrupt();
 		}
 		catch(Exception e) {
 			logger.error(e);
 		}
+		
+		if(failure != null) {
+			throw failure;
+		}
 	}
 
+	private void countSource(Item item) {
+		String source = (item.getSource() == null) ? "unknown" : item.getSource();
+		Counter counter = itemsPerSource.get(source);
+		if(counter == null) {
+			counter = Metrics.counter("sfc_items_received_total", "source", source);
+			itemsPerSource.putIfAbsent(source, counter);
+		}
+		counter.increment();
+	}
+	
 	public void handle(Item[] items) {
 		for (Item item : items) {
 			handle(item);
@@ -120,7 +364,15 @@ public class StorageHandler implements Runnable {
 	
 	private void handle(ItemState itemState) {
 		for(Storage storage : storages) {
-			storage.store(itemState);
+			if(getThreadSafety(storage) == ThreadSafety.Policy.THREAD_SAFE) {
+				storage.store(itemState);
+			}
+			else {
+				// same monitor as the one used by the consumers of a shared storage
+				synchronized(storage) {
+					storage.store(itemState);
+				}
+			}
 		}
 		
 	}
@@ -131,16 +383,146 @@ public class StorageHandler implements Runnable {
 		}
 	}
 
+	/**
+	 * @return the fraction of the ingest buffer that is in use (0 to 1.0f)
+	 */
+	public float getQueueLoad() {
+		return (ringBuffer != null) ? ringBuffer.getLoad() : queue.getLoad();
+	}
+	
+	/**
+	 * Producers that can slow down (e.g. polling streams) should check this 
+	 * before fetching more items. 
+	 * 
+	 * @return true if the ingest buffer is above its high watermark
+	 */
+	public boolean isOverloaded() {
+		return (ringBuffer != null) ? ringBuffer.isAboveHighWatermark() : queue.isAboveHighWatermark();
+	}
+	
+	/**
+	 * Waits until the ingest buffer drains below its low watermark.
+	 * 
+	 * @param maxWait maximum waiting time in milliseconds
+	 * @return true if the buffer drained within the given time
+	 */
+	public boolean awaitCapacity(long maxWait) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + maxWait;
+		while(ringBuffer != null ? !ringBuffer.isBelowLowWatermark() : !queue.isBelowLowWatermark()) {
+			if(state != StorageHandlerState.OPEN || System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(100);
+		}
+		return true;
+	}
+	
 	public void delete(String id) {
-		for(Storage storage : storages) {
+		for(Storage shardedStorage : storages) {
+			Storage storage = getShard(shardedStorage, id);
 			try {
-				storage.delete(id);
+				if(getThreadSafety(storage) == ThreadSafety.Policy.THREAD_SAFE) {
+					storage.delete(id);
+				}
+				else {
+					synchronized(storage) {
+						storage.delete(id);
+					}
+				}
 			} catch (IOException e) {
 				logger.error(e);
 			}	
 		}
 	}
 	
+	/**
+	 * Exports the depth of the ingest buffer and the totals of the handler.
+	 */
+	private void registerMetrics() {
+		Metrics.gauge("sfc_queue_depth", new Gauge() {
+			@Override
+			public double getValue() {
+				return (ringBuffer != null) ? ringBuffer.size() : queue.size();
+			}
+		});
+		
+		Metrics.gauge("sfc_queue_load", new Gauge() {
+			@Override
+			public double getValue() {
+				return getQueueLoad();
+			}
+		});
+		
+		if(queue != null) {
+			Metrics.gauge("sfc_queue_spilled", new Gauge() {
+				@Override
+				public double getValue() {
+					return queue.spilledSize();
+				}
+			});
+		}
+		
+		Metrics.gauge("sfc_items_handled_total", new Gauge() {
+			@Override
+			public double getValue() {
+				return handled.get();
+			}
+		});
+		
+		Metrics.gauge("sfc_items_dropped_total", new Gauge() {
+			@Override
+			public double getValue() {
+				return dropped.get();
+			}
+		});
+		
+		Metrics.gauge("sfc_consumers", new Gauge() {
+			@Override
+			public double getValue() {
+				AdaptiveConsumerPool pool = consumerPool;
+				return (pool == null) ? 0 : pool.getConsumers().size();
+			}
+		});
+		
+		if(journal != null) {
+			Metrics.gauge("sfc_journal_pending", new Gauge() {
+				@Override
+				public double getValue() {
+					return journal.getPending();
+				}
+			});
+		}
+	}
+	
+	private void createQueue(StreamsManagerConfiguration config) throws StreamException {
+		try {
+			int capacity = Integer.parseInt(config.getParameter(QUEUE_CAPACITY, "100000"));
+			float highWatermark = Float.parseFloat(config.getParameter(QUEUE_HIGH_WATERMARK, "0.8"));
+			float lowWatermark = Float.parseFloat(config.getParameter(QUEUE_LOW_WATERMARK, "0.5"));
+			
+			ItemQueue.OverflowPolicy policy = ItemQueue.OverflowPolicy.valueOf(
+					config.getParameter(QUEUE_POLICY, "BLOCK").toUpperCase());
+			
+			String engine = config.getParameter(ENGINE, "queue");
+			if("disruptor".equalsIgnoreCase(engine)) {
+				int bufferSize = Integer.parseInt(config.getParameter(RingBufferEngine.BUFFER_SIZE, "65536"));
+				String waitStrategy = config.getParameter(RingBufferEngine.WAIT_STRATEGY, "blocking");
+				ringBufferWorkers = Integer.parseInt(config.getParameter(RingBufferEngine.WORKERS, "4"));
+				
+				ringBuffer = new RingBufferEngine(bufferSize, waitStrategy, highWatermark, lowWatermark, policy);
+				return;
+			}
+			
+			File spillDirectory = new File(config.getParameter(QUEUE_SPILL_DIRECTORY, 
+					System.getProperty("java.io.tmpdir")));
+			
+			queue = new ItemQueue(capacity, highWatermark, lowWatermark, policy, spillDirectory);
+		}
+		catch(Exception e) {
+			throw new StreamException("Error during queue initialization", e);
+		}
+	}
+	
 	/**
 	 * Initializes the databases that are going to be used in the service
 	 */
@@ -154,6 +536,10 @@ public class StorageHandler implements Runnable {
 				Storage storageInstance = (Storage) constructor.newInstance(storageConfig);
 				
 				storages.add(storageInstance);
+				storageIds.put(storageId, storageInstance);
+				storageInstances.add(storageInstance);
+				configurations.put(storageInstance, storageConfig);
+				logger.info("Storage " + storageId + " thread safety: " + getThreadSafety(storageInstance));
 				
 				if(storageInstance.open()) {
 					logger.info("Storage " + storageId + " is working.");
@@ -164,6 +550,8 @@ public class StorageHandler implements Runnable {
 					workingStatuses.put(storageId, false);	
 				}
 				
+				createShards(storageId, storageInstance);
+				
 			} catch (Exception e) {
 				StreamException ex = new StreamException("Error during storage initialization", e);
 				logger.error(ex);
@@ -182,6 +570,9 @@ public class StorageHandler implements Runnable {
 				ItemFilter filterInstance = (ItemFilter) constructor.newInstance(fconfig);
 			
 				filters.add(filterInstance);
+				filterInstances.add(filterInstance);
+				configurations.put(filterInstance, fconfig);
+				logger.info("Filter " + filterId + " thread safety: " + getThreadSafety(filterInstance));
 			}
 			catch(Exception e) {
 				logger.error("Error during filter " + filterId + "initialization", e);
@@ -199,6 +590,8 @@ public class StorageHandler implements Runnable {
 				Processor processorInstance = (Processor) constructor.newInstance(pconfig);
 			
 				processors.add(processorInstance);
+				configurations.put(processorInstance, pconfig);
+				logger.info("Processor " + processorId + " thread safety: " + getThreadSafety(processorInstance));
 			}
 			catch(Exception e) {
 				e.printStackTrace();
@@ -207,18 +600,343 @@ public class StorageHandler implements Runnable {
 		}
 	}
 	
+	/**
+	 * Creates the other instances of a storage declared with more than one shard. 
+	 * Each shard has its own instance, and thus its own connection, and its own configuration,
+	 * so that storages with local files give each shard its own paths.
+	 */
+	private void createShards(String storageId, Storage storage) throws Exception {
+		int count = ShardedStorage.getShards(configurations.get(storage));
+		if(count <= 1) {
+			return;
+		}
+		
+		List<Storage> instances = new ArrayList<Storage>(count);
+		instances.add(storage);
+		for(int i = 1; i < count; i++) {
+			Storage instance = newInstance(storage, ShardedStorage.getShardConfig(configurations.get(storage), i));
+			if(!instance.open()) {
+				logger.error("Shard " + i + " of storage " + storageId + " is not working.");
+			}
+			storageInstances.add(instance);
+			instances.add(instance);
+		}
+		shards.put(storage, instances);
+		logger.info("Storage " + storageId + " is sharded in " + count + " instances.");
+	}
+	
+	/**
+	 * @return the instance of a sharded storage that stores the given item id
+	 */
+	private Storage getShard(Storage storage, String id) {
+		List<Storage> instances = shards.get(storage);
+		if(instances == null) {
+			return storage;
+		}
+		return instances.get(ShardedStorage.getShard(id, instances.size()));
+	}
+	
+	/**
+	 * @return the thread safety policy of a filter, processor or storage. The configuration 
+	 * 	overrides the policy declared by the class. Undeclared classes are THREAD_CONFINED.
+	 */
+	private ThreadSafety.Policy getThreadSafety(Object stage) {
+		Configuration config = configurations.get(stage);
+		String policy = (config == null) ? null : config.getParameter(ThreadSafety.PARAMETER);
+		if(policy != null) {
+			return ThreadSafety.Policy.valueOf(policy.trim().toUpperCase());
+		}
+		
+		ThreadSafety threadSafety = stage.getClass().getAnnotation(ThreadSafety.class);
+		if(threadSafety == null) {
+			return ThreadSafety.Policy.THREAD_CONFINED;
+		}
+		return threadSafety.value();
+	}
+	
+	/**
+	 * Creates a new instance of a PER_THREAD stage, using the configuration of the given one.
+	 */
+	private <T> T newInstance(T stage) throws Exception {
+		return newInstance(stage, configurations.get(stage));
+	}
+	
+	/**
+	 * Creates a new instance of a stage with the given configuration.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T newInstance(T stage, Configuration config) throws Exception {
+		Constructor<?> constructor = stage.getClass().getConstructor(Configuration.class);
+		T instance = (T) constructor.newInstance(config);
+		configurations.put(instance, config);
+		
+		return instance;
+	}
+	
+	/**
+	 * @param created collects the new PER_THREAD instances, if not null
+	 */
+	private List<ItemFilter> getConsumerFilters(boolean first, List<Object> created) {
+		List<ItemFilter> consumerFilters = new ArrayList<ItemFilter>();
+		for(ItemFilter filter : filters) {
+			ThreadSafety.Policy policy = getThreadSafety(filter);
+			if(policy == ThreadSafety.Policy.THREAD_SAFE || (policy == ThreadSafety.Policy.PER_THREAD && first)) {
+				consumerFilters.add(filter);
+				continue;
+			}
+			
+			if(policy == ThreadSafety.Policy.PER_THREAD) {
+				try {
+					ItemFilter instance = newInstance(filter);
+					filterInstances.add(instance);
+					consumerFilters.add(instance);
+					if(created != null) {
+						created.add(instance);
+					}
+					continue;
+				}
+				catch(Exception e) {
+					logger.error("Cannot create a new instance of " + filter.name() + ". Share the existing one.", e);
+				}
+			}
+			consumerFilters.add(SynchronizedStages.synchronizedFilter(filter));
+		}
+		return consumerFilters;
+	}
+	
+	private List<Processor> getConsumerProcessors(boolean first, List<Object> created) {
+		List<Processor> consumerProcessors = new ArrayList<Processor>();
+		for(Processor processor : processors) {
+			ThreadSafety.Policy policy = getThreadSafety(processor);
+			if(policy == ThreadSafety.Policy.THREAD_SAFE || (policy == ThreadSafety.Policy.PER_THREAD && first)) {
+				consumerProcessors.add(processor);
+				continue;
+			}
+			
+			if(policy == ThreadSafety.Policy.PER_THREAD) {
+				try {
+					Processor instance = newInstance(processor);
+					consumerProcessors.add(instance);
+					if(created != null) {
+						created.add(instance);
+					}
+					continue;
+				}
+				catch(Exception e) {
+					logger.error("Cannot create a new instance of " + processor.getClass().getName() + ". Share the existing one.", e);
+				}
+			}
+			consumerProcessors.add(SynchronizedStages.synchronizedProcessor(processor));
+		}
+		return consumerProcessors;
+	}
+	
+	private List<Storage> getConsumerStorages(boolean first, List<Object> created) {
+		if(!laneStorages.isEmpty()) {
+			// lanes are shared by all consumers
+			return new ArrayList<Storage>(laneStorages);
+		}
+		
+		List<Storage> consumerStorages = new ArrayList<Storage>();
+		for(Storage storage : storages) {
+			consumerStorages.add(getStorageView(storage, first, created));
+		}
+		return consumerStorages;
+	}
+	
+	/**
+	 * @return the instance of a storage that a single thread (consumer or lane writer) should use,
+	 * 	guarded by the circuit breaker of the storage. A sharded storage is a router over a view of each shard.
+	 */
+	private Storage getStorageView(Storage storage, boolean first, List<Object> created) {
+		List<Storage> instances = shards.get(storage);
+		if(instances == null) {
+			return getInstanceView(storage, storage.getStorageName(), first, created);
+		}
+		
+		List<Storage> views = new ArrayList<Storage>(instances.size());
+		for(int i = 0; i < instances.size(); i++) {
+			views.add(getInstanceView(instances.get(i), ShardedStorage.getShardName(storage.getStorageName(), i), first, created));
+		}
+		return new ShardedStorage(storage.getStorageName(), views);
+	}
+	
+	private Storage getInstanceView(Storage storage, String name, boolean first, List<Object> created) {
+		Storage view = createStorageView(storage, first, created);
+		
+		CircuitBreaker breaker = getCircuitBreaker(storage, name);
+		return breaker == null ? view : new CircuitBreakerStorage(view, breaker);
+	}
+	
+	/**
+	 * @return the circuit breaker shared by the views of a storage (or shard), or null if it is disabled
+	 */
+	private CircuitBreaker getCircuitBreaker(Storage storage, String name) {
+		synchronized(breakers) {
+			if(!breakers.containsKey(storage)) {
+				Configuration storageConfig = configurations.get(storage);
+				breakers.put(storage, storageConfig == null ? null : CircuitBreaker.create(name, storageConfig));
+			}
+			return breakers.get(storage);
+		}
+	}
+	
+	private Storage createStorageView(Storage storage, boolean first, List<Object> created) {
+		ThreadSafety.Policy policy = getThreadSafety(storage);
+		if(policy == ThreadSafety.Policy.THREAD_SAFE || (policy == ThreadSafety.Policy.PER_THREAD && first)) {
+			return storage;
+		}
+		
+		if(policy == ThreadSafety.Policy.PER_THREAD) {
+			try {
+				Storage instance = newInstance(storage);
+				if(!instance.open()) {
+					logger.error("Storage instance of " + storage.getStorageName() + " is not working.");
+				}
+				storageInstances.add(instance);
+				if(created != null) {
+					created.add(instance);
+				}
+				return instance;
+			}
+			catch(Exception e) {
+				logger.error("Cannot create a new instance of " + storage.getStorageName() + ". Share the existing one.", e);
+			}
+		}
+		return SynchronizedStages.synchronizedStorage(storage);
+	}
+	
+	/**
+	 * Wires filters, processors and storages as the stages of the ring buffer. Storages are 
+	 * written directly by their ring buffer handler, so storage lanes are not used.
+	 */
+	private void startRingBuffer() {
+		List<List<ItemFilter>> workerFilters = new ArrayList<List<ItemFilter>>();
+		List<List<Processor>> workerProcessors = new ArrayList<List<Processor>>();
+		for(int i = 0; i < ringBufferWorkers; i++) {
+			workerFilters.add(getConsumerFilters(i == 0, null));
+			workerProcessors.add(getConsumerProcessors(i == 0, null));
+		}
+		
+		List<Storage> handlerStorages = new ArrayList<Storage>();
+		for(Storage storage : storages) {
+			handlerStorages.add(getStorageView(storage, true, null));
+		}
+		
+		ringBuffer.start(workerFilters, workerProcessors, handlerStorages, batchSize);
+	}
+	
+	private void createJournal(StreamsManagerConfiguration config) throws StreamException {
+		if(!Boolean.parseBoolean(config.getParameter(JOURNAL_ENABLED, "false"))) {
+			return;
+		}
+		
+		try {
+			File directory = new File(config.getParameter(JOURNAL_DIRECTORY, "journal"));
+			int segmentSize = Integer.parseInt(config.getParameter(JOURNAL_SEGMENT_SIZE, "67108864"));
+			long flushInterval = Long.parseLong(config.getParameter(JOURNAL_FLUSH_INTERVAL, "1000"));
+			
+			journal = new ItemJournal(directory, segmentSize, flushInterval);
+		}
+		catch(Exception e) {
+			throw new StreamException("Error during journal initialization", e);
+		}
+	}
+	
+	/**
+	 * Creates a lane per storage. A sharded storage has a lane per shard, so its shards are 
+	 * written in parallel, and consumers route items to the lanes of the shards.
+	 */
+	private void createLanes() {
+		for(Storage storage : storages) {
+			List<Storage> instances = shards.get(storage);
+			if(instances == null) {
+				laneStorages.add(createLane(storage, storage.getStorageName()));
+				continue;
+			}
+			
+			List<Storage> shardLanes = new ArrayList<Storage>(instances.size());
+			for(int i = 0; i < instances.size(); i++) {
+				shardLanes.add(createLane(instances.get(i), ShardedStorage.getShardName(storage.getStorageName(), i)));
+			}
+			laneStorages.add(new ShardedStorage(storage.getStorageName(), shardLanes));
+		}
+		logger.info(lanes.size() + " storage lanes initialized.");
+		
+		if(journal != null) {
+			// an item is acknowledged once by each storage, i.e. by the lane of its shard
+			journal.setParties(laneStorages.size());
+		}
+	}
+	
+	private StorageLane createLane(Storage storage, String name) {
+		Configuration storageConfig = configurations.get(storage);
+		
+		int threads = StorageLane.getThreads(storageConfig);
+		List<Storage> views = new ArrayList<Storage>(threads);
+		for(int i = 0; i < threads; i++) {
+			views.add(getInstanceView(storage, name, i == 0, null));
+		}
+		
+		StorageLane lane = new StorageLane(name, views, storageConfig);
+		lane.setJournal(journal);
+		lanes.add(lane);
+		lane.start();
+		
+		return lane;
+	}
+	
 	/**
 	 * Stops all consumer threads and all the databases used
 	 */
 	public void stop() {
+		List<Consumer> consumers = new ArrayList<Consumer>();
+		if(consumerPool != null) {
+			consumerPool.stop();
+			consumers.addAll(consumerPool.getConsumers());
+		}
+		
 		for(Consumer consumer : consumers) {
 			consumer.die();
 		}
 		
-		for(Storage storage : storages) {
+		// let consumers hand their last items to the lanes, then drain the lanes
+		for(Consumer consumer : consumers) {
+			try {
+				consumer.join(10000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		if(ringBuffer != null) {
+			ringBuffer.close();
+		}
+		
+		for(StorageLane lane : lanes) {
+			lane.close();
+		}
+		
+		if(journal != null) {
+			journal.close();
+		}
+		
+		for(Storage storage : storageInstances) {
 			storage.close();
 		}
 		
+		synchronized(breakers) {
+			for(CircuitBreaker breaker : breakers.values()) {
+				if(breaker != null) {
+					breaker.close();
+				}
+			}
+		}
+		
+		if(queue != null) {
+			queue.close();
+		}
+		
 		state = StorageHandlerState.CLOSE;
 		try {
 			statusThread.interrupt();
@@ -233,26 +951,31 @@ public class StorageHandler implements Runnable {
 		
 		// runs just for sanity checks and logging
 		while(state.equals(StorageHandlerState.OPEN)) {
-			logger.info(handled.get() + " items handled in total.");
-			logger.info(queue.size() + " items are queued for processing.");
-			
-			if(queue.size() > 1000000) {
-				queue.clear();
+			logger.info(handled.get() + " items handled in total. " + dropped.get() + " items dropped.");
+			logger.info(ringBuffer != null ? ringBuffer.status() : queue.status());
+			if(journal != null) {
+				logger.info(journal.status());
 			}
 			
-			for(Storage storage : storages) {
+			for(Storage storage : storageInstances) {
 				try {
-					boolean workingStatus = storage.checkStatus();
+					// consumers of a THREAD_CONFINED storage lock on the same instance, so it can be reopened
+					// between their writes. Other storages are written without a lock and are not reopened under
+					// their consumers: their circuit breaker, if any, holds back the items while they are not working
+					boolean reopen = getThreadSafety(storage) == ThreadSafety.Policy.THREAD_CONFINED;
+					synchronized(storage) {
+						boolean workingStatus = storage.checkStatus();
 					
-					workingStatuses.put(storage.getStorageName(), workingStatus);
-					logger.info(storage.getStorageName() + " working status: " + workingStatus);
+						workingStatuses.put(storage.getStorageName(), workingStatus);
+						logger.info(storage.getStorageName() + " working status: " + workingStatus);
 					
-					if(!workingStatus) {
-						storage.close();
+						if(!workingStatus && reopen) {
+							storage.close();
 						
-						boolean status = storage.open();
-						workingStatuses.put(storage.getStorageName(), status);
-						logger.info(storage.getStorageName() + " working status: " + status);
+							boolean status = storage.open();
+							workingStatuses.put(storage.getStorageName(), status);
+							logger.info(storage.getStorageName() + " working status: " + status);
+						}
 					}
 				}
 				catch(Exception e) {
@@ -260,12 +983,27 @@ public class StorageHandler implements Runnable {
 				}
 			}
 			
-			for(ItemFilter filter : filters) {
+			for(StorageLane lane : lanes) {
+				logger.info(lane.status());
+			}
+			
+			synchronized(breakers) {
+				for(CircuitBreaker breaker : breakers.values()) {
+					if(breaker != null) {
+						logger.info(breaker.status());
+					}
+				}
+			}
+			
+			for(ItemFilter filter : filterInstances) {
 				logger.info(filter.status());
 			}
 			
-			for(Consumer consumer : consumers) {
-				logger.info(consumer.status());
+			if(consumerPool != null) {
+				logger.info(consumerPool.status());
+				for(Consumer consumer : consumerPool.getConsumers()) {
+					logger.info(consumer.status());
+				}
 			}
 			
 			try {
@@ -0,0 +1,376 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Histogram;
+import gr.iti.mklab.sfc.metrics.Metrics;
+import gr.iti.mklab.sfc.storages.BatchStorage;
+import gr.iti.mklab.sfc.storages.Storage;
+import gr.iti.mklab.sfc.storages.StorageUtils;
+import gr.iti.mklab.sfc.utils.Threads;
+
+/**
+ * Asynchronous writer in front of a single storage.
+ *
+ * Consumers hand accepted items to the lane and return immediately, while the writer threads
+ * of the lane store them in batches. Each storage has its own lane, so a storage that is slow
+ * for a while fills its own buffer without stalling the consumers or the other storages.
+ *
+ * When the buffer of the lane is full a consumer waits until there is room, so a storage that
+ * stays slower than the input pushes back into the ingest queue instead of losing items. A
+ * warning is logged every lane.offerTimeout milliseconds a consumer waits. Failed batches are
+ * retried lane.retries times with exponential backoff.
+ *
+ */
+public class StorageLane implements BatchStorage {
+	
+	public static final String LANE_THREADS = "lane.threads";
+	public static final String LANE_CAPACITY = "lane.capacity";
+	public static final String LANE_BATCH_SIZE = "lane.batchSize";
+	public static final String LANE_BATCH_WAIT = "lane.batchWait";
+	public static final String LANE_RETRIES = "lane.retries";
+	public static final String LANE_RETRY_BACKOFF = "lane.retryBackoff";
+	public static final String LANE_OFFER_TIMEOUT = "lane.offerTimeout";
+	
+	private Logger logger = LogManager.getLogger(StorageLane.class);
+	
+	private String name;
+	
+	// one view of the storage per writer, as given by its thread safety policy
+	private List<Storage> storages;
+	
+	private BlockingQueue<Item> queue;
+	private List<Writer> writers = new ArrayList<Writer>();
+	private CountDownLatch finished;
+	
+	private int capacity = 10000;
+	private int batchSize = 100;
+	private long batchWait = 100;
+	private int retries = 3;
+	private long retryBackoff = 500;
+	private long offerTimeout = 1000;
+	
+	private volatile boolean closed = false;
+	
+	private ItemJournal journal = null;
+	
+	private AtomicLong enqueued = new AtomicLong(0L);
+	private AtomicLong stored = new AtomicLong(0L);
+	private AtomicLong failed = new AtomicLong(0L);
+	private AtomicLong dropped = new AtomicLong(0L);
+	private AtomicLong blocked = new AtomicLong(0L);
+	private AtomicLong retried = new AtomicLong(0L);
+	
+	private AtomicLong batches = new AtomicLong(0L);
+	private AtomicLong storeTime = new AtomicLong(0L);
+	private volatile long lastStored = 0L;
+	
+	private Histogram batchLatency;
+	
+	/**
+	 * @param storages one instance (or synchronized view) of the storage for each writer thread.
+	 * 	The size of the list sets the number of writers.
+	 * @param config the configuration of the storage. Lane parameters are optional.
+	 */
+	public StorageLane(List<Storage> storages, Configuration config) {
+		this(null, storages, config);
+	}
+	
+	/**
+	 * @param name the name of the lane, in logs and metrics. The name of the storage if null.
+	 */
+	public StorageLane(String name, List<Storage> storages, Configuration config) {
+		if(storages == null || storages.isEmpty()) {
+			throw new IllegalArgumentException("A storage lane needs at least one storage instance.");
+		}
+		
+		this.storages = storages;
+		this.name = (name == null) ? storages.get(0).getStorageName() : name;
+		
+		this.capacity = Integer.parseInt(config.getParameter(LANE_CAPACITY, Integer.toString(capacity)));
+		this.batchSize = Math.max(1, Integer.parseInt(config.getParameter(LANE_BATCH_SIZE, Integer.toString(batchSize))));
+		this.batchWait = Long.parseLong(config.getParameter(LANE_BATCH_WAIT, Long.toString(batchWait)));
+		this.retries = Integer.parseInt(config.getParameter(LANE_RETRIES, Integer.toString(retries)));
+		this.retryBackoff = Long.parseLong(config.getParameter(LANE_RETRY_BACKOFF, Long.toString(retryBackoff)));
+		this.offerTimeout = Long.parseLong(config.getParameter(LANE_OFFER_TIMEOUT, Long.toString(offerTimeout)));
+		
+		this.queue = new ArrayBlockingQueue<Item>(capacity);
+		
+		for(int i = 0; i < storages.size(); i++) {
+			Writer writer = new Writer(storages.get(i), name + "Lane_" + i);
+			writers.add(writer);
+		}
+		finished = new CountDownLatch(writers.size());
+		
+		registerMetrics();
+		
+		logger.info("Lane of " + name + " initialized. Writers: " + writers.size() + ", capacity: " + capacity
+				+ ", batch size: " + batchSize + ", retries: " + retries);
+	}
+	
+	private void registerMetrics() {
+		batchLatency = Metrics.histogram("sfc_lane_batch_latency_seconds", "storage", name);
+		
+		Metrics.gauge("sfc_lane_lag", new Gauge() {
+			@Override
+			public double getValue() {
+				return queue.size();
+			}
+		}, "storage", name);
+		
+		registerCount("sfc_lane_stored_total", stored);
+		registerCount("sfc_lane_failed_total", failed);
+		registerCount("sfc_lane_dropped_total", dropped);
+		registerCount("sfc_lane_blocked_total", blocked);
+		registerCount("sfc_lane_retries_total", retried);
+	}
+	
+	private void registerCount(String metric, final AtomicLong count) {
+		Metrics.gauge(metric, new Gauge() {
+			@Override
+			public double getValue() {
+				return count.get();
+			}
+		}, "storage", name);
+	}
+	
+	/**
+	 * @return the number of writer threads requested in the configuration of a storage
+	 */
+	public static int getThreads(Configuration config) {
+		return Math.max(1, Integer.parseInt(config.getParameter(LANE_THREADS, "1")));
+	}
+	
+	/**
+	 * Items are acknowledged to the journal once they are stored. Items that are refused or
+	 * still fail after the retries stay pending, and are replayed on restart.
+	 */
+	public void setJournal(ItemJournal journal) {
+		this.journal = journal;
+	}
+	
+	public void start() {
+		for(Writer writer : writers) {
+			Threads.execute(writer, writer.threadName);
+		}
+	}
+	
+	@Override
+	public boolean open() {
+		return !closed;
+	}
+	
+	/**
+	 * Waits until the buffer of the lane has room for the item.
+	 *
+	 * @throws IOException if the lane is closed, or the waiting consumer is interrupted
+	 */
+	@Override
+	public void store(Item item) throws IOException {
+		long waiting = 0L;
+		try {
+			while(!closed) {
+				if(queue.offer(item, offerTimeout, TimeUnit.MILLISECONDS)) {
+					enqueued.incrementAndGet();
+					return;
+				}
+				
+				waiting += offerTimeout;
+				blocked.incrementAndGet();
+				logger.warn("Lane of " + name + " is full. Consumer waiting for " + waiting + " ms.");
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		dropped.incrementAndGet();
+		throw new IOException("Item " + item.getId() + " not accepted by the " + (closed ? "closed " : "") + "lane of " + name);
+	}
+	
+	@Override
+	public void store(List<Item> items) throws IOException {
+		for(Item item : items) {
+			store(item);
+		}
+	}
+	
+	@Override
+	public void store(ItemState itemState) {
+		storages.get(0).store(itemState);
+	}
+	
+	@Override
+	public boolean delete(String id) throws IOException {
+		return storages.get(0).delete(id);
+	}
+	
+	@Override
+	public boolean checkStatus() {
+		return !closed;
+	}
+	
+	/**
+	 * Stops accepting items and waits for the writers to store the buffered ones.
+	 * The underlying storage is not closed.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			finished.await(Math.max(batchWait, 1000L) + 10000L, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if(!queue.isEmpty()) {
+			logger.error(queue.size() + " items of " + name + " lane are discarded on close."
+					+ (journal != null ? " They are replayed from the journal on restart." : ""));
+		}
+	}
+	
+	@Override
+	public String getStorageName() {
+		return name;
+	}
+	
+	/**
+	 * @return the number of items waiting to be stored
+	 */
+	public int getLag() {
+		return queue.size();
+	}
+	
+	public String status() {
+		long b = batches.get();
+		long avgLatency = (b == 0) ? 0 : storeTime.get() / b;
+		long sinceLastStore = (lastStored == 0) ? -1 : (System.currentTimeMillis() - lastStored) / 1000;
+		
+		return "Lane " + name + ": " + getLag() + "/" + capacity + " items lagging. " + enqueued.get() + " enqueued, "
+				+ stored.get() + " stored, " + failed.get() + " failed, " + dropped.get() + " dropped, "
+				+ retried.get() + " retries, " + blocked.get() + " times full. Average batch latency: " + avgLatency + " ms, last store "
+				+ sinceLastStore + " secs ago.";
+	}
+	
+	private class Writer implements Runnable {
+		
+		private Storage storage;
+		private String threadName;
+		
+		public Writer(Storage storage, String threadName) {
+			this.storage = storage;
+			this.threadName = threadName;
+		}
+		
+		public void run() {
+			try {
+				write();
+			}
+			finally {
+				finished.countDown();
+			}
+		}
+		
+		private void write() {
+			List<Item> batch = new ArrayList<Item>(batchSize);
+			while(!closed || !queue.isEmpty()) {
+				try {
+					batch.clear();
+					
+					Item item = queue.poll(1, TimeUnit.SECONDS);
+					if(item == null) {
+						continue;
+					}
+					
+					batch.add(item);
+					fill(batch);
+					
+					store(batch);
+				}
+				catch(InterruptedException e) {
+					if(closed) {
+						break;
+					}
+				}
+			}
+		}
+		
+		private void fill(List<Item> batch) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + batchWait;
+			
+			queue.drainTo(batch, batchSize - batch.size());
+			while(batch.size() < batchSize && !closed) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) {
+					break;
+				}
+				
+				Item item = queue.poll(remaining, TimeUnit.MILLISECONDS);
+				if(item == null) {
+					break;
+				}
+				
+				batch.add(item);
+				queue.drainTo(batch, batchSize - batch.size());
+			}
+		}
+		
+		private void acknowledge(List<Item> batch) {
+			if(journal != null) {
+				for(Item item : batch) {
+					journal.ack(item);
+				}
+			}
+		}
+		
+		private void store(List<Item> batch) throws InterruptedException {
+			long backoff = retryBackoff;
+			for(int attempt = 0; ; attempt++) {
+				long t = System.currentTimeMillis();
+				long start = System.nanoTime();
+				try {
+					StorageUtils.store(storage, batch);
+					
+					storeTime.addAndGet(System.currentTimeMillis() - t);
+					batchLatency.recordSince(start);
+					batches.incrementAndGet();
+					stored.addAndGet(batch.size());
+					lastStored = System.currentTimeMillis();
+					
+					acknowledge(batch);
+					return;
+				}
+				catch(Exception e) {
+					if(attempt >= retries || closed) {
+						// not acknowledged: the items stay pending in the journal and are replayed on restart
+						failed.addAndGet(batch.size());
+						logger.error("Failed to store " + batch.size() + " items to " + name + " after "
+								+ (attempt + 1) + " attempts.", e);
+						return;
+					}
+					
+					retried.incrementAndGet();
+					logger.info("Storing to " + name + " failed (" + e.getMessage() + "). Retry in " + backoff + " ms.");
+					
+					Thread.sleep(backoff);
+					backoff = Math.min(backoff * 2, 60000L);
+				}
+			}
+		}
+	}
+
+}
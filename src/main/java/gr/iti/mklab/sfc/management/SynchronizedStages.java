@@ -0,0 +1,144 @@
+package gr.iti.mklab.sfc.management;
+
+import java.io.IOException;
+import java.util.List;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.sfc.filters.ItemFilter;
+import gr.iti.mklab.sfc.processors.Processor;
+import gr.iti.mklab.sfc.storages.BatchStorage;
+import gr.iti.mklab.sfc.storages.Storage;
+import gr.iti.mklab.sfc.storages.StorageUtils;
+
+/**
+ * Wrappers that serialize the calls to THREAD_CONFINED stages of the pipeline. 
+ * The wrapped instance is used as the monitor.
+ * 
+ */
+public class SynchronizedStages {
+	
+	public static ItemFilter synchronizedFilter(ItemFilter filter) {
+		return new SynchronizedFilter(filter);
+	}
+	
+	public static Processor synchronizedProcessor(Processor processor) {
+		return new SynchronizedProcessor(processor);
+	}
+	
+	public static Storage synchronizedStorage(Storage storage) {
+		return new SynchronizedStorage(storage);
+	}
+	
+	private static class SynchronizedFilter extends ItemFilter {
+		
+		private ItemFilter filter;
+		
+		public SynchronizedFilter(ItemFilter filter) {
+			super(null);
+			this.filter = filter;
+		}
+		
+		@Override
+		public boolean accept(Item item) {
+			synchronized(filter) {
+				return filter.accept(item);
+			}
+		}
+		
+		@Override
+		public String name() {
+			return filter.name();
+		}
+		
+		@Override
+		public String status() {
+			return filter.status();
+		}
+	}
+	
+	private static class SynchronizedProcessor extends Processor {
+		
+		private Processor processor;
+		
+		public SynchronizedProcessor(Processor processor) {
+			super(null);
+			this.processor = processor;
+		}
+		
+		@Override
+		public void process(Item item) {
+			synchronized(processor) {
+				processor.process(item);
+			}
+		}
+		
+		@Override
+		public String name() {
+			return processor.name();
+		}
+	}
+	
+	private static class SynchronizedStorage implements BatchStorage {
+		
+		private Storage storage;
+		
+		public SynchronizedStorage(Storage storage) {
+			this.storage = storage;
+		}
+		
+		@Override
+		public boolean open() {
+			synchronized(storage) {
+				return storage.open();
+			}
+		}
+		
+		@Override
+		public void store(Item item) throws IOException {
+			synchronized(storage) {
+				storage.store(item);
+			}
+		}
+		
+		@Override
+		public void store(List<Item> items) throws IOException {
+			synchronized(storage) {
+				StorageUtils.store(storage, items);
+			}
+		}
+		
+		@Override
+		public void store(ItemState itemState) {
+			synchronized(storage) {
+				storage.store(itemState);
+			}
+		}
+		
+		@Override
+		public boolean delete(String id) throws IOException {
+			synchronized(storage) {
+				return storage.delete(id);
+			}
+		}
+		
+		@Override
+		public boolean checkStatus() {
+			synchronized(storage) {
+				return storage.checkStatus();
+			}
+		}
+		
+		@Override
+		public void close() {
+			synchronized(storage) {
+				storage.close();
+			}
+		}
+		
+		@Override
+		public String getStorageName() {
+			return storage.getStorageName();
+		}
+	}
+}
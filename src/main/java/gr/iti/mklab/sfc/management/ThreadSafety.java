@@ -0,0 +1,46 @@
+package gr.iti.mklab.sfc.management;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares how the {@link StorageHandler} may share an ItemFilter, Processor or Storage 
+ * between its consumer threads. 
+ * 
+ * Classes without this annotation are treated as THREAD_CONFINED. The policy of a 
+ * configured instance can be overridden with the "threadSafety" parameter of its configuration.
+ * 
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ThreadSafety {
+	
+	public static final String PARAMETER = "threadSafety";
+	
+	Policy value();
+	
+	public enum Policy {
+		
+		/**
+		 * A single instance is shared by all consumers and called concurrently without locking.
+		 */
+		THREAD_SAFE,
+		
+		/**
+		 * A single instance is shared by all consumers, but only one consumer at a time may call it.
+		 */
+		THREAD_CONFINED,
+		
+		/**
+		 * Each consumer gets its own instance, created from the same configuration.
+		 */
+		PER_THREAD
+	}
+
+}
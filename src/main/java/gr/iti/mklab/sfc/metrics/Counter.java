@@ -0,0 +1,24 @@
+package gr.iti.mklab.sfc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count, e.g. items handled per source.
+ *
+ */
+public class Counter {
+	
+	private AtomicLong count = new AtomicLong(0L);
+	
+	public void increment() {
+		count.incrementAndGet();
+	}
+	
+	public void add(long n) {
+		count.addAndGet(n);
+	}
+	
+	public long get() {
+		return count.get();
+	}
+}
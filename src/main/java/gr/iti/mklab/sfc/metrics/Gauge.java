@@ -0,0 +1,12 @@
+package gr.iti.mklab.sfc.metrics;
+
+/**
+ * A value read at export time, e.g. the depth of the ingest queue.
+ * Implementations must be cheap and thread safe, as they are read by the scrape and JMX threads.
+ *
+ */
+public interface Gauge {
+	
+	public double getValue();
+
+}
@@ -0,0 +1,134 @@
+package gr.iti.mklab.sfc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with log-linear buckets, in the manner of HdrHistogram.
+ *
+ * Values (nanoseconds) below 64 have their own bucket. Above that, every power of two is split
+ * into 32 buckets, so a recorded value is reported with a relative error of at most 1/32 (~3%),
+ * over the whole range of long values. Recording is a few shifts and an atomic increment,
+ * without locks or allocation. Percentiles are computed from the bucket counts at export time.
+ *
+ */
+public class Histogram {
+	
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	// values below 2 * SUB_BUCKETS are counted exactly
+	private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+	
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	
+	private AtomicLong count = new AtomicLong(0L);
+	private AtomicLong sum = new AtomicLong(0L);
+	private AtomicLong max = new AtomicLong(0L);
+	
+	/**
+	 * @param value a duration in nanoseconds. Negative values are ignored.
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			return;
+		}
+		
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long current;
+		while(value > (current = max.get())) {
+			if(max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Records the time elapsed since the given System.nanoTime() value.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+	
+	private static int index(long value) {
+		if(value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift);
+		
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (subBucket - SUB_BUCKETS);
+	}
+	
+	/**
+	 * @return the highest value that falls in the bucket of the given index
+	 */
+	private static long highestValue(int index) {
+		if(index < LINEAR_BUCKETS) {
+			return index;
+		}
+		
+		int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		
+		return ((subBucket + 1) << shift) - 1;
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getSum() {
+		return sum.get();
+	}
+	
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * @param quantile between 0 and 1.0
+	 * @return the value below which the given fraction of the recorded values falls, in nanoseconds
+	 */
+	public long getPercentile(double quantile) {
+		long[] values = new long[1];
+		getPercentiles(new double[] {quantile}, values);
+		return values[0];
+	}
+	
+	/**
+	 * Computes several percentiles in one pass over the buckets, without allocation.
+	 *
+	 * @param quantiles in ascending order
+	 * @param values receives the percentile of each quantile, in nanoseconds
+	 */
+	public void getPercentiles(double[] quantiles, long[] values) {
+		long total = count.get();
+		if(total == 0) {
+			for(int i = 0; i < values.length; i++) {
+				values[i] = 0L;
+			}
+			return;
+		}
+		
+		int q = 0;
+		long seen = 0L;
+		for(int i = 0; i < BUCKETS && q < quantiles.length; i++) {
+			seen += counts.get(i);
+			while(q < quantiles.length && seen >= Math.ceil(quantiles[q] * total)) {
+				values[q++] = Math.min(highestValue(i), max.get());
+			}
+		}
+		
+		// buckets and total are updated independently, concurrent records may leave some quantiles behind
+		while(q < quantiles.length) {
+			values[q++] = max.get();
+		}
+	}
+}
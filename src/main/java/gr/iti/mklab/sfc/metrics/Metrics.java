@@ -0,0 +1,221 @@
+package gr.iti.mklab.sfc.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Registry of the metrics of the pipeline: counters, gauges and latency histograms.
+ *
+ * Metrics are identified by a name and optional label pairs, following the Prometheus
+ * conventions (e.g. sfc_stage_latency_seconds{stage="filter",name="LengthItemFilter"}).
+ * Lookups are meant to happen once, when a component is created; components keep the
+ * returned metric and update it directly.
+ *
+ * Metrics can be exported through an HTTP endpoint in the Prometheus text format and through
+ * JMX, both enabled by {@link #start(int, boolean)}:
+ *
+ * 	metrics.port: port of the scrape endpoint (http://host:port/metrics). Disabled if negative.
+ * 	metrics.jmx: whether to register the metrics as attributes of an MBean
+ *
+ */
+public class Metrics {
+	
+	public static final String PORT = "metrics.port";
+	public static final String JMX = "metrics.jmx";
+	
+	private static Logger logger = LogManager.getLogger(Metrics.class);
+	
+	// percentiles exported for each histogram
+	static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+	
+	/**
+	 * Series of a metric, sorted by their labels
+	 */
+	static class Family {
+		
+		final String name;
+		final String type;
+		
+		final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<String, Object>();
+		
+		Family(String name, String type) {
+			this.name = name;
+			this.type = type;
+		}
+	}
+	
+	private static ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+	
+	private static MetricsServer server = null;
+	private static MetricsJmx jmx = null;
+	
+	public static Counter counter(String name, String... labels) {
+		return (Counter) register(name, "counter", labels, new Counter());
+	}
+	
+	public static Histogram histogram(String name, String... labels) {
+		return (Histogram) register(name, "summary", labels, new Histogram());
+	}
+	
+	/**
+	 * Registers a gauge. A gauge already registered with the same name and labels is replaced.
+	 */
+	public static void gauge(String name, Gauge gauge, String... labels) {
+		getFamily(name, "gauge").series.put(labels(labels), gauge);
+	}
+	
+	/**
+	 * Latency of a filter, processor or storage, as measured by the consumers and the ring buffer workers.
+	 */
+	public static Histogram stageLatency(String stage, String name) {
+		return histogram("sfc_stage_latency_seconds", "stage", stage, "name", name);
+	}
+	
+	/**
+	 * Removes a series, e.g. when the feed it refers to is removed.
+	 */
+	public static void remove(String name, String... labels) {
+		Family family = families.get(name);
+		if(family != null) {
+			family.series.remove(labels(labels));
+		}
+	}
+	
+	private static Object register(String name, String type, String[] labels, Object metric) {
+		Family family = getFamily(name, type);
+		Object previous = family.series.putIfAbsent(labels(labels), metric);
+		
+		return previous == null ? metric : previous;
+	}
+	
+	private static Family getFamily(String name, String type) {
+		Family family = families.get(name);
+		if(family == null) {
+			Family created = new Family(name, type);
+			family = families.putIfAbsent(name, created);
+			if(family == null) {
+				family = created;
+			}
+		}
+		
+		if(!family.type.equals(type)) {
+			throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+		}
+		return family;
+	}
+	
+	private static String labels(String[] labels) {
+		if(labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be given as name/value pairs");
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < labels.length; i += 2) {
+			if(i > 0) {
+				sb.append(',');
+			}
+			String value = labels[i + 1] == null ? "" : labels[i + 1];
+			sb.append(labels[i]).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+		return sb.toString();
+	}
+	
+	static Map<String, Family> getFamilies() {
+		return families;
+	}
+	
+	/**
+	 * Starts the exporters.
+	 *
+	 * @param port port of the HTTP scrape endpoint, negative to disable it
+	 * @param registerJmx whether to expose the metrics through JMX
+	 */
+	public static synchronized void start(int port, boolean registerJmx) {
+		if(port >= 0 && server == null) {
+			try {
+				server = new MetricsServer(port);
+				logger.info("Metrics are exported on http://localhost:" + server.getPort() + "/metrics");
+			}
+			catch(IOException e) {
+				logger.error("Cannot start the metrics endpoint on port " + port, e);
+			}
+		}
+		
+		if(registerJmx && jmx == null) {
+			try {
+				jmx = new MetricsJmx();
+			}
+			catch(Exception e) {
+				logger.error("Cannot register the metrics MBean.", e);
+			}
+		}
+	}
+	
+	public static synchronized void stop() {
+		if(server != null) {
+			server.stop();
+			server = null;
+		}
+		
+		if(jmx != null) {
+			jmx.unregister();
+			jmx = null;
+		}
+	}
+	
+	/**
+	 * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+	 * Histograms are exported as summaries in seconds, with their percentiles and maximum.
+	 */
+	static void write(StringBuilder sb, long[] percentiles) {
+		for(Family family : families.values()) {
+			sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for(Map.Entry<String, Object> entry : family.series.entrySet()) {
+				String labels = entry.getKey();
+				Object metric = entry.getValue();
+				
+				if(metric instanceof Counter) {
+					sample(sb, family.name, labels, null, ((Counter) metric).get());
+				}
+				else if(metric instanceof Gauge) {
+					sample(sb, family.name, labels, null, ((Gauge) metric).getValue());
+				}
+				else if(metric instanceof Histogram) {
+					Histogram histogram = (Histogram) metric;
+					histogram.getPercentiles(QUANTILES, percentiles);
+					for(int i = 0; i < QUANTILES.length; i++) {
+						sample(sb, family.name, labels, Double.toString(QUANTILES[i]), percentiles[i] / 1e9);
+					}
+					sample(sb, family.name + "_sum", labels, null, histogram.getSum() / 1e9);
+					sample(sb, family.name + "_count", labels, null, histogram.getCount());
+					sample(sb, family.name + "_max", labels, null, histogram.getMax() / 1e9);
+				}
+			}
+		}
+	}
+	
+	private static void sample(StringBuilder sb, String name, String labels, String quantile, double value) {
+		sb.append(name);
+		if(!labels.isEmpty() || quantile != null) {
+			sb.append('{').append(labels);
+			if(quantile != null) {
+				sb.append(labels.isEmpty() ? "" : ",").append("quantile=\"").append(quantile).append('"');
+			}
+			sb.append('}');
+		}
+		sb.append(' ');
+		
+		if(value == Math.rint(value) && !Double.isInfinite(value)) {
+			sb.append((long) value);
+		}
+		else {
+			sb.append(value);
+		}
+		sb.append('\n');
+	}
+}
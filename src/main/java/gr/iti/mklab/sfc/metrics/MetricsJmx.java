@@ -0,0 +1,148 @@
+package gr.iti.mklab.sfc.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Read-only view of the metrics as the attributes of the gr.iti.mklab.sfc:type=Metrics MBean.
+ *
+ * Each counter and gauge is an attribute named after its series, e.g.
+ * sfc_queue_depth or sfc_items_received_total{source="Twitter"}. Histograms have one attribute
+ * per percentile, plus count and max, in milliseconds: sfc_stage_latency_seconds{...}.p99_ms
+ *
+ */
+class MetricsJmx implements DynamicMBean {
+	
+	private static final String OBJECT_NAME = "gr.iti.mklab.sfc:type=Metrics";
+	
+	private static final String[] HISTOGRAM_ATTRIBUTES = {"count", "p50_ms", "p90_ms", "p99_ms", "p999_ms", "max_ms"};
+	
+	private ObjectName objectName;
+	
+	public MetricsJmx() throws Exception {
+		objectName = new ObjectName(OBJECT_NAME);
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if(server.isRegistered(objectName)) {
+			server.unregisterMBean(objectName);
+		}
+		server.registerMBean(this, objectName);
+	}
+	
+	public void unregister() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch(Exception e) {
+			// not registered
+		}
+	}
+	
+	private static String series(Metrics.Family family, String labels) {
+		return labels.isEmpty() ? family.name : family.name + "{" + labels + "}";
+	}
+	
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		for(Metrics.Family family : Metrics.getFamilies().values()) {
+			if(!attribute.startsWith(family.name)) {
+				continue;
+			}
+			
+			for(Map.Entry<String, Object> entry : family.series.entrySet()) {
+				String series = series(family, entry.getKey());
+				Object metric = entry.getValue();
+				
+				if(metric instanceof Histogram && attribute.startsWith(series + ".")) {
+					return getHistogramAttribute((Histogram) metric, attribute.substring(series.length() + 1));
+				}
+				else if(attribute.equals(series)) {
+					if(metric instanceof Counter) {
+						return ((Counter) metric).get();
+					}
+					return ((Gauge) metric).getValue();
+				}
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+	
+	private static Object getHistogramAttribute(Histogram histogram, String name) throws AttributeNotFoundException {
+		switch(name) {
+			case "count":
+				return histogram.getCount();
+			case "max_ms":
+				return histogram.getMax() / 1e6;
+			default:
+				for(int i = 0; i < Metrics.QUANTILES.length; i++) {
+					if(name.equals(HISTOGRAM_ATTRIBUTES[i + 1])) {
+						return histogram.getPercentile(Metrics.QUANTILES[i]) / 1e6;
+					}
+				}
+		}
+		throw new AttributeNotFoundException(name);
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for(String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			}
+			catch(AttributeNotFoundException e) {
+				// skipped, as required by the DynamicMBean contract
+			}
+		}
+		return list;
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for(Metrics.Family family : Metrics.getFamilies().values()) {
+			for(Map.Entry<String, Object> entry : family.series.entrySet()) {
+				String series = series(family, entry.getKey());
+				if(entry.getValue() instanceof Histogram) {
+					for(String name : HISTOGRAM_ATTRIBUTES) {
+						String type = name.equals("count") ? "java.lang.Long" : "java.lang.Double";
+						attributes.add(new MBeanAttributeInfo(series + "." + name, type, family.name, true, false, false));
+					}
+				}
+				else {
+					String type = (entry.getValue() instanceof Counter) ? "java.lang.Long" : "java.lang.Double";
+					attributes.add(new MBeanAttributeInfo(series, type, family.name, true, false, false));
+				}
+			}
+		}
+		
+		return new MBeanInfo(getClass().getName(), "Metrics of the stream manager pipeline",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+}
@@ -0,0 +1,75 @@
+package gr.iti.mklab.sfc.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Scrape endpoint of the metrics, served by the HTTP server of the JDK on a single daemon thread.
+ * The text buffer is reused between scrapes.
+ *
+ */
+class MetricsServer implements HttpHandler {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private HttpServer server;
+	private ExecutorService executor;
+	
+	private StringBuilder buffer = new StringBuilder(64 * 1024);
+	private long[] percentiles = new long[Metrics.QUANTILES.length];
+	
+	public MetricsServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", this);
+		
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MetricsServer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+	
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		byte[] response;
+		synchronized(this) {
+			buffer.setLength(0);
+			Metrics.write(buffer, percentiles);
+			response = buffer.toString().getBytes(UTF8);
+		}
+		
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, response.length);
+		
+		OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(response);
+		}
+		finally {
+			os.close();
+		}
+	}
+	
+	public void stop() {
+		server.stop(0);
+		executor.shutdown();
+	}
+}
@@ -2,12 +2,15 @@ package gr.iti.mklab.sfc.processors;
 
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
 import com.cybozu.labs.langdetect.Detector;
 import com.cybozu.labs.langdetect.DetectorFactory;
 import com.cybozu.labs.langdetect.LangDetectException;
 
 
+@ThreadSafety(Policy.THREAD_SAFE)
 public class LanguageDetector extends Processor {
 
 	public LanguageDetector(Configuration configuration) {
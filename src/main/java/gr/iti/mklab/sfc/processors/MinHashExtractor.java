@@ -9,7 +9,10 @@ import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
 import gr.iti.mklab.sfc.utils.MinHash;
 import gr.iti.mklab.sfc.utils.TextUtils;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
+@ThreadSafety(Policy.THREAD_SAFE)
 public class MinHashExtractor extends Processor {
 
 	private MinHash minHash;
@@ -18,9 +21,9 @@ public class MinHashExtractor extends Processor {
 	public MinHashExtractor(Configuration configuration) {
 		super(configuration);
 		
-		int bitset = Integer.getInteger(configuration.getParameter("bitset", "1"));
-		int minhashNum = Integer.getInteger(configuration.getParameter("minhashNum", "32"));
-		int singatureNum = Integer.getInteger(configuration.getParameter("singatureNum", "128"));
+		int bitset = Integer.parseInt(configuration.getParameter("bitset", "1"));
+		int minhashNum = Integer.parseInt(configuration.getParameter("minhashNum", "32"));
+		int singatureNum = Integer.parseInt(configuration.getParameter("singatureNum", "128"));
 		
 		this.minHash = MinHash.getInstance(bitset, minhashNum);
 		this.singatureHash = MinHash.getInstance(bitset, singatureNum);
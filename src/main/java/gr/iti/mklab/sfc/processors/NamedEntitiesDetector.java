@@ -21,7 +21,10 @@ import edu.stanford.nlp.util.logging.StanfordRedwoodConfiguration;
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.NamedEntity;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
+@ThreadSafety(Policy.THREAD_CONFINED)
 public class NamedEntitiesDetector extends Processor {
 			
 	private AbstractSequenceClassifier<CoreLabel> classifier;
@@ -14,4 +14,8 @@ public abstract class Processor {
 	
 	public abstract  void process(Item item);
 	
+	public String name() {
+		return getClass().getSimpleName();
+	}
+	
 }
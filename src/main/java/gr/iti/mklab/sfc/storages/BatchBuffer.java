@@ -0,0 +1,168 @@
+package gr.iti.mklab.sfc.storages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Buffers the entries written to an external service and sends them in batches, through a {@link Sender}.
+ *
+ * A batch is sent when it reaches its size, by the thread that fills it, or when its oldest entry
+ * reaches the maximum age, by {@link #flushIfOlder(long)}. Each entry of a failed batch has a single owner
+ * of its retry: the entries given to the {@link #add(List)} that fails are dropped, and the caller retries
+ * them, while the entries of earlier calls, which already returned, are put back in the buffer, up to its
+ * capacity, and sent with the next batch. A batch that failed after the service applied it is thus sent
+ * again: its entries are applied twice unless the sender is idempotent.
+ *
+ */
+public class BatchBuffer<T> {
+	
+	/**
+	 * Sends a batch to the service, in the thread that takes it from the buffer.
+	 */
+	public interface Sender<T> {
+		
+		/**
+		 * @throws IOException if the batch may not have been applied
+		 */
+		public void send(List<T> batch) throws IOException;
+	}
+	
+	private Logger logger = LogManager.getLogger(BatchBuffer.class);
+	
+	private String name;
+	private Sender<T> sender;
+	
+	private int batchSize;
+	private int capacity;
+	
+	private List<T> pending = new ArrayList<T>();
+	
+	// time the oldest pending entry was added, 0 if there are none
+	private long oldest = 0L;
+	
+	/**
+	 * @param name name of the buffer, used in logs
+	 * @param batchSize number of entries that triggers a batch
+	 * @param capacity maximum number of entries kept while the service is unavailable
+	 */
+	public BatchBuffer(String name, Sender<T> sender, int batchSize, int capacity) {
+		this.name = name;
+		this.sender = sender;
+		this.batchSize = Math.max(1, batchSize);
+		this.capacity = Math.max(this.batchSize, capacity);
+	}
+	
+	public void add(T entry) throws IOException {
+		add(Collections.singletonList(entry));
+	}
+	
+	/**
+	 * Buffers all the entries, then sends them if the buffer reached the size of a batch.
+	 * If the batch fails the given entries are dropped, and are retried by the caller, while
+	 * the other entries of the batch stay in the buffer.
+	 *
+	 * @throws IOException if the batch failed
+	 */
+	public void add(List<T> entries) throws IOException {
+		if(entries.isEmpty()) {
+			return;
+		}
+		
+		List<T> batch = null;
+		long since = 0L;
+		synchronized(this) {
+			if(pending.isEmpty()) {
+				oldest = System.currentTimeMillis();
+			}
+			pending.addAll(entries);
+			
+			if(pending.size() >= batchSize) {
+				since = oldest;
+				batch = take();
+			}
+		}
+		
+		if(batch != null) {
+			send(batch, since, entries.size());
+		}
+	}
+	
+	/**
+	 * Sends the pending entries if the oldest of them was added more than maxAge milliseconds ago.
+	 * If the batch fails its entries stay in the buffer.
+	 */
+	public void flushIfOlder(long maxAge) throws IOException {
+		List<T> batch = null;
+		long since = 0L;
+		synchronized(this) {
+			if(!pending.isEmpty() && System.currentTimeMillis() - oldest >= maxAge) {
+				since = oldest;
+				batch = take();
+			}
+		}
+		
+		if(batch != null) {
+			send(batch, since, 0);
+		}
+	}
+	
+	public void flush() throws IOException {
+		flushIfOlder(0L);
+	}
+	
+	public synchronized int getPending() {
+		return pending.size();
+	}
+	
+	/**
+	 * @return milliseconds since the oldest entry not yet sent was added
+	 */
+	public synchronized long getLag() {
+		return pending.isEmpty() ? 0L : System.currentTimeMillis() - oldest;
+	}
+	
+	private List<T> take() {
+		List<T> batch = pending;
+		pending = new ArrayList<T>(batchSize);
+		oldest = 0L;
+		return batch;
+	}
+	
+	/**
+	 * @param owned number of entries at the end of the batch that are retried by the caller if it fails
+	 */
+	private void send(List<T> batch, long since, int owned) throws IOException {
+		try {
+			sender.send(batch);
+		}
+		catch(IOException | RuntimeException e) {
+			putBack(batch.subList(0, batch.size() - owned), since);
+			throw e;
+		}
+	}
+	
+	private synchronized void putBack(List<T> batch, long since) {
+		if(batch.isEmpty()) {
+			return;
+		}
+		
+		List<T> entries = new ArrayList<T>(batch.size() + pending.size());
+		entries.addAll(batch);
+		entries.addAll(pending);
+		
+		if(entries.size() > capacity) {
+			int dropped = entries.size() - capacity;
+			logger.error("Buffer of " + name + " is full. Drop the " + dropped + " oldest entries.");
+			entries = new ArrayList<T>(entries.subList(dropped, entries.size()));
+		}
+		
+		pending = entries;
+		oldest = since;
+	}
+
+}
@@ -0,0 +1,20 @@
+package gr.iti.mklab.sfc.storages;
+
+import gr.iti.mklab.framework.common.domain.Item;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Represents a storage that is able to write a batch of stream items in bulk,
+ * e.g. with a single round trip to the underlying database.
+ * 
+ * Storages that do not implement this interface receive batches one item at a time.
+ * See {@link StorageUtils#store(Storage, List)}.
+ *
+ */
+public interface BatchStorage extends Storage {
+	
+	public void store(List<Item> items) throws IOException;
+
+}
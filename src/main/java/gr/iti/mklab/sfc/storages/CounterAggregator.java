@@ -0,0 +1,87 @@
+package gr.iti.mklab.sfc.storages;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates counter deltas per key (e.g. the mentions and shares of a user) between two flushes.
+ *
+ * Keys are spread over lock stripes, so that writers of different keys rarely contend, and the
+ * deltas of a key are kept in a primitive array, incremented in place. {@link #drain()} swaps the
+ * map of each stripe with an empty one and returns the deltas accumulated since the previous drain.
+ *
+ */
+public class CounterAggregator {
+	
+	private String[] fields;
+	
+	private Object[] locks;
+	private List<Map<String, long[]>> stripes;
+	
+	/**
+	 * @param stripes number of lock stripes
+	 * @param fields names of the counters of each key. Deltas refer to a counter by its index.
+	 */
+	public CounterAggregator(int stripes, String... fields) {
+		this.fields = fields;
+		this.locks = new Object[stripes];
+		this.stripes = new ArrayList<Map<String, long[]>>(stripes);
+		for(int i = 0; i < stripes; i++) {
+			locks[i] = new Object();
+			this.stripes.add(new HashMap<String, long[]>());
+		}
+	}
+	
+	public String[] getFields() {
+		return fields;
+	}
+	
+	public void add(String key, int field, long delta) {
+		if(key == null || delta == 0) {
+			return;
+		}
+		
+		int stripe = (key.hashCode() & Integer.MAX_VALUE) % locks.length;
+		synchronized(locks[stripe]) {
+			Map<String, long[]> deltas = stripes.get(stripe);
+			long[] counters = deltas.get(key);
+			if(counters == null) {
+				counters = new long[fields.length];
+				deltas.put(key, counters);
+			}
+			counters[field] += delta;
+		}
+	}
+	
+	/**
+	 * @return the number of keys with pending deltas
+	 */
+	public int size() {
+		int size = 0;
+		for(int stripe = 0; stripe < locks.length; stripe++) {
+			synchronized(locks[stripe]) {
+				size += stripes.get(stripe).size();
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Removes and returns the pending deltas, keyed as they were added.
+	 */
+	public Map<String, long[]> drain() {
+		Map<String, long[]> drained = new HashMap<String, long[]>();
+		for(int stripe = 0; stripe < locks.length; stripe++) {
+			Map<String, long[]> deltas;
+			synchronized(locks[stripe]) {
+				deltas = stripes.get(stripe);
+				stripes.set(stripe, new HashMap<String, long[]>());
+			}
+			drained.putAll(deltas);
+		}
+		return drained;
+	}
+
+}
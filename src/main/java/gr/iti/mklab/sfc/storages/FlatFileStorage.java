@@ -1,38 +1,152 @@
 package gr.iti.mklab.sfc.storages;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.io.CountingOutputStream;
 
 import gr.iti.mklab.framework.common.domain.config.Configuration;
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.sfc.management.ShardedStorage;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
+import gr.iti.mklab.sfc.metrics.Counter;
+import gr.iti.mklab.sfc.metrics.Metrics;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodec;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodecs;
 
 /**
  * Class for storing items to a flat file
+ *
+ * Items are encoded with the codec of the storage (json by default, see {@link ItemCodecs}).
+ * Text codecs write one item per line, binary codecs a 4-byte length before each item.
+ *
+ * Items are written to segment files, through a large buffer and optionally gzip compressed.
+ * A segment is written as name.timestamp.inprogress and renamed to its final name (with a .gz
+ * suffix if compressed) once it is complete, so readers never see a partial segment. Segments
+ * are rolled when they reach a size on disk or an age. Writes are not flushed one by one: a
+ * background thread flushes the buffer of the current segment periodically.
+ *
+ * Consumers encode their items concurrently and append them under a lock, a batch at a time.
+ *
+ * 	file.compression: none or gzip (default none)
+ * 	file.roll.size: size of a segment on disk, in bytes (default 134217728)
+ * 	file.roll.interval: maximum age of a segment, in milliseconds (default 3600000)
+ * 	file.buffer.size: size of the write buffer, in bytes (default 1048576)
+ * 	file.flush.interval: milliseconds between flushes of the buffer (default 1000)
+ *
  * @author manosetro - manosetro@iti.gr
  *
  */
-public class FlatFileStorage implements Storage {	
+@ThreadSafety(Policy.THREAD_SAFE)
+public class FlatFileStorage implements BatchStorage {
 	
 	private static String NAME = "name";
 	private static String STORAGE_FILE = "file";
 	
+	private static String COMPRESSION = "file.compression";
+	private static String ROLL_SIZE = "file.roll.size";
+	private static String ROLL_INTERVAL = "file.roll.interval";
+	private static String BUFFER_SIZE = "file.buffer.size";
+	private static String FLUSH_INTERVAL = "file.flush.interval";
+	
+	private static final String IN_PROGRESS = ".inprogress";
+	private static final String GZIP_SUFFIX = ".gz";
+	
+	private Logger logger = LogManager.getLogger(FlatFileStorage.class);
+	
 	private String storageName = "FlatFile";
 	private String fileToStore;
 	
 	private File storageDirectory;
-	private PrintWriter out = null;
+	
+	private ItemCodec codec;
+	
+	private boolean gzip = false;
+	private long rollSize = 128L * 1024 * 1024;
+	private long rollInterval = 3600000L;
+	private int bufferSize = 1024 * 1024;
+	private long flushInterval = 1000L;
+	
+	private Segment current = null;
+	private IOException failure = null;
+	
+	private Thread flusher = null;
+	private volatile boolean closed = false;
+	
+	private Counter segments = Metrics.counter("sfc_flatfile_segments_total");
+	private Counter bytes = Metrics.counter("sfc_flatfile_written_bytes_total");
 	
 	long items = 0;
 	
+	/**
+	 * A segment being written, with the bytes that reached its file
+	 */
+	private class Segment {
+		
+		File file;
+		File finalFile;
+		long created;
+		
+		CountingOutputStream counter;
+		DataOutputStream out;
+		
+		Segment(long created) throws IOException {
+			String name = fileToStore + created + (gzip ? GZIP_SUFFIX : "");
+			this.finalFile = new File(storageDirectory, name);
+			this.file = new File(storageDirectory, name + IN_PROGRESS);
+			this.created = created;
+			
+			counter = new CountingOutputStream(new FileOutputStream(file, false));
+			
+			OutputStream stream = counter;
+			if(gzip) {
+				// sync flush, so that each flush writes the compressed data written so far
+				stream = new GZIPOutputStream(stream, bufferSize, true);
+			}
+			out = new DataOutputStream(new BufferedOutputStream(stream, bufferSize));
+		}
+		
+		/**
+		 * Closes the file and moves it to its final name.
+		 */
+		void complete() throws IOException {
+			out.close();
+			bytes.add(counter.getCount());
+			Files.move(file.toPath(), finalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			segments.increment();
+		}
+	}
+	
 	public FlatFileStorage(Configuration config) {
 		this.fileToStore = config.getParameter(FlatFileStorage.NAME);
 		
-		String storage = config.getParameter(FlatFileStorage.STORAGE_FILE);
+		// each shard of a sharded storage writes to its own directory
+		String storage = ShardedStorage.getShardPath(config, config.getParameter(FlatFileStorage.STORAGE_FILE));
 		this.storageDirectory = new File(storage);
+		
+		this.codec = ItemCodecs.create(config, "json");
+		
+		this.gzip = "gzip".equalsIgnoreCase(config.getParameter(COMPRESSION, "none"));
+		this.rollSize = Long.parseLong(config.getParameter(ROLL_SIZE, Long.toString(rollSize)));
+		this.rollInterval = Long.parseLong(config.getParameter(ROLL_INTERVAL, Long.toString(rollInterval)));
+		this.bufferSize = Integer.parseInt(config.getParameter(BUFFER_SIZE, Integer.toString(bufferSize)));
+		this.flushInterval = Long.parseLong(config.getParameter(FLUSH_INTERVAL, Long.toString(flushInterval)));
 	}
 	
 	
@@ -40,25 +154,96 @@ public class FlatFileStorage implements Storage {
 		this.storageDirectory = new File(storageDirectory);
 		
 		this.fileToStore = "/items.";
+		
+		this.codec = ItemCodecs.create("json", null);
+	}
+	
+	@Override
+	public void store(Item item) throws IOException {
+		store(Collections.singletonList(item));
 	}
 	
 	@Override
-	public void store(Item item){
-		items++;
-		if (out != null) {
-			out.println(item.toString());
-			out.flush();
+	public void store(List<Item> items) throws IOException {
+		// encoding happens outside the lock, in the thread of each consumer
+		List<byte[]> encoded = new ArrayList<byte[]>(items.size());
+		for(Item item : items) {
+			encoded.add(codec.encode(item));
+		}
+		
+		synchronized(this) {
+			if(current == null) {
+				throw new IOException("No open segment in " + storageDirectory);
+			}
 			
+			try {
+				DataOutputStream out = current.out;
+				for(byte[] data : encoded) {
+					if(codec.isText()) {
+						out.write(data);
+						out.write('\n');
+					}
+					else {
+						out.writeInt(data.length);
+						out.write(data);
+					}
+				}
+				this.items += encoded.size();
+				
+				if(current.counter.getCount() >= rollSize) {
+					roll();
+				}
+			}
+			catch(IOException e) {
+				failure = e;
+				throw e;
+			}
 		}
-		if(items%1000==0) {
-			open();	
+	}
+	
+	/**
+	 * Completes the current segment and starts a new one.
+	 */
+	private synchronized void roll() throws IOException {
+		Segment segment = current;
+		current = null;
+		if(segment != null) {
+			segment.complete();
+		}
+		
+		long now = System.currentTimeMillis();
+		if(segment != null && segment.created >= now) {
+			// segments are named after their creation time
+			now = segment.created + 1;
 		}
+		current = new Segment(now);
+	}
 	
+	/**
+	 * Flushes the buffer of the current segment, and rolls it if it is too old.
+	 */
+	private synchronized void flush() throws IOException {
+		if(current == null) {
+			return;
+		}
+		
+		try {
+			if(System.currentTimeMillis() - current.created >= rollInterval && current.counter.getCount() > 0) {
+				roll();
+			}
+			else {
+				current.out.flush();
+			}
+		}
+		catch(IOException e) {
+			failure = e;
+			throw e;
+		}
 	}
-
+	
 	@Override
 	public void store(ItemState itemState) {
-		System.out.println(itemState.toString());	
+		System.out.println(itemState.toString());
 	}
 	
 	@Override
@@ -67,31 +252,117 @@ public class FlatFileStorage implements Storage {
 		return false;
 	}
 	
-
+	/**
+	 * Completes the segments left in progress by a previous run.
+	 * Compressed segments may end with a truncated block.
+	 */
+	private void recover() {
+		final String prefix = new File(storageDirectory, fileToStore).getName();
+		File[] files = storageDirectory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.endsWith(IN_PROGRESS);
+			}
+		});
+		if(files == null) {
+			return;
+		}
+		
+		for(File file : files) {
+			String name = file.getName();
+			File finalFile = new File(file.getParentFile(), name.substring(0, name.length() - IN_PROGRESS.length()));
+			try {
+				Files.move(file.toPath(), finalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				logger.warn("Segment " + finalFile + " was not completed by a previous run.");
+			}
+			catch(IOException e) {
+				logger.error("Cannot complete segment " + file, e);
+			}
+		}
+	}
+	
 	@Override
-	public boolean open(){
-		File storeFile = new File(storageDirectory, fileToStore+System.currentTimeMillis());
+	public synchronized boolean open(){
 		try {
-			out = new PrintWriter(new BufferedWriter(new FileWriter(storeFile, false)));
-			return true;
+			if(!storageDirectory.exists() && !storageDirectory.mkdirs()) {
+				logger.error("Cannot create " + storageDirectory);
+				return false;
+			}
+			
+			if(current == null) {
+				recover();
+			}
+			
+			roll();
+			failure = null;
 		} catch (IOException e) {
+			logger.error("Cannot open a segment in " + storageDirectory, e);
 			return false;
 		}
+		
+		if(flusher == null || !flusher.isAlive()) {
+			closed = false;
+			flusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while(!closed) {
+						try {
+							Thread.sleep(flushInterval);
+							flush();
+						}
+						catch(InterruptedException e) {
+							break;
+						}
+						catch(Exception e) {
+							logger.error("Flush of " + storageDirectory + " failed.", e);
+						}
+					}
+				}
+			});
+			flusher.setName("FlatFileFlusher");
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+		
+		return true;
 	}
-
+	
 	@Override
 	public void close() {
-		out.close();
+		closed = true;
+		if(flusher != null) {
+			flusher.interrupt();
+			try {
+				flusher.join(flushInterval);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			flusher = null;
+		}
+		
+		synchronized(this) {
+			try {
+				if(current != null) {
+					current.complete();
+				}
+			} catch (IOException e) {
+				logger.error("Cannot complete segment " + current.file, e);
+			}
+			current = null;
+		}
 	}
-
+	
+	/**
+	 * The storage is working if a segment is open and the last write did not fail.
+	 */
 	@Override
-	public boolean checkStatus() {
-		return true;
+	public synchronized boolean checkStatus() {
+		return current != null && failure == null;
 	}
 	
 	@Override
 	public String getStorageName(){
 		return this.storageName;
 	}
-	
+
 }
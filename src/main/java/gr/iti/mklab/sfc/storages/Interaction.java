@@ -0,0 +1,56 @@
+package gr.iti.mklab.sfc.storages;
+
+/**
+ * The interactions of a relation (e.g. mentions) from a user to another one during a time window,
+ * folded into a weighted edge: their number and the times of the first and the last of them.
+ *
+ */
+public class Interaction {
+	
+	private String source;
+	private String relation;
+	private String target;
+	
+	private long count;
+	private long firstSeen;
+	private long lastSeen;
+	
+	public Interaction(String source, String relation, String target, long count, long firstSeen, long lastSeen) {
+		this.source = source;
+		this.relation = relation;
+		this.target = target;
+		this.count = count;
+		this.firstSeen = firstSeen;
+		this.lastSeen = lastSeen;
+	}
+	
+	public String getSource() {
+		return source;
+	}
+	
+	public String getRelation() {
+		return relation;
+	}
+	
+	public String getTarget() {
+		return target;
+	}
+	
+	public long getCount() {
+		return count;
+	}
+	
+	public long getFirstSeen() {
+		return firstSeen;
+	}
+	
+	public long getLastSeen() {
+		return lastSeen;
+	}
+	
+	@Override
+	public String toString() {
+		return source + " -[" + relation + " x" + count + "]-> " + target;
+	}
+
+}
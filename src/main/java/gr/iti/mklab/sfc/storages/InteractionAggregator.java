@@ -0,0 +1,353 @@
+package gr.iti.mklab.sfc.storages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.metrics.Counter;
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Metrics;
+
+/**
+ * Folds the interactions between users (mentions, retweets) of a time window into weighted edges, and
+ * writes them to a graph storage at the end of the window, instead of an edge per interaction.
+ *
+ * During a window, user ids are numbered in order of appearance and the edges of each relation are kept
+ * in an open addressing table keyed by the pair of user numbers packed in a long, with their count and
+ * their first and last times in primitive arrays. The window is flushed early when it holds a maximum
+ * number of edges. Edges that the storage fails to write are folded into the next window.
+ *
+ * 	graph.aggregate.window: length of a window in milliseconds, 0 to write an edge per interaction (default 0)
+ * 	graph.aggregate.capacity: maximum number of edges in a window (default 1000000)
+ *
+ */
+public class InteractionAggregator {
+	
+	public static final String WINDOW = "graph.aggregate.window";
+	public static final String CAPACITY = "graph.aggregate.capacity";
+	
+	private Logger logger = LogManager.getLogger(InteractionAggregator.class);
+	
+	private InteractionStorage storage;
+	private String[] relations;
+	
+	private long window;
+	private int capacity;
+	
+	private Window current;
+	
+	private Counter interactions;
+	private Counter edges;
+	
+	private Thread flusher = null;
+	private volatile boolean closed = false;
+	
+	/**
+	 * Creates the aggregator configured for a graph storage.
+	 *
+	 * @return the aggregator, or null if interactions are not aggregated
+	 */
+	public static InteractionAggregator create(Configuration config, InteractionStorage storage, String... relations) {
+		long window = Long.parseLong(config.getParameter(WINDOW, "0"));
+		if(window <= 0) {
+			return null;
+		}
+		
+		int capacity = Integer.parseInt(config.getParameter(CAPACITY, "1000000"));
+		return new InteractionAggregator(storage, window, capacity, relations);
+	}
+	
+	/**
+	 * @param window length of a window in milliseconds
+	 * @param capacity maximum number of edges in a window
+	 * @param relations the relations of the edges, e.g. the labels of mentions and retweets
+	 */
+	public InteractionAggregator(InteractionStorage storage, long window, int capacity, String... relations) {
+		this.storage = storage;
+		this.window = window;
+		this.capacity = Math.max(1, capacity);
+		this.relations = relations;
+		
+		this.current = new Window(relations.length);
+		
+		String name = storage.getStorageName();
+		interactions = Metrics.counter("sfc_graph_interactions_total", "storage", name);
+		edges = Metrics.counter("sfc_graph_aggregated_edges_total", "storage", name);
+		Metrics.gauge("sfc_graph_pending_edges", new Gauge() {
+			@Override
+			public double getValue() {
+				return size();
+			}
+		}, "storage", name);
+	}
+	
+	/**
+	 * Counts an interaction of the given relation from the source user to the target user.
+	 */
+	public void add(String source, String relation, String target, long time) {
+		if(add(source, relation, target, 1, time, time)) {
+			interactions.increment();
+		}
+	}
+	
+	private boolean add(String source, String relation, String target, long count, long firstSeen, long lastSeen) {
+		int r = indexOf(relation);
+		if(r < 0 || source == null || target == null) {
+			return false;
+		}
+		
+		synchronized(this) {
+			current.add(source, r, target, count, firstSeen, lastSeen);
+			if(current.size >= capacity) {
+				notifyAll();
+			}
+		}
+		return true;
+	}
+	
+	private int indexOf(String relation) {
+		for(int r = 0; r < relations.length; r++) {
+			if(relations[r].equals(relation)) {
+				return r;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return the number of edges in the current window
+	 */
+	public synchronized int size() {
+		return current.size;
+	}
+	
+	/**
+	 * Starts the thread that writes the edges at the end of each window.
+	 */
+	public synchronized void start() {
+		if(flusher != null && flusher.isAlive()) {
+			return;
+		}
+		
+		closed = false;
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!closed) {
+					try {
+						awaitWindow();
+						if(!flush()) {
+							// the storage is unavailable, wait for a whole window before the next attempt
+							Thread.sleep(window);
+						}
+					}
+					catch(InterruptedException e) {
+						break;
+					}
+				}
+			}
+		});
+		flusher.setName("InteractionAggregator-" + storage.getStorageName());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	private synchronized void awaitWindow() throws InterruptedException {
+		long end = System.currentTimeMillis() + window;
+		long remaining;
+		while(!closed && current.size < capacity && (remaining = end - System.currentTimeMillis()) > 0) {
+			wait(remaining);
+		}
+	}
+	
+	/**
+	 * Writes the edges of the current window and starts a new one.
+	 *
+	 * @return false if the storage failed to write the edges, which are kept in the new window
+	 */
+	public boolean flush() {
+		Window drained;
+		synchronized(this) {
+			if(current.size == 0) {
+				return true;
+			}
+			drained = current;
+			current = new Window(relations.length);
+		}
+		
+		List<Interaction> batch = drained.toInteractions(relations);
+		try {
+			storage.storeInteractions(batch);
+			edges.add(batch.size());
+			return true;
+		}
+		catch(IOException e) {
+			logger.error("Writing " + batch.size() + " edges to " + storage.getStorageName() + " failed. Retry with the next window.", e);
+			for(Interaction interaction : batch) {
+				add(interaction.getSource(), interaction.getRelation(), interaction.getTarget(),
+						interaction.getCount(), interaction.getFirstSeen(), interaction.getLastSeen());
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Stops the thread and writes the last window.
+	 */
+	public void close() {
+		closed = true;
+		Thread flusher;
+		synchronized(this) {
+			flusher = this.flusher;
+			this.flusher = null;
+			notifyAll();
+		}
+		
+		if(flusher != null) {
+			flusher.interrupt();
+			try {
+				flusher.join(window);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+	
+	/**
+	 * The users and the edges of a window.
+	 */
+	private static class Window {
+		
+		Map<String, Integer> numbers = new HashMap<String, Integer>();
+		List<String> users = new ArrayList<String>();
+		
+		EdgeTable[] tables;
+		int size = 0;
+		
+		Window(int relations) {
+			tables = new EdgeTable[relations];
+			for(int r = 0; r < relations; r++) {
+				tables[r] = new EdgeTable();
+			}
+		}
+		
+		int number(String user) {
+			Integer number = numbers.get(user);
+			if(number == null) {
+				number = users.size();
+				numbers.put(user, number);
+				users.add(user);
+			}
+			return number;
+		}
+		
+		void add(String source, int relation, String target, long count, long firstSeen, long lastSeen) {
+			long key = ((long) number(source) << 32) | (number(target) & 0xFFFFFFFFL);
+			if(tables[relation].add(key, count, firstSeen, lastSeen)) {
+				size++;
+			}
+		}
+		
+		List<Interaction> toInteractions(String[] relations) {
+			List<Interaction> interactions = new ArrayList<Interaction>(size);
+			for(int r = 0; r < tables.length; r++) {
+				EdgeTable table = tables[r];
+				for(int slot = 0; slot < table.keys.length; slot++) {
+					if(table.counts[slot] == 0) {
+						continue;
+					}
+					
+					long key = table.keys[slot];
+					String source = users.get((int) (key >>> 32));
+					String target = users.get((int) key);
+					interactions.add(new Interaction(source, relations[r], target, table.counts[slot],
+							table.firstSeen[slot], table.lastSeen[slot]));
+				}
+			}
+			return interactions;
+		}
+	}
+	
+	/**
+	 * Open addressing table with linear probing from a packed pair of users to the weight of their edge.
+	 * A slot is empty if its count is zero.
+	 */
+	private static class EdgeTable {
+		
+		long[] keys = new long[64];
+		long[] counts = new long[64];
+		long[] firstSeen = new long[64];
+		long[] lastSeen = new long[64];
+		
+		int size = 0;
+		
+		/**
+		 * @return whether the edge is new
+		 */
+		boolean add(long key, long count, long first, long last) {
+			if(2 * (size + 1) > keys.length) {
+				resize();
+			}
+			
+			int slot = find(keys, counts, key);
+			if(counts[slot] == 0) {
+				keys[slot] = key;
+				counts[slot] = count;
+				firstSeen[slot] = first;
+				lastSeen[slot] = last;
+				size++;
+				return true;
+			}
+			
+			counts[slot] += count;
+			firstSeen[slot] = Math.min(firstSeen[slot], first);
+			lastSeen[slot] = Math.max(lastSeen[slot], last);
+			return false;
+		}
+		
+		private static int find(long[] keys, long[] counts, long key) {
+			int mask = keys.length - 1;
+			int slot = hash(key) & mask;
+			while(counts[slot] != 0 && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		private static int hash(long key) {
+			key ^= key >>> 33;
+			key *= 0xff51afd7ed558ccdL;
+			key ^= key >>> 33;
+			return (int) key;
+		}
+		
+		private void resize() {
+			long[] oldKeys = keys, oldCounts = counts, oldFirst = firstSeen, oldLast = lastSeen;
+			
+			int length = keys.length * 2;
+			keys = new long[length];
+			counts = new long[length];
+			firstSeen = new long[length];
+			lastSeen = new long[length];
+			
+			for(int i = 0; i < oldKeys.length; i++) {
+				if(oldCounts[i] == 0) {
+					continue;
+				}
+				int slot = find(keys, counts, oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+				firstSeen[slot] = oldFirst[i];
+				lastSeen[slot] = oldLast[i];
+			}
+		}
+	}
+
+}
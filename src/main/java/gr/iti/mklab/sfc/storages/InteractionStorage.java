@@ -0,0 +1,20 @@
+package gr.iti.mklab.sfc.storages;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Represents a graph storage that is able to write the weighted edges folded by an {@link InteractionAggregator},
+ * instead of an edge per interaction.
+ *
+ */
+public interface InteractionStorage extends Storage {
+	
+	/**
+	 * Adds the interactions to the weights of the edges between their users, creating the missing edges.
+	 *
+	 * @throws IOException if none of the interactions was written
+	 */
+	public void storeInteractions(List<Interaction> interactions) throws IOException;
+
+}
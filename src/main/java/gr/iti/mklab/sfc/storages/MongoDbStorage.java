@@ -1,14 +1,32 @@
 package gr.iti.mklab.sfc.storages;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.mongodb.morphia.Morphia;
 import org.mongodb.morphia.dao.BasicDAO;
-import org.mongodb.morphia.query.Query;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.BulkWriteUpsert;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
 import com.mongodb.MongoException;
 import com.mongodb.WriteResult;
 
@@ -19,14 +37,45 @@ import gr.iti.mklab.framework.common.domain.ItemState;
 import gr.iti.mklab.framework.common.domain.MediaItem;
 import gr.iti.mklab.framework.common.domain.StreamUser;
 import gr.iti.mklab.framework.common.domain.WebPage;
+import gr.iti.mklab.sfc.management.ShardedStorage;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
+import gr.iti.mklab.sfc.metrics.Counter;
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Metrics;
 
 /**
  * Class for storing items in mongo db
  * 
+ * Batches of items are written with unordered bulk operations, one per collection.
+ * 
+ * The ids of items and media items and the urls of web pages already written are kept in caches, 
+ * so that documents seen recently are not sent to mongo again. The caches are bounded and evict the 
+ * least recently used keys, as well as keys not accessed for a while:
+ * 
+ * 	mongodb.cache.size: maximum number of keys in each cache (default 100000)
+ * 	mongodb.cache.expiry: milliseconds after which an unused key is evicted (default 3600000)
+ * 
+ * The mentions, shares and items of the stream users and the shares of web pages and media items
+ * are aggregated in memory and written periodically, as bulk $inc updates:
+ * 
+ * 	mongodb.flush.interval: milliseconds between two updates of the statistics (default 10000)
+ * 
+ * Optionally, the ids of the stored items are kept in a scalable Bloom filter, persisted on close and 
+ * rebuilt from mongo when the file is missing. Items that are definitely new are inserted rather than 
+ * upserted, sparing the server a lookup. A filter that misses recent items (e.g. after a crash) is safe: 
+ * the insert of an existing item fails with a duplicate key error, which marks it as existing.
+ * 
+ * 	mongodb.bloom.enabled: whether to use the filter (default false)
+ * 	mongodb.bloom.file: file of the filter (default items.bloom), suffixed with the shard of a sharded storage
+ * 	mongodb.bloom.capacity: number of ids of the first filter, more are added as needed (default 1000000)
+ * 	mongodb.bloom.fpp: false positive probability of the first filter (default 0.01)
+ * 
  * @author manosetro - manosetro@iti.gr
  *
  */
-public class MongoDbStorage implements Storage {
+@ThreadSafety(Policy.THREAD_SAFE)
+public class MongoDbStorage implements BatchStorage {
 
 	private static String HOST = "mongodb.host";
 	private static String DB = "mongodb.database";
@@ -34,6 +83,26 @@ public class MongoDbStorage implements Storage {
 	private static String USERNAME = "mongodb.username";
 	private static String PWD = "mongodb.password";
 	
+	private static String CACHE_SIZE = "mongodb.cache.size";
+	private static String CACHE_EXPIRY = "mongodb.cache.expiry";
+	
+	private static String FLUSH_INTERVAL = "mongodb.flush.interval";
+	
+	private static String BLOOM_ENABLED = "mongodb.bloom.enabled";
+	private static String BLOOM_FILE = "mongodb.bloom.file";
+	private static String BLOOM_CAPACITY = "mongodb.bloom.capacity";
+	private static String BLOOM_FPP = "mongodb.bloom.fpp";
+	
+	private static final String ID = "_id";
+	private static final String URL = "url";
+	
+	// counters of the stream users and of the web pages and media items
+	private static final int USER_ITEMS = 0, USER_MENTIONS = 1, USER_SHARES = 2;
+	private static final int SHARES = 0;
+	private static final int STRIPES = 16;
+	
+	private static final int DUPLICATE_KEY = 11000;
+	
 	private Logger logger = LogManager.getLogger(MongoDbStorage.class);
 	
 	private String storageName = "Mongodb";
@@ -47,13 +116,35 @@ public class MongoDbStorage implements Storage {
 	private BasicDAO<WebPage, String> webPageDAO = null;
 	private BasicDAO<ItemState, String> itemStateDAO = null;
 	
-	private Integer items = 0, wPages = 0, users = 0;
-	private Integer itemInsertions = 0, mediaItemInsertions = 0, wPageInsertions = 0, userInsertions = 0;
+	// maps entities to documents for the bulk operations
+	private Morphia morphia = new Morphia();
 	
-	private HashMap<String, Integer> webpagesSharesMap;
-	private HashMap<String, Integer> mediaItemsSharesMap;
-	private HashMap<String, Item> itemsMap;
-	private HashMap<String, StreamUser> usersMap;
+	// updated by all the consumers
+	private AtomicLong items = new AtomicLong(0L), wPages = new AtomicLong(0L), users = new AtomicLong(0L);
+	private AtomicLong itemInsertions = new AtomicLong(0L), mediaItemInsertions = new AtomicLong(0L);
+	private AtomicLong wPageInsertions = new AtomicLong(0L), userInsertions = new AtomicLong(0L);
+	
+	// ids and urls of the documents known to be in mongo
+	private Cache<String, Boolean> itemsCache;
+	private Cache<String, Boolean> webpagesCache;
+	private Cache<String, Boolean> mediaItemsCache;
+	
+	// statistics not yet written to mongo
+	private CounterAggregator usersStatistics = new CounterAggregator(STRIPES, "items", "mentions", "shares");
+	private CounterAggregator webpagesShares = new CounterAggregator(STRIPES, "shares");
+	private CounterAggregator mediaItemsShares = new CounterAggregator(STRIPES, "shares");
+	
+	private long flushInterval;
+	private UpdaterTask updaterTask = null;
+	
+	// ids of the stored items, null if disabled
+	private ScalableBloomFilter itemsFilter = null;
+	private File bloomFile = null;
+	private int bloomCapacity;
+	private double bloomFpp;
+	
+	private Counter definitelyNew = Metrics.counter("sfc_mongodb_bloom_checks_total", "result", "new");
+	private Counter possiblyStored = Metrics.counter("sfc_mongodb_bloom_checks_total", "result", "possible");
 	
 	private String username;
 	private String password;
@@ -65,15 +156,82 @@ public class MongoDbStorage implements Storage {
 		this.username = config.getParameter(MongoDbStorage.USERNAME);
 		this.password = config.getParameter(MongoDbStorage.PWD);
 		
-		this.itemsMap = new HashMap<String, Item>();
-		this.usersMap = new HashMap<String, StreamUser>();
-		this.webpagesSharesMap = new HashMap<String, Integer>();
-		this.mediaItemsSharesMap = new HashMap<String, Integer>();
+		long cacheSize = Long.parseLong(config.getParameter(CACHE_SIZE, "100000"));
+		long cacheExpiry = Long.parseLong(config.getParameter(CACHE_EXPIRY, "3600000"));
+		
+		this.itemsCache = createCache("items", cacheSize, cacheExpiry);
+		this.webpagesCache = createCache("webpages", cacheSize, cacheExpiry);
+		this.mediaItemsCache = createCache("mediaitems", cacheSize, cacheExpiry);
+		
+		this.flushInterval = Long.parseLong(config.getParameter(FLUSH_INTERVAL, "10000"));
+		
+		if(Boolean.parseBoolean(config.getParameter(BLOOM_ENABLED, "false"))) {
+			this.bloomFile = new File(ShardedStorage.getShardPath(config, config.getParameter(BLOOM_FILE, "items.bloom")));
+			this.bloomCapacity = Integer.parseInt(config.getParameter(BLOOM_CAPACITY, "1000000"));
+			this.bloomFpp = Double.parseDouble(config.getParameter(BLOOM_FPP, "0.01"));
+		}
+	}
+	
+	/**
+	 * Creates a cache and exports its size and hit ratio.
+	 */
+	private static <V> Cache<String, V> createCache(String name, long size, long expiry) {
+		final Cache<String, V> cache = CacheBuilder.newBuilder()
+				.maximumSize(size)
+				.expireAfterAccess(expiry, TimeUnit.MILLISECONDS)
+				.recordStats()
+				.build();
+		
+		Metrics.gauge("sfc_mongodb_cache_size", new Gauge() {
+			@Override
+			public double getValue() {
+				return cache.size();
+			}
+		}, "cache", name);
+		Metrics.gauge("sfc_mongodb_cache_hit_ratio", new Gauge() {
+			@Override
+			public double getValue() {
+				return cache.stats().hitRate();
+			}
+		}, "cache", name);
+		Metrics.gauge("sfc_mongodb_cache_evictions", new Gauge() {
+			@Override
+			public double getValue() {
+				return cache.stats().evictionCount();
+			}
+		}, "cache", name);
+		
+		return cache;
 	}
 	
 	@Override
 	public void close() {
+		if(updaterTask != null) {
+			updaterTask.stopTask();
+			try {
+				updaterTask.join();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			updaterTask = null;
+		}
+		
+		if(itemsFilter != null) {
+			try {
+				itemsFilter.writeTo(bloomFile);
+				logger.info("Bloom filter of " + itemsFilter.size() + " item ids saved in " + bloomFile);
+			}
+			catch(IOException e) {
+				logger.error("Cannot save the bloom filter of item ids in " + bloomFile, e);
+			}
+		}
 		
+		logger.info("MongoDB storage wrote " + items.get() + " items (" + itemInsertions.get() + " new), " 
+				+ mediaItemInsertions.get() + " new media items, " + wPages.get() + " web pages (" + wPageInsertions.get() 
+				+ " new) and " + users.get() + " users.");
+		logger.info("MongoDB storage caches <items: " + itemsCache.stats() + ", mediaitems: " + mediaItemsCache.stats() 
+				+ ", webpages: " + webpagesCache.stats() + ">");
 	}
 
 	@Override
@@ -104,106 +262,138 @@ public class MongoDbStorage implements Storage {
 				logger.error("MongoDB Storage failed to open.", e);
 				return false;
 			}
+			
+			if(bloomFile != null) {
+				loadItemsFilter();
+			}
+			
+			updaterTask = new UpdaterTask();
+			updaterTask.start();
 		}
 		return true;
 	}
+	
+	/**
+	 * Reads the bloom filter of item ids from its file, or rebuilds it from the ids stored in mongo.
+	 */
+	private void loadItemsFilter() {
+		if(bloomFile.exists()) {
+			try {
+				itemsFilter = ScalableBloomFilter.readFrom(bloomFile);
+				logger.info("Bloom filter of " + itemsFilter.size() + " item ids loaded from " + bloomFile);
+				return;
+			}
+			catch(IOException e) {
+				logger.error("Cannot read the bloom filter of item ids from " + bloomFile + ". Rebuild it.", e);
+			}
+		}
+		
+		long t = System.currentTimeMillis();
+		ScalableBloomFilter filter = new ScalableBloomFilter(bloomCapacity, bloomFpp);
+		DBCursor cursor = itemDAO.getCollection().find(new BasicDBObject(), new BasicDBObject(ID, 1)).batchSize(10000);
+		try {
+			while(cursor.hasNext()) {
+				Object id = cursor.next().get(ID);
+				if(id != null) {
+					filter.put(id.toString());
+				}
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		
+		itemsFilter = filter;
+		logger.info("Bloom filter of " + filter.size() + " item ids rebuilt from mongo in " + (System.currentTimeMillis() - t) + " ms");
+	}
 
 	
 	@Override
-	public void store(Item item) {
-		
+	public void store(Item item) throws IOException {
+		store(Collections.singletonList(item));
+	}
+	
+	/**
+	 * Writes a batch of items with one unordered bulk operation per collection. Existence checks 
+	 * are left to the server: items, media items and web pages are upserted with $setOnInsert,
+	 * keyed on their id (url for web pages), so that existing documents are left untouched, and 
+	 * the upserts reported back tell which documents are new. Documents found in the caches are 
+	 * not sent at all. Stream users are upserted.
+	 * 
+	 * The caches, the Bloom filter, the statistics and the counters are updated once every bulk
+	 * of the batch has succeeded, so a failed batch can be stored again. The media items and web
+	 * pages of all the items not in the cache are written, including those of items inserted by a
+	 * failed attempt, but the statistics of such items are not counted when the batch is retried.
+	 * 
+	 * @throws IOException if a bulk operation fails
+	 */
+	@Override
+	public void store(List<Item> items) throws IOException {
 		try {
 			// Handle Items
-			String itemId = item.getId();
-			
-			boolean itemExists = false;
-			synchronized(itemsMap) {
-				Query<Item> q = itemDAO.createQuery().filter("id", itemId);
-				itemExists = itemsMap.containsKey(itemId) || itemDAO.exists(q);
-			}
-			
-			items++;
-			if(!itemExists) {
-				
-				// Item does not exist in MongoDB. Save it.
-				itemInsertions++;
+			List<Item> unseen = new ArrayList<Item>();
+			Set<Integer> inserts = new HashSet<Integer>();
+			BulkWriteOperation itemsBulk = itemDAO.getCollection().initializeUnorderedBulkOperation();
+			for(Item item : items) {
+				if(itemsCache.getIfPresent(item.getId()) != null) {
+					continue;
+				}
 				
 				item.setInsertionTime(System.currentTimeMillis());
-				itemDAO.save(item);
-				
-				if(item.getMentions() != null) {
-					String[] mentionedUsers = item.getMentions();
-					for(String mentionedUser : mentionedUsers) {
-						synchronized(usersMap) {
-							StreamUser tempUser = usersMap.get(mentionedUser);
-							if(tempUser == null) {
-								tempUser = new StreamUser();
-								tempUser.setId(mentionedUser);
-								usersMap.put(mentionedUser, tempUser);
-							}
-							tempUser.incMentions(1L);
-						}
-					}
+				if(itemsFilter != null && !itemsFilter.mightContain(item.getId())) {
+					definitelyNew.increment();
+					inserts.add(unseen.size());
+					itemsBulk.insert(morphia.toDBObject(item));
 				}
-
-				if(item.getReferencedUserId() != null) {
-					String userid = item.getReferencedUserId();
-					
-					synchronized(usersMap) {
-						StreamUser tempUser = usersMap.get(userid);
-						if(tempUser == null) {
-							tempUser = new StreamUser();
-							tempUser.setId(userid);
-							usersMap.put(userid, tempUser);
-						}
-						tempUser.incShares(1L);
+				else {
+					if(itemsFilter != null) {
+						possiblyStored.increment();
 					}
+					setOnInsert(itemsBulk, ID, item.getId(), item);
+				}
+				unseen.add(item);
+			}
+			
+			Set<Integer> inserted = unseen.isEmpty() ? Collections.<Integer>emptySet() : inserted(itemsBulk, inserts);
+			
+			List<MediaItem> mediaItems = new ArrayList<MediaItem>();
+			List<WebPage> webPages = new ArrayList<WebPage>();
+			for(Item item : unseen) {
+				if(item.getMediaItems() != null) {
+					mediaItems.addAll(item.getMediaItems());
+				}
+				if(item.getWebPages() != null) {
+					webPages.addAll(item.getWebPages());
 				}
-				
-				// Handle Media Items
-				storeMediaItems(item.getMediaItems());
-				
-				// Handle Web Pages
-				storeWebPages(item.getWebPages());
 			}
 			
+			// Handle Media Items
+			Set<Integer> insertedMediaItems = storeMediaItems(mediaItems);
+			
+			// Handle Web Pages
+			int insertedWebPages = storeWebPages(webPages);
+			
 			// Handle Stream Users
-			StreamUser user = item.getStreamUser();
-			if(user != null) {
-				
-				user.setLastUpdated(System.currentTimeMillis());
-				
-				users++;
-				
-				//String userId = user.getId();
-				//boolean userExists = false;
-				//synchronized(usersMap) {
-				//	userExists = usersMap.containsKey(userId);
-				//}
-				
-				//if(!userExists) {
-					// save stream user
-					userInsertions++;
-					streamUserDAO.save(user);
-					
-					StreamUser tempUser = usersMap.get(user.getId());
-					if(tempUser == null) {
-						tempUser = new StreamUser();
-						tempUser.setId(user.getId());
-						tempUser.setProfileImage(user.getProfileImage());
-						tempUser.setName(user.getName());
-						tempUser.setLastUpdated(user.getLastUpdated());
-						usersMap.put(user.getId(), tempUser);
-					}
-					tempUser.incItems(1);
-					tempUser.incMentions(1L);
-				//}
+			List<StreamUser> streamUsers = storeStreamUsers(items);
+			
+			// the whole batch is stored
+			for(Item item : unseen) {
+				itemsCache.put(item.getId(), Boolean.TRUE);
+				if(itemsFilter != null) {
+					itemsFilter.put(item.getId());
+				}
 			}
+			this.items.addAndGet(items.size());
+			itemInsertions.addAndGet(inserted.size());
+			
+			countItems(unseen, inserted, insertedMediaItems);
+			countMediaItems(mediaItems, insertedMediaItems);
+			countWebPages(webPages, insertedWebPages);
+			countStreamUsers(streamUsers);
 		}
 		catch(MongoException e) {
-			logger.error("Storing item " + item.getId() + " failed.", e);
+			throw new IOException("Storing a batch of " + items.size() + " items failed.", e);
 		}
-	
 	}
 	
 	@Override
@@ -216,69 +406,217 @@ public class MongoDbStorage implements Storage {
 		}
 	}
 	
-	private void storeMediaItems(List<MediaItem> mediaItems) {
-		if(mediaItemDAO != null && mediaItems != null) {
-			for(MediaItem mediaItem : mediaItems) {
-
-				String mediaItemId = mediaItem.getId();
+	/**
+	 * Stream users are upserted with $set, so that their statistics, updated with $inc, are kept.
+	 * 
+	 * @return the stream users of the items
+	 */
+	private List<StreamUser> storeStreamUsers(List<Item> items) {
+		List<StreamUser> streamUsers = new ArrayList<StreamUser>();
+		BulkWriteOperation usersBulk = streamUserDAO.getCollection().initializeUnorderedBulkOperation();
+		for(Item item : items) {
+			StreamUser user = item.getStreamUser();
+			if(user == null) {
+				continue;
+			}
+			
+			user.setLastUpdated(System.currentTimeMillis());
+			
+			DBObject document = morphia.toDBObject(user);
+			document.removeField(ID);
+			for(String field : usersStatistics.getFields()) {
+				document.removeField(field);
+			}
+			usersBulk.find(new BasicDBObject(ID, user.getId())).upsert().updateOne(new BasicDBObject("$set", document));
+			streamUsers.add(user);
+		}
+		
+		if(!streamUsers.isEmpty()) {
+			execute(usersBulk);
+		}
+		return streamUsers;
+	}
+	
+	/**
+	 * @return the indices of the media items that were inserted as new documents
+	 */
+	private Set<Integer> storeMediaItems(List<MediaItem> mediaItems) {
+		Set<Integer> inserted = new HashSet<Integer>();
+		if(mediaItemDAO == null) {
+			return inserted;
+		}
+		
+		List<Integer> unseen = new ArrayList<Integer>();
+		BulkWriteOperation mediaBulk = mediaItemDAO.getCollection().initializeUnorderedBulkOperation();
+		for(int index = 0; index < mediaItems.size(); index++) {
+			MediaItem mediaItem = mediaItems.get(index);
+			if(mediaItemsCache.getIfPresent(mediaItem.getId()) == null) {
+				setOnInsert(mediaBulk, ID, mediaItem.getId(), mediaItem);
+				unseen.add(index);
+			}
+		}
+		
+		if(!unseen.isEmpty()) {
+			for(int index : upserted(mediaBulk)) {
+				inserted.add(unseen.get(index));
+			}
+		}
+		return inserted;
+	}
+	
+	/**
+	 * @return the number of web pages that were inserted as new documents
+	 */
+	private int storeWebPages(List<WebPage> webPages) {
+		if(webPageDAO == null) {
+			return 0;
+		}
+		
+		BulkWriteOperation webPagesBulk = webPageDAO.getCollection().initializeUnorderedBulkOperation();
+		int requests = 0;
+		for(WebPage webPage : webPages) {
+			if(webpagesCache.getIfPresent(webPage.getUrl()) == null) {
+				setOnInsert(webPagesBulk, URL, webPage.getUrl(), webPage);
+				requests++;
+			}
+		}
+		
+		return (requests == 0) ? 0 : upserted(webPagesBulk).size();
+	}
+	
+	/**
+	 * Counts the mentions and shares of the new items, and the shares of their media items that
+	 * were already stored. The media items of the items are in the same order in mediaItems.
+	 * 
+	 * @param inserted the indices of the new items in unseen
+	 * @param insertedMediaItems the indices of the new media items in mediaItems
+	 */
+	private void countItems(List<Item> unseen, Set<Integer> inserted, Set<Integer> insertedMediaItems) {
+		int mediaIndex = 0;
+		for(int index = 0; index < unseen.size(); index++) {
+			Item item = unseen.get(index);
+			boolean isNew = inserted.contains(index);
 			
-				boolean mediaExists = false;
-				synchronized(mediaItemsSharesMap) {
-					mediaExists = mediaItemsSharesMap.containsKey(mediaItemId) || mediaItemDAO.exists(mediaItemDAO.createQuery().filter("id", mediaItemId));
+			if(isNew && item.getMentions() != null) {
+				for(String mentionedUser : item.getMentions()) {
+					usersStatistics.add(mentionedUser, USER_MENTIONS, 1L);
 				}
+			}
+			
+			if(isNew && item.getReferencedUserId() != null) {
+				usersStatistics.add(item.getReferencedUserId(), USER_SHARES, 1L);
+			}
 			
-				if(!mediaExists) {	
-					// MediaItem does not exist. Save it.
-					mediaItemInsertions++;
-					mediaItemDAO.save(mediaItem);
-					synchronized(mediaItemsSharesMap) {
-						mediaItemsSharesMap.put(mediaItemId, 0);
+			if(item.getMediaItems() != null) {
+				for(MediaItem mediaItem : item.getMediaItems()) {
+					// shares are counted for the media items that existed
+					if(isNew && mediaItemDAO != null && !insertedMediaItems.contains(mediaIndex)) {
+						mediaItemsShares.add(mediaItem.getId(), SHARES, 1L);
 					}
+					mediaIndex++;
 				}
-				else {
-					//Update media item
-					synchronized(mediaItemsSharesMap) {
-						Integer shares = mediaItemsSharesMap.get(mediaItemId);
-						if(shares == null) {
-							shares = 0;
-						}
-						mediaItemsSharesMap.put(mediaItemId, ++shares);
-					}
+			}
+			
+			if(isNew && webPageDAO != null && item.getWebPages() != null) {
+				wPages.addAndGet(item.getWebPages().size());
+				for(WebPage webPage : item.getWebPages()) {
+					webpagesShares.add(webPage.getUrl(), SHARES, 1L);
 				}
 			}
 		}
 	}
 	
+	private void countMediaItems(List<MediaItem> mediaItems, Set<Integer> inserted) {
+		if(mediaItemDAO == null) {
+			return;
+		}
+		
+		mediaItemInsertions.addAndGet(inserted.size());
+		for(MediaItem mediaItem : mediaItems) {
+			mediaItemsCache.put(mediaItem.getId(), Boolean.TRUE);
+		}
+	}
 	
-	private void storeWebPages(List<WebPage> webPages ) {
-		if(webPages != null && webPageDAO != null) {
-			for(WebPage webPage : webPages) {
-				wPages++;
-				String webPageURL = webPage.getUrl();
-				
-				boolean wpExists = false;
-				synchronized(webpagesSharesMap) {
-					wpExists = webpagesSharesMap.containsKey(webPageURL) || webPageDAO.exists(webPageDAO.createQuery().filter("url", webPageURL));
-				}
-				
-				if(!wpExists) {
-					// Web page does not exist. Save it.
-					wPageInsertions++;
-					webPageDAO.save(webPage);
-					synchronized(webpagesSharesMap) {
-						webpagesSharesMap.put(webPageURL, 1);
-					}
-				}
-				else {
-					synchronized(webpagesSharesMap) {
-						Integer shares = webpagesSharesMap.get(webPageURL);
-						if(shares == null) {
-							shares = 0;
-						}
-						webpagesSharesMap.put(webPageURL, ++shares);
-					}
+	private void countWebPages(List<WebPage> webPages, int inserted) {
+		if(webPageDAO == null) {
+			return;
+		}
+		
+		wPageInsertions.addAndGet(inserted);
+		for(WebPage webPage : webPages) {
+			webpagesCache.put(webPage.getUrl(), Boolean.TRUE);
+		}
+	}
+	
+	private void countStreamUsers(List<StreamUser> streamUsers) {
+		for(StreamUser user : streamUsers) {
+			users.incrementAndGet();
+			userInsertions.incrementAndGet();
+			
+			usersStatistics.add(user.getId(), USER_ITEMS, 1L);
+			usersStatistics.add(user.getId(), USER_MENTIONS, 1L);
+		}
+	}
+	
+	/**
+	 * Adds an upsert that inserts the entity if no document has the given key, and leaves an existing document unchanged.
+	 */
+	private void setOnInsert(BulkWriteOperation bulk, String field, Object key, Object entity) {
+		DBObject document = morphia.toDBObject(entity);
+		document.removeField(field);
+		
+		bulk.find(new BasicDBObject(field, key)).upsert().updateOne(new BasicDBObject("$setOnInsert", document));
+	}
+	
+	/**
+	 * Executes a bulk of upserts and returns the indices of the requests that inserted a new document.
+	 */
+	private Set<Integer> upserted(BulkWriteOperation bulk) {
+		return inserted(bulk, Collections.<Integer>emptySet());
+	}
+	
+	/**
+	 * Executes a bulk of upserts and inserts and returns the indices of the requests that inserted a new document.
+	 * 
+	 * @param inserts the indices of the inserts. Those that fail with a duplicate key error are existing documents.
+	 */
+	private Set<Integer> inserted(BulkWriteOperation bulk, Set<Integer> inserts) {
+		Set<Integer> duplicates = new HashSet<Integer>();
+		
+		Set<Integer> indices = new HashSet<Integer>();
+		for(BulkWriteUpsert upsert : execute(bulk, duplicates).getUpserts()) {
+			indices.add(upsert.getIndex());
+		}
+		for(Integer index : inserts) {
+			if(!duplicates.contains(index)) {
+				indices.add(index);
+			}
+		}
+		return indices;
+	}
+	
+	private BulkWriteResult execute(BulkWriteOperation bulk) {
+		return execute(bulk, new HashSet<Integer>());
+	}
+	
+	/**
+	 * Duplicate key errors, raised by inserts of existing documents or when two upserts of the same key race, 
+	 * are ignored: the document is already there.
+	 * 
+	 * @param duplicates receives the indices of the requests that failed with a duplicate key error
+	 */
+	private BulkWriteResult execute(BulkWriteOperation bulk, Set<Integer> duplicates) {
+		try {
+			return bulk.execute();
+		}
+		catch(BulkWriteException e) {
+			for(BulkWriteError error : e.getWriteErrors()) {
+				if(error.getCode() != DUPLICATE_KEY) {
+					throw e;
 				}
+				duplicates.add(error.getIndex());
 			}
+			return e.getWriteResult();
 		}
 	}
 	
@@ -301,99 +639,93 @@ public class MongoDbStorage implements Storage {
 		return this.storageName;
 	}
 	
-	/*
+	/**
+	 * Writes the statistics aggregated since the previous update, with one bulk of $inc updates per collection.
+	 */
+	private void updateStatistics() {
+		long t = System.currentTimeMillis();
+		
+		int users = increment(streamUserDAO, ID, usersStatistics);
+		int webPages = increment(webPageDAO, URL, webpagesShares);
+		int mediaItems = increment(mediaItemDAO, ID, mediaItemsShares);
+		
+		t = System.currentTimeMillis() - t;
+		if(users + webPages + mediaItems > 0) {
+			logger.info("Statistics of " + users + " users, " + webPages + " web pages and " + mediaItems 
+					+ " media items updated in " + t + " milliseconds");
+		}
+	}
+	
+	private int increment(BasicDAO<?, String> dao, String field, CounterAggregator aggregator) {
+		Map<String, long[]> deltas = aggregator.drain();
+		if(dao == null || deltas.isEmpty()) {
+			return 0;
+		}
+		
+		String[] fields = aggregator.getFields();
+		BulkWriteOperation bulk = dao.getCollection().initializeUnorderedBulkOperation();
+		for(Entry<String, long[]> e : deltas.entrySet()) {
+			BasicDBObject increments = new BasicDBObject();
+			long[] counters = e.getValue();
+			for(int i = 0; i < fields.length; i++) {
+				if(counters[i] != 0) {
+					increments.append(fields[i], counters[i]);
+				}
+			}
+			bulk.find(new BasicDBObject(field, e.getKey())).updateOne(new BasicDBObject("$inc", increments));
+		}
+		execute(bulk);
+		
+		return deltas.size();
+	}
+	
 	private class UpdaterTask extends Thread {
 
-		private long timeout = 10 * 60 * 1000;
-		private boolean stop = true;
+		private volatile boolean stop = false;
+		
+		public UpdaterTask() {
+			super("MongoDbStorage-Updater");
+			setDaemon(true);
+		}
 		
 		@Override
 		public void run() {
-			stop = false;
 			while(!stop) {
 				try {
-					
 					synchronized(this) {
-						this.wait(timeout);
-					}
-					
-					logger.info("Update: ");
-					long t = System.currentTimeMillis();
-					
-					synchronized(itemsMap) {
-						logger.info(itemsMap.size() + " items to update");
-						for(Item item : itemsMap.values()) {
-							//itemDAO.updateItem(item);
-						}
-						itemsMap.clear();
-					}
-					
-					synchronized(usersMap) {
-						logger.info(usersMap.size() + " users to update");
-						for(Entry<String, StreamUser> user : usersMap.entrySet()) {
-							//streamUserDAO.updateStreamUserStatistics(user.getValue());
-						}
-						usersMap.clear();
-					}
-					
-					if(webPageDAO != null) {
-						synchronized(webpagesSharesMap) {
-							logger.info(webpagesSharesMap.size() + " web pages to update");
-							for(Entry<String, Integer> e : webpagesSharesMap.entrySet()) {
-								//webPageDAO.updateWebPageShares(e.getKey(), e.getValue());
-							}
-							webpagesSharesMap.clear();
-						}
-					}
-					
-					if(mediaItemDAO != null) {
-						synchronized(mediaItemsSharesMap) {
-							logger.info(mediaItemsSharesMap.size() + " media Items to update");
-							for(Entry<String, Integer> entry : mediaItemsSharesMap.entrySet()) {
-								//mediaItemDAO.updateMediaItemShares(entry.getKey(), entry.getValue());
-							}
-							mediaItemsSharesMap.clear();
+						if(!stop) {
+							this.wait(flushInterval);
 						}
 					}
-					
-					t = System.currentTimeMillis() - t;
-					logger.info("Mongo Updates took " + t + " milliseconds");
-					logger.info("======================================");
-					
-				} catch (Exception e) {
-					if(stop) {
-						logger.info("Mongo updater thread interrupted from sleep to stop");
-					}
-					else {
-						logger.error("Exception in mongo updater thread. ", e);
-						logger.info(mediaItemsSharesMap.size() + " media Items to update");
-						logger.info(webpagesSharesMap.size() + " web pages to update");
-						logger.info(usersMap.size() + " users to update");
-						logger.info(itemsMap.size() + " items to update");
-						
-						mediaItemsSharesMap.clear();
-						webpagesSharesMap.clear();
-						usersMap.clear();
-						itemsMap.clear();
-						
+				}
+				catch(InterruptedException e) {
+					if(!stop) {
+						logger.info("Mongo updater thread interrupted.");
+						break;
 					}
-					continue;
+				}
+				
+				try {
+					updateStatistics();
+				}
+				catch(Exception e) {
+					// the deltas of a failed update are dropped, the statistics are approximate anyway
+					logger.error("Exception in mongo updater thread. ", e);
 				}
 			}
 		}
 		
+		/**
+		 * Stops the task after a last update.
+		 */
 		public void stopTask() {
 			logger.info("Stop updater task");
-			try {
-				this.stop = true;
-				this.interrupt();
-			}
-			catch(Exception e) {
-				logger.error("Fail to stop update task in MongoDBStorage", e);
+			this.stop = true;
+			synchronized(this) {
+				this.notifyAll();
 			}
 		}
 		
 	}
-	*/
 	
 }
@@ -0,0 +1,279 @@
+package gr.iti.mklab.sfc.storages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.core.MediaType;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.api.client.WebResource;
+
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Histogram;
+import gr.iti.mklab.sfc.metrics.Metrics;
+
+/**
+ * Buffers the users and the relationships between them (mentions, retweets) written to neo4j and
+ * sends them in batches, as parameterized UNWIND ... MERGE statements in a single request to the
+ * transactional endpoint, instead of a cypher request per node, relationship and property.
+ *
+ * Entries are batched by a {@link BatchBuffer}: entries of a failed batch are retried by the caller of
+ * the failed {@link #add(List)}, or put back in the buffer and sent with the next batch if they were
+ * added earlier. Nodes and the relationships of tweets are merged, so a batch that is sent twice
+ * creates no duplicates. Weighted relationships, folded by an {@link InteractionAggregator}, are
+ * merged on their pair of users and their weight is incremented: if a request fails after neo4j committed
+ * it (e.g. the response is lost), the counts of its weighted relationships are added again when it is resent.
+ *
+ */
+public class Neo4jGraphWriter {
+	
+	/**
+	 * A user, and optionally a relationship from this user to another one: of a tweet, or weighted.
+	 */
+	public static class Relationship {
+		
+		final Object source;
+		final String type;
+		final Object target;
+		final Object tweetId;
+		final long timestamp;
+		
+		// number of interactions of a weighted relationship, 0 for the relationship of a tweet
+		final long count;
+		final long firstSeen;
+		
+		public Relationship(Object user) {
+			this(user, null, null, null, 0L);
+		}
+		
+		public Relationship(Object source, String type, Object target, Object tweetId, long timestamp) {
+			this(source, type, target, tweetId, 0L, timestamp, timestamp);
+		}
+		
+		public Relationship(Object source, String type, Object target, long count, long firstSeen, long lastSeen) {
+			this(source, type, target, null, count, firstSeen, lastSeen);
+		}
+		
+		private Relationship(Object source, String type, Object target, Object tweetId, long count, long firstSeen, long lastSeen) {
+			this.source = source;
+			this.type = type;
+			this.target = target;
+			this.tweetId = tweetId;
+			this.count = count;
+			this.firstSeen = firstSeen;
+			this.timestamp = lastSeen;
+		}
+	}
+	
+	private WebResource resource;
+	
+	private String userLabel;
+	private String userId;
+	private String tweetIdProperty;
+	private String timestampProperty;
+	
+	private String weightProperty = "weight";
+	private String firstSeenProperty = "firstSeen";
+	private String lastSeenProperty = "lastSeen";
+	
+	private BatchBuffer<Relationship> buffer;
+	
+	private Gson gson = new Gson();
+	
+	private Histogram batchLatency;
+	
+	/**
+	 * @param resource the transactional endpoint, e.g. http://localhost:7474/db/data/transaction/commit
+	 * @param batchSize number of entries that triggers a batch
+	 * @param capacity maximum number of entries kept while neo4j is unavailable
+	 */
+	public Neo4jGraphWriter(WebResource resource, String userLabel, String userId, String tweetIdProperty,
+			String timestampProperty, int batchSize, int capacity) {
+		this.resource = resource;
+		this.userLabel = userLabel;
+		this.userId = userId;
+		this.tweetIdProperty = tweetIdProperty;
+		this.timestampProperty = timestampProperty;
+		
+		this.buffer = new BatchBuffer<Relationship>("neo4j", new BatchBuffer.Sender<Relationship>() {
+			@Override
+			public void send(List<Relationship> batch) throws IOException {
+				Neo4jGraphWriter.this.send(batch);
+			}
+		}, batchSize, capacity);
+		
+		batchLatency = Metrics.histogram("sfc_neo4j_batch_latency_seconds");
+		Metrics.gauge("sfc_neo4j_pending_entries", new Gauge() {
+			@Override
+			public double getValue() {
+				return getPending();
+			}
+		});
+	}
+	
+	/**
+	 * Sets the names of the properties of weighted relationships.
+	 */
+	public void setWeightProperties(String weightProperty, String firstSeenProperty, String lastSeenProperty) {
+		this.weightProperty = weightProperty;
+		this.firstSeenProperty = firstSeenProperty;
+		this.lastSeenProperty = lastSeenProperty;
+	}
+	
+	public void add(List<Relationship> relationships) throws IOException {
+		buffer.add(relationships);
+	}
+	
+	/**
+	 * Sends the pending entries if the oldest of them was added more than maxAge milliseconds ago.
+	 */
+	public void flushIfOlder(long maxAge) throws IOException {
+		buffer.flushIfOlder(maxAge);
+	}
+	
+	public void flush() throws IOException {
+		buffer.flush();
+	}
+	
+	public int getPending() {
+		return buffer.getPending();
+	}
+	
+	/**
+	 * Runs a single statement, e.g. to create an index.
+	 */
+	public void execute(String statement) throws IOException {
+		JsonArray statements = new JsonArray();
+		statements.add(statement(statement, new LinkedHashMap<String, Object>()));
+		post(statements);
+	}
+	
+	private void send(List<Relationship> batch) throws IOException {
+		Set<Object> users = new LinkedHashSet<Object>();
+		Map<String, List<Map<String, Object>>> rows = new LinkedHashMap<String, List<Map<String, Object>>>();
+		Map<String, List<Map<String, Object>>> weightedRows = new LinkedHashMap<String, List<Map<String, Object>>>();
+		for(Relationship relationship : batch) {
+			users.add(relationship.source);
+			if(relationship.type == null) {
+				continue;
+			}
+			users.add(relationship.target);
+			
+			Map<String, List<Map<String, Object>>> typesRows = (relationship.count > 0) ? weightedRows : rows;
+			List<Map<String, Object>> typeRows = typesRows.get(relationship.type);
+			if(typeRows == null) {
+				typeRows = new ArrayList<Map<String, Object>>();
+				typesRows.put(relationship.type, typeRows);
+			}
+			
+			Map<String, Object> row = new LinkedHashMap<String, Object>();
+			row.put("source", relationship.source);
+			row.put("target", relationship.target);
+			if(relationship.count > 0) {
+				row.put("count", relationship.count);
+				row.put("firstSeen", relationship.firstSeen);
+				row.put("lastSeen", relationship.timestamp);
+			}
+			else {
+				row.put("tweetId", relationship.tweetId);
+				row.put("timestamp", relationship.timestamp);
+			}
+			typeRows.add(row);
+		}
+		
+		JsonArray statements = new JsonArray();
+		
+		Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+		parameters.put("users", users);
+		statements.add(statement("UNWIND {users} AS id MERGE (:" + userLabel + " {" + userId + ": id})", parameters));
+		
+		for(Map.Entry<String, List<Map<String, Object>>> entry : rows.entrySet()) {
+			parameters = new LinkedHashMap<String, Object>();
+			parameters.put("rows", entry.getValue());
+			statements.add(statement("UNWIND {rows} AS row "
+					+ "MATCH (n1:" + userLabel + " {" + userId + ": row.source}) "
+					+ "MATCH (n2:" + userLabel + " {" + userId + ": row.target}) "
+					+ "MERGE (n1)-[r:" + entry.getKey() + " {" + tweetIdProperty + ": row.tweetId}]->(n2) "
+					+ "SET r." + timestampProperty + " = row.timestamp", parameters));
+		}
+		
+		for(Map.Entry<String, List<Map<String, Object>>> entry : weightedRows.entrySet()) {
+			parameters = new LinkedHashMap<String, Object>();
+			parameters.put("rows", entry.getValue());
+			statements.add(statement("UNWIND {rows} AS row "
+					+ "MATCH (n1:" + userLabel + " {" + userId + ": row.source}) "
+					+ "MATCH (n2:" + userLabel + " {" + userId + ": row.target}) "
+					+ "MERGE (n1)-[r:" + entry.getKey() + "]->(n2) "
+					+ "ON CREATE SET r." + weightProperty + " = 0, r." + firstSeenProperty + " = row.firstSeen, "
+					+ "r." + lastSeenProperty + " = row.lastSeen "
+					+ "SET r." + weightProperty + " = r." + weightProperty + " + row.count, "
+					+ "r." + firstSeenProperty + " = CASE WHEN row.firstSeen < r." + firstSeenProperty
+					+ " THEN row.firstSeen ELSE r." + firstSeenProperty + " END, "
+					+ "r." + lastSeenProperty + " = CASE WHEN row.lastSeen > r." + lastSeenProperty
+					+ " THEN row.lastSeen ELSE r." + lastSeenProperty + " END", parameters));
+		}
+		
+		long start = System.nanoTime();
+		try {
+			post(statements);
+			batchLatency.recordSince(start);
+		}
+		catch(IOException e) {
+			throw new IOException("Writing " + batch.size() + " entries to neo4j failed.", e);
+		}
+	}
+	
+	private JsonObject statement(String statement, Map<String, Object> parameters) {
+		JsonObject object = new JsonObject();
+		object.addProperty("statement", statement);
+		object.add("parameters", gson.toJsonTree(parameters));
+		return object;
+	}
+	
+	/**
+	 * Posts statements to the transactional endpoint, which runs them in one transaction.
+	 */
+	private void post(JsonArray statements) throws IOException {
+		JsonObject request = new JsonObject();
+		request.add("statements", statements);
+		
+		ClientResponse response = null;
+		try {
+			response = resource.accept(MediaType.APPLICATION_JSON)
+					.type(MediaType.APPLICATION_JSON)
+					.entity(request.toString())
+					.post(ClientResponse.class);
+			
+			String body = response.getEntity(String.class);
+			if(response.getStatus() != 200) {
+				throw new IOException("Neo4j responded with status " + response.getStatus() + ": " + body);
+			}
+			
+			JsonArray errors = new JsonParser().parse(body).getAsJsonObject().getAsJsonArray("errors");
+			if(errors != null && errors.size() > 0) {
+				throw new IOException("Neo4j statements failed: " + errors);
+			}
+		}
+		catch(ClientHandlerException | UniformInterfaceException | JsonParseException | IllegalStateException e) {
+			throw new IOException(e);
+		}
+		finally {
+			if(response != null) {
+				response.close();
+			}
+		}
+	}
+
+}
@@ -1,19 +1,41 @@
 package gr.iti.mklab.sfc.storages;
 
 import java.io.IOException;
-import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-import javax.ws.rs.core.MediaType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientResponse;
-import com.sun.jersey.api.client.WebResource;
 
 import gr.iti.mklab.framework.common.domain.config.Configuration;
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
+import gr.iti.mklab.sfc.storages.Neo4jGraphWriter.Relationship;
 
-public class Neo4jStorage implements Storage {
+/**
+ * Class for storing the users of the items and their mentions and retweets in neo4j.
+ *
+ * Users and relationships are written in batches by a {@link Neo4jGraphWriter}, through the
+ * transactional cypher endpoint. A background thread sends the batches older than a maximum age.
+ * If graph.aggregate.window is set, mentions and retweets are folded by an {@link InteractionAggregator}
+ * and written once per window as weighted relationships, instead of a relationship per tweet.
+ *
+ * 	neo4j.batch.size: number of users and relationships sent at once (default 1000)
+ * 	neo4j.batch.age: maximum time in milliseconds before they are sent (default 1000)
+ * 	neo4j.buffer.capacity: maximum number of them kept while neo4j is unavailable (default 100000)
+ * 	neo4j.relationship.property.weight, neo4j.relationship.property.firstSeen, neo4j.relationship.property.lastSeen:
+ * 		properties of the weighted relationships (default weight, firstSeen, lastSeen)
+ *
+ */
+@ThreadSafety(Policy.THREAD_SAFE)
+public class Neo4jStorage implements BatchStorage, InteractionStorage {
+	
+	private Logger logger = LogManager.getLogger(Neo4jStorage.class);
 	
 	private static String HOST = "neo4j.host";
 	
@@ -24,6 +46,13 @@ public class Neo4jStorage implements Storage {
 	private static String RELATIONSHIP_MENTIONS = "neo4j.relationship.mentions";
 	private static String RELATIONSHIP_PROPERTY_TIMESTAMP = "neo4j.relationship.property.timestamp";
 	private static String RELATIONSHIP_PROPERTY_TWEETID = "neo4j.relationship.property.tweetid";
+	private static String RELATIONSHIP_PROPERTY_WEIGHT = "neo4j.relationship.property.weight";
+	private static String RELATIONSHIP_PROPERTY_FIRSTSEEN = "neo4j.relationship.property.firstSeen";
+	private static String RELATIONSHIP_PROPERTY_LASTSEEN = "neo4j.relationship.property.lastSeen";
+	
+	private static String BATCH_SIZE = "neo4j.batch.size";
+	private static String BATCH_AGE = "neo4j.batch.age";
+	private static String BUFFER_CAPACITY = "neo4j.buffer.capacity";
 	
 	private String storageName = "Neo4j";
 	
@@ -38,8 +67,19 @@ public class Neo4jStorage implements Storage {
 	private String relationshipPropertyTimestamp;
 	private String relationshipPropertyTweedId;
 	
-	WebResource resource;
-	ClientResponse response;
+	private String relationshipPropertyWeight;
+	private String relationshipPropertyFirstSeen;
+	private String relationshipPropertyLastSeen;
+	
+	private int batchSize;
+	private long batchAge;
+	private int bufferCapacity;
+	
+	private Neo4jGraphWriter writer = null;
+	private InteractionAggregator aggregator;
+	
+	private Thread flusher = null;
+	private volatile boolean closed = false;
 	
 	public Neo4jStorage(Configuration config) {
 		
@@ -53,122 +93,186 @@ public class Neo4jStorage implements Storage {
 		
 		this.relationshipPropertyTimestamp = config.getParameter(RELATIONSHIP_PROPERTY_TIMESTAMP);
 		this.relationshipPropertyTweedId = config.getParameter(RELATIONSHIP_PROPERTY_TWEETID);
+		
+		this.relationshipPropertyWeight = config.getParameter(RELATIONSHIP_PROPERTY_WEIGHT, "weight");
+		this.relationshipPropertyFirstSeen = config.getParameter(RELATIONSHIP_PROPERTY_FIRSTSEEN, "firstSeen");
+		this.relationshipPropertyLastSeen = config.getParameter(RELATIONSHIP_PROPERTY_LASTSEEN, "lastSeen");
+		
+		this.batchSize = Integer.parseInt(config.getParameter(BATCH_SIZE, "1000"));
+		this.batchAge = Long.parseLong(config.getParameter(BATCH_AGE, "1000"));
+		this.bufferCapacity = Integer.parseInt(config.getParameter(BUFFER_CAPACITY, "100000"));
+		
+		this.aggregator = InteractionAggregator.create(config, this, relationshipMentions, relationshipReTweets);
 	}
-
+	
 	@Override
 	public boolean open() {
-		resource = Client.create().resource(host + "db/data/cypher");
+		if(writer == null) {
+			writer = new Neo4jGraphWriter(Client.create().resource(host + "db/data/transaction/commit"),
+					nodeUserLabel, nodeUserId, relationshipPropertyTweedId, relationshipPropertyTimestamp,
+					batchSize, bufferCapacity);
+			writer.setWeightProperties(relationshipPropertyWeight, relationshipPropertyFirstSeen, relationshipPropertyLastSeen);
+		}
+		
 		try {
-			createIndex(nodeUserLabel, nodeUserId);
-		} 
-		catch (SQLException e) {
-			e.printStackTrace();
+			writer.execute("CREATE INDEX ON :" + nodeUserLabel + "(" + nodeUserId + ")");
+		}
+		catch (IOException e) {
+			logger.error("Cannot create the index of " + nodeUserLabel + " nodes.", e);
+		}
+		
+		closed = false;
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!closed) {
+					try {
+						Thread.sleep(Math.max(1L, batchAge / 2));
+					} catch (InterruptedException e) {
+						break;
+					}
+					
+					try {
+						writer.flushIfOlder(batchAge);
+					}
+					catch(IOException e) {
+						logger.error(e.getMessage(), e);
+					}
+				}
+			}
+		});
+		flusher.setName("Neo4jStorage-Flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		
+		if(aggregator != null) {
+			aggregator.start();
 		}
 		
 		return true;
 	}
-
+	
 	@Override
 	public void store(ItemState itemState) {
-		System.out.println(itemState.toString());	
+		System.out.println(itemState.toString());
 	}
 	
 	@Override
 	public void store(Item item) throws IOException {
-		String userId = item.getUserId().split("#")[1];
-		String tweetId = item.getId().split("#")[1];
-		long timestamp = item.getPublicationTime();
-
-		try {
-			getOrCreateVertex(userId, nodeUserId);
-			//handle mentions
-			String[] mentions = item.getMentions();
-			for(String userMention : mentions) {
+		store(Collections.singletonList(item));
+	}
+	
+	@Override
+	public void store(List<Item> items) throws IOException {
+		List<Relationship> relationships = new ArrayList<Relationship>();
+		// mentions and retweets folded by the aggregator, once the batch is accepted by the writer
+		List<Interaction> interactions = new ArrayList<Interaction>();
+		for(Item item : items) {
+			Object userId = key(item.getUserId());
+			Object tweetId = key(item.getId());
+			long timestamp = item.getPublicationTime();
+			
+			relationships.add(new Relationship(userId));
+			
+			//handle retweets
+			if(!item.isOriginal()) {
+				if(item.getReferencedUserId() == null) {
+					continue;
+				}
 				
-				//handle retweets
-				if(!item.isOriginal()) {
-					String userRetweets = item.getReferencedUserId().split("#")[1];
-					getOrCreateVertex(userRetweets, nodeUserId);
-					getOrCreateEdge(userId, userRetweets, relationshipReTweets);
-					addEdgeProperty(userId, userRetweets, relationshipPropertyTweedId, tweetId);
-					addEdgeProperty(userId, userRetweets, relationshipPropertyTimestamp, String.valueOf(timestamp));
+				if(aggregator != null) {
+					interactions.add(new Interaction(item.getUserId(), relationshipReTweets, item.getReferencedUserId(), 1, timestamp, timestamp));
 				}
 				else {
-					userMention = userMention.split("#")[1];
-					getOrCreateVertex(userMention, nodeUserId);
-					getOrCreateEdge(userId, userMention, relationshipMentions);
-					addEdgeProperty(userId, userMention, relationshipPropertyTweedId, tweetId);
-					addEdgeProperty(userId, userMention, relationshipPropertyTimestamp, String.valueOf(timestamp));
+					Object userRetweets = key(item.getReferencedUserId());
+					relationships.add(new Relationship(userId, relationshipReTweets, userRetweets, tweetId, timestamp));
 				}
-				
+				continue;
 			}
 			
-		} catch (SQLException e) {
-			e.printStackTrace();
+			//handle mentions
+			String[] mentions = item.getMentions();
+			if(mentions != null) {
+				for(String userMention : mentions) {
+					if(aggregator != null) {
+						interactions.add(new Interaction(item.getUserId(), relationshipMentions, userMention, 1, timestamp, timestamp));
+					}
+					else {
+						relationships.add(new Relationship(userId, relationshipMentions, key(userMention), tweetId, timestamp));
+					}
+				}
+			}
+		}
+		
+		writer.add(relationships);
+		
+		for(Interaction interaction : interactions) {
+			aggregator.add(interaction.getSource(), interaction.getRelation(), interaction.getTarget(), interaction.getFirstSeen());
 		}
 	}
-
+	
+	@Override
+	public void storeInteractions(List<Interaction> interactions) throws IOException {
+		List<Relationship> relationships = new ArrayList<Relationship>(interactions.size());
+		for(Interaction interaction : interactions) {
+			relationships.add(new Relationship(key(interaction.getSource()), interaction.getRelation(),
+					key(interaction.getTarget()), interaction.getCount(), interaction.getFirstSeen(), interaction.getLastSeen()));
+		}
+		
+		// on failure the aggregator keeps the interactions and writes them with its next window
+		writer.add(relationships);
+	}
+	
+	/**
+	 * Strips the source from an id (e.g. Twitter#12345). Numeric ids are kept as numbers, as written before.
+	 */
+	private static Object key(String id) {
+		String key = id.substring(id.indexOf('#') + 1);
+		try {
+			return Long.parseLong(key);
+		}
+		catch(NumberFormatException e) {
+			return key;
+		}
+	}
+	
 	@Override
 	public boolean delete(String id) throws IOException {
 		// TODO Auto-generated method stub
 		return false;
 	}
-
+	
 	@Override
 	public boolean checkStatus() {
-		return true;
+		return writer != null && writer.getPending() < bufferCapacity;
 	}
-
+	
 	@Override
 	public void close() {
-		//resource.delete();
-	}
+		closed = true;
+		if(flusher != null) {
+			flusher.interrupt();
+		}
 
+		if(aggregator != null) {
+			aggregator.close();
+		}
+		
+		if(writer == null) {
+			return;
+		}
+
+		try {
+			writer.flush();
+		}
+		catch(IOException e) {
+			logger.error(writer.getPending() + " users and relationships are not written to neo4j.", e);
+		}
+	}
+	
 	@Override
 	public String getStorageName() {
 		return storageName;
 	}
-	
-	private void createIndex(String label, String property) throws SQLException {
-		String createIndexQuery = "CREATE INDEX ON :" + nodeUserLabel 
-				+ "(" + nodeUserId + ")";
-		sendCypherQuery(createIndexQuery);
-		response.close();
-	}
-	
-	private void getOrCreateVertex(String nodeId, String nodeKey) throws SQLException {
-		String mergeVertex = 
-				"MERGE (n:" + nodeUserLabel + " {" + nodeKey + ":" + nodeId + "}) ";
-		sendCypherQuery(mergeVertex);
-		response.close();
-	}
-	
-	private void getOrCreateEdge(String source, String destination, String label) throws SQLException {
-		String mergeEdge = 
-				"MATCH (n1:" + nodeUserLabel + " {" + nodeUserId + ":" + source + "})" +
-				"MATCH (n2:" + nodeUserLabel + " {" + nodeUserId + ":" + destination + "})" +
-				"CREATE (n1)-[:" + label + "]->(n2)";
-		sendCypherQuery(mergeEdge);
-		response.close();
-	}
-	
-	private void addEdgeProperty(String source, String destination, String propertyName, 
-			String propertyValue) throws SQLException {
-		String addEdgeProperty = 
-				"MATCH (n1:" + nodeUserLabel + " {" + nodeUserId + ":" + source + "})" +
-				"MATCH (n2:" + nodeUserLabel + " {" + nodeUserId + ":" + destination + "})" +
-				"MATCH (n1)-[r]->(n2)" +
-				"SET r." + propertyName + " = " + propertyValue;
-		sendCypherQuery(addEdgeProperty);
-		response.close();
-	}
-	
-	private ClientResponse sendCypherQuery(String query) {
-		response = resource.accept(MediaType.APPLICATION_JSON)
-				.type(MediaType.APPLICATION_JSON)
-				.entity("{\"query\" : \"" + query + "\"}")
-				.post(ClientResponse.class);
-		return response;
-	}
-	
+
 }
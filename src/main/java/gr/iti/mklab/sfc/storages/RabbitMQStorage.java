@@ -3,25 +3,67 @@ package gr.iti.mklab.sfc.storages;
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.ItemState;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
+import gr.iti.mklab.sfc.metrics.Counter;
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Metrics;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodec;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodecs;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import org.apache.commons.lang3.SerializationUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.MessageProperties;
-
-public class RabbitMQStorage implements Storage {
+import com.rabbitmq.client.ShutdownSignalException;
 
+/**
+ * Class for sending items to a rabbitmq queue, as persistent messages.
+ * Items are encoded with the codec of the storage (java serialization by default, see {@link ItemCodecs}),
+ * whose MIME type is the content type of the messages.
+ *
+ * Consumers share one connection and a pool of channels in confirm mode. The items of a batch are
+ * published on one channel and the confirms of the broker, which acknowledges them in bulk, are
+ * awaited once for the whole batch. Items that cannot be published or are not confirmed, e.g. while
+ * the broker is down, are kept in memory and published again before the next batches, so every item
+ * is delivered at least once. When that buffer is full, store fails.
+ *
+ * 	rabbitmq.channels: number of channels (default 4)
+ * 	rabbitmq.confirm.timeout: milliseconds to wait for the confirms of a batch (default 5000)
+ * 	rabbitmq.buffer.capacity: maximum number of items kept while the broker is unavailable (default 100000)
+ *
+ */
+@ThreadSafety(Policy.THREAD_SAFE)
+public class RabbitMQStorage implements BatchStorage {
+	
 	private Logger logger = LogManager.getLogger(RabbitMQStorage.class);
 	
 	private static String HOSTNAME = "rabbitmq.hostname";
 	private static String ITEMS_QUEUE = "rabbitmq.items.queue";
 	
+	private static String CHANNELS = "rabbitmq.channels";
+	private static String CONFIRM_TIMEOUT = "rabbitmq.confirm.timeout";
+	private static String BUFFER_CAPACITY = "rabbitmq.buffer.capacity";
+	
+	// buffered items published again before a batch
+	private static final int REPUBLISH_BATCH = 1000;
+	
 	//private static String WEBPAGES_CHANNEL = "rabbitmq.webpages.channel";
 	//private static String MEDIA_CHANNEL = "rabbitmq.media.channel";
 	
@@ -31,29 +73,67 @@ public class RabbitMQStorage implements Storage {
 	//private String webPagesChannel;
 	//private String mediaItemsChannel;
 	
-	private Connection connection;
-	private Channel channel;
+	private int channels;
+	private long confirmTimeout;
+	private int bufferCapacity;
+	
+	private volatile Connection connection;
+	private BlockingQueue<Channel> channelPool = new LinkedBlockingQueue<Channel>();
+	// channels of the connection that are open, idle in the pool or borrowed by a consumer
+	private Set<Channel> openChannels = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+	
+	// items not confirmed by the broker. Kept across close() and open(), as done by the status monitor
+	private Deque<Item> buffer = new ArrayDeque<Item>();
+	
+	private ItemCodec codec;
+	private AMQP.BasicProperties properties;
+	
+	private Counter published = Metrics.counter("sfc_rabbitmq_published_total");
+	private Counter failed = Metrics.counter("sfc_rabbitmq_failed_total");
 	
 	public RabbitMQStorage(Configuration config) {
 		this.hostname = config.getParameter(RabbitMQStorage.HOSTNAME);
-		this.itemsQueueName = config.getParameter(RabbitMQStorage.ITEMS_QUEUE);	
+		this.itemsQueueName = config.getParameter(RabbitMQStorage.ITEMS_QUEUE);
 		//this.webPagesChannel = config.getParameter(RabbitMQStorage.WEBPAGES_CHANNEL);
 		//this.mediaItemsChannel = config.getParameter(RabbitMQStorage.MEDIA_CHANNEL);
+		
+		this.channels = Math.max(1, Integer.parseInt(config.getParameter(CHANNELS, "4")));
+		this.confirmTimeout = Long.parseLong(config.getParameter(CONFIRM_TIMEOUT, "5000"));
+		this.bufferCapacity = Integer.parseInt(config.getParameter(BUFFER_CAPACITY, "100000"));
+		
+		this.codec = ItemCodecs.create(config, "java");
+		this.properties = new AMQP.BasicProperties.Builder()
+				.contentType(codec.getContentType())
+				.deliveryMode(2)
+				.build();
+		
+		Metrics.gauge("sfc_rabbitmq_buffered", new Gauge() {
+			@Override
+			public double getValue() {
+				return getBuffered();
+			}
+		});
 	}
 	
 	@Override
 	public boolean open() {
 		ConnectionFactory factory = new ConnectionFactory();
 		factory.setHost(hostname);
+		factory.setAutomaticRecoveryEnabled(true);
 		try {
 			connection = factory.newConnection();
-			channel = connection.createChannel();
+			Channel channel = connection.createChannel();
 			
 			channel.exchangeDeclare(itemsQueueName, "direct", true);
 			channel.queueDeclare(itemsQueueName, true, false, false, null);
-
+			
 			channel.queueBind(itemsQueueName, itemsQueueName, itemsQueueName);
+			channel.close();
 			
+			for(int i = 0; i < channels; i++) {
+				channelPool.add(createChannel());
+			}
+		
 		} catch (Exception e) {
 			logger.error(e);
 			return false;
@@ -61,19 +141,126 @@ public class RabbitMQStorage implements Storage {
 		
 		return true;
 	}
-
+	
+	private Channel createChannel() throws IOException {
+		Channel channel = connection.createChannel();
+		channel.confirmSelect();
+		openChannels.add(channel);
+		return channel;
+	}
+	
 	@Override
 	public void store(Item item) throws IOException {
-		byte[] messageBytes = SerializationUtils.serialize(item);
-
-		channel.basicPublish(itemsQueueName, itemsQueueName, true,
-		                     MessageProperties.PERSISTENT_TEXT_PLAIN,
-		                     messageBytes);
+		store(Collections.singletonList(item));
 	}
-
+	
+	@Override
+	public void store(List<Item> items) throws IOException {
+		republish();
+		
+		if(!publish(items)) {
+			keep(items);
+		}
+	}
+	
+	/**
+	 * Publishes a part of the buffered items, if any.
+	 */
+	private void republish() {
+		List<Item> items = new ArrayList<Item>();
+		synchronized(buffer) {
+			while(items.size() < REPUBLISH_BATCH && !buffer.isEmpty()) {
+				items.add(buffer.poll());
+			}
+		}
+		
+		if(!items.isEmpty() && !publish(items)) {
+			// back to the head of the buffer, in their order
+			synchronized(buffer) {
+				for(int i = items.size() - 1; i >= 0; i--) {
+					buffer.addFirst(items.get(i));
+				}
+			}
+		}
+	}
+	
+	private void keep(List<Item> items) throws IOException {
+		synchronized(buffer) {
+			if(buffer.size() + items.size() > bufferCapacity) {
+				throw new IOException("RabbitMQ is unavailable and its buffer of " + bufferCapacity + " items is full.");
+			}
+			buffer.addAll(items);
+		}
+	}
+	
+	/**
+	 * Publishes the items on a channel of the pool and waits for their confirms.
+	 *
+	 * @return whether all items were confirmed by the broker
+	 */
+	private boolean publish(List<Item> items) {
+		Channel channel = null;
+		try {
+			channel = channelPool.poll(confirmTimeout, TimeUnit.MILLISECONDS);
+			if(channel == null) {
+				logger.error("No rabbitmq channel available.");
+				failed.increment();
+				return false;
+			}
+			
+			for(Item item : items) {
+				channel.basicPublish(itemsQueueName, itemsQueueName, true, properties, codec.encode(item));
+			}
+			
+			// closes the channel if any item is nacked or not confirmed in time
+			channel.waitForConfirmsOrDie(confirmTimeout);
+			
+			published.add(items.size());
+			return true;
+		}
+		catch(IOException | TimeoutException | ShutdownSignalException e) {
+			logger.error("Publishing " + items.size() + " items to rabbitmq failed: " + e.getMessage());
+			failed.increment();
+			return false;
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally {
+			if(channel != null) {
+				release(channel);
+			}
+		}
+	}
+	
+	/**
+	 * Returns a channel to the pool, replacing it if it has been closed.
+	 */
+	private void release(Channel channel) {
+		if(!channel.isOpen()) {
+			openChannels.remove(channel);
+			try {
+				channel = createChannel();
+			}
+			catch(Exception e) {
+				// the connection is down, the channel is replaced by the next open()
+				logger.error("Cannot replace a closed rabbitmq channel: " + e.getMessage());
+				return;
+			}
+		}
+		channelPool.add(channel);
+	}
+	
+	public int getBuffered() {
+		synchronized(buffer) {
+			return buffer.size();
+		}
+	}
+	
 	@Override
 	public void store(ItemState itemState) {
-		System.out.println(itemState.toString());	
+		System.out.println(itemState.toString());
 	}
 	
 	
@@ -81,23 +268,80 @@ public class RabbitMQStorage implements Storage {
 	public boolean delete(String id) throws IOException {
 		return false;
 	}
-
+	
+	/**
+	 * The storage is working if the items queue can be reached and some channels are open. Channels
+	 * borrowed by consumers count as working, so a busy pool is not taken for a broken connection.
+	 * Closed channels are replaced and the buffered items are published meanwhile.
+	 */
 	@Override
 	public boolean checkStatus() {
-
-		return false;
+		Connection connection = this.connection;
+		if(connection == null || !connection.isOpen()) {
+			return false;
+		}
+		
+		Channel channel = null;
+		try {
+			channel = connection.createChannel();
+			AMQP.Queue.DeclareOk queue = channel.queueDeclarePassive(itemsQueueName);
+			
+			while(openChannels.size() < channels) {
+				channelPool.add(createChannel());
+			}
+			
+			logger.info("RabbitMQ queue " + itemsQueueName + ": " + queue.getMessageCount() + " messages, "
+					+ queue.getConsumerCount() + " consumers. " + getBuffered() + " items buffered, "
+					+ channelPool.size() + " of " + openChannels.size() + " channels idle.");
+		}
+		catch(Exception e) {
+			logger.error("RabbitMQ health check failed: " + e.getMessage());
+			return false;
+		}
+		finally {
+			if(channel != null && channel.isOpen()) {
+				try {
+					channel.close();
+				} catch (Exception e) {
+					// closed with the connection
+				}
+			}
+		}
+		
+		while(getBuffered() > 0) {
+			int buffered = getBuffered();
+			republish();
+			if(getBuffered() >= buffered) {
+				break;
+			}
+		}
+		
+		return !openChannels.isEmpty();
 	}
-
+	
 	@Override
 	public void close() {
+		if(connection != null && connection.isOpen()) {
+			republish();
+		}
+		
+		int buffered = getBuffered();
+		if(buffered > 0) {
+			logger.error(buffered + " items are not yet published to rabbitmq.");
+		}
+		
+		channelPool.clear();
+		openChannels.clear();
 		try {
-			channel.close();
-			connection.close();
-		} catch (IOException e) {
+			if(connection != null) {
+				connection.close();
+			}
+		} catch (Exception e) {
 			logger.error(e);
 		}
+		connection = null;
 	}
-
+	
 	@Override
 	public String getStorageName() {
 		return "RabbitMQ";
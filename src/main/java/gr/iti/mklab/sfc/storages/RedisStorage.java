@@ -1,6 +1,14 @@
 package gr.iti.mklab.sfc.storages;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -8,19 +16,40 @@ import org.apache.logging.log4j.LogManager;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.ItemState;
 import gr.iti.mklab.framework.common.domain.MediaItem;
 import gr.iti.mklab.framework.common.domain.WebPage;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Metrics;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodec;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodecs;
 
 /**
  * Class for storing items to redis store
  * 
+ * The messages of a batch of items are published through a single pipeline, on a connection 
+ * borrowed from a pool, so that consumers do not wait for each other on a shared connection.
+ * Optionally, each channel has its own writer thread, which publishes the messages queued by the 
+ * consumers in pipelines of up to redis.batch.size messages:
+ * 
+ * 	redis.pool.size: maximum number of connections (default 16)
+ * 	redis.async: whether to publish through the writer threads (default false)
+ * 	redis.queue.capacity: maximum number of messages queued per channel, consumers wait when full (default 10000)
+ * 	redis.batch.size: maximum number of messages of a pipeline (default 500)
+ * 	redis.flush.interval: milliseconds a writer waits for more messages before publishing (default 50)
+ * 
+ * Messages are encoded with the codec of the storage (json by default, see {@link ItemCodecs}).
+ * 
  * @author manosetro - manosetro@iti.gr
  *
  */
-public class RedisStorage implements Storage {
+@ThreadSafety(Policy.THREAD_SAFE)
+public class RedisStorage implements BatchStorage {
 
 	private static String HOST = "redis.host";
 	
@@ -28,17 +57,35 @@ public class RedisStorage implements Storage {
 	private static String MEDIA_CHANNEL = "redis.media.channel";
 	private static String ITEMS_CHANNEL = "redis.items.channel";
 	
+	private static String POOL_SIZE = "redis.pool.size";
+	private static String ASYNC = "redis.async";
+	private static String QUEUE_CAPACITY = "redis.queue.capacity";
+	private static String BATCH_SIZE = "redis.batch.size";
+	private static String FLUSH_INTERVAL = "redis.flush.interval";
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
 	private Logger  logger = LogManager.getLogger(RedisStorage.class);
 	
 	private JedisPool jedisPool;
-	private Jedis jedis;
 	private String host;
 	
 	private String itemsChannel = null;
 	private String webPagesChannel = null;
 	private String mediaItemsChannel = null;
 	
-	private long items = 0, mItems = 0, wPages = 0;
+	private AtomicLong items = new AtomicLong(0), mItems = new AtomicLong(0), wPages = new AtomicLong(0);
+	
+	private int poolSize;
+	private boolean async;
+	private int queueCapacity;
+	private int batchSize;
+	private long flushInterval;
+	
+	private ItemCodec codec;
+	
+	// writer threads of the channels, if async
+	private ChannelWriter itemsWriter = null, mediaItemsWriter = null, webPagesWriter = null;
 	
 	private String storageName = "Redis";
 	
@@ -47,54 +94,135 @@ public class RedisStorage implements Storage {
 		this.itemsChannel = config.getParameter(RedisStorage.ITEMS_CHANNEL);
 		this.webPagesChannel = config.getParameter(RedisStorage.WEBPAGES_CHANNEL);
 		this.mediaItemsChannel = config.getParameter(RedisStorage.MEDIA_CHANNEL);
+		
+		this.poolSize = Integer.parseInt(config.getParameter(POOL_SIZE, "16"));
+		this.async = Boolean.parseBoolean(config.getParameter(ASYNC, "false"));
+		this.queueCapacity = Integer.parseInt(config.getParameter(QUEUE_CAPACITY, "10000"));
+		this.batchSize = Math.max(1, Integer.parseInt(config.getParameter(BATCH_SIZE, "500")));
+		this.flushInterval = Long.parseLong(config.getParameter(FLUSH_INTERVAL, "50"));
+		
+		this.codec = ItemCodecs.create(config, "json");
 	}
 	
 	@Override
 	public boolean open() {
 		try {
 			JedisPoolConfig poolConfig = new JedisPoolConfig();
+			poolConfig.setMaxTotal(poolSize);
+			poolConfig.setMaxIdle(poolSize);
+			poolConfig.setTestOnBorrow(true);
 			this.jedisPool = new JedisPool(poolConfig, host, 6379, 0);
-			this.jedis = jedisPool.getResource();
-			return true;
+			
+			Jedis jedis = jedisPool.getResource();
+			try {
+				jedis.ping();
+			}
+			finally {
+				jedis.close();
+			}
 		}
 		catch(Exception e) {
 			logger.error("Error during opening.", e);
 			return false;
 		}
+		
+		if(async) {
+			itemsWriter = startWriter(itemsChannel);
+			mediaItemsWriter = startWriter(mediaItemsChannel);
+			webPagesWriter = startWriter(webPagesChannel);
+		}
+		return true;
+	}
+	
+	private ChannelWriter startWriter(String channel) {
+		if(channel == null) {
+			return null;
+		}
+		
+		ChannelWriter writer = new ChannelWriter(channel);
+		writer.start();
+		return writer;
 	}
 
 	@Override
 	public void store(Item item) throws IOException {
-		
 		if(item == null)
 			return;
 		
-		if(item.isOriginal()) { 	
+		store(Collections.singletonList(item));
+	}
+	
+	@Override
+	public void store(List<Item> items) throws IOException {
+		List<byte[][]> messages = new ArrayList<byte[][]>();
+		for(Item item : items) {
+			if(!item.isOriginal()) {
+				continue;
+			}
+			
 			if(itemsChannel != null) {
-				items++;
-				synchronized(jedis) {
-					jedis.publish(itemsChannel, item.toString());
-				}
+				this.items.incrementAndGet();
+				publish(itemsWriter, itemsChannel, codec.encode(item), messages);
 			}
 		
-			if(mediaItemsChannel != null) {
+			if(mediaItemsChannel != null && item.getMediaItems() != null) {
 				for(MediaItem mediaItem : item.getMediaItems()) {
-					mItems++;
-					synchronized(jedis) {
-						jedis.publish(mediaItemsChannel, mediaItem.toString());
-					}
+					mItems.incrementAndGet();
+					publish(mediaItemsWriter, mediaItemsChannel, codec.encode(mediaItem), messages);
 				}
 			}
 		
-			if(webPagesChannel != null) {
+			if(webPagesChannel != null && item.getWebPages() != null) {
 				for(WebPage webPage : item.getWebPages()) {
-					wPages++;
-					synchronized(jedis) {
-						jedis.publish(webPagesChannel, webPage.toString());
-					}
+					wPages.incrementAndGet();
+					publish(webPagesWriter, webPagesChannel, codec.encode(webPage), messages);
 				}
 			}
 		}
+		
+		if(!messages.isEmpty()) {
+			try {
+				publish(messages);
+			}
+			catch(Exception e) {
+				throw new IOException("Publishing " + messages.size() + " messages to redis failed.", e);
+			}
+		}
+	}
+	
+	/**
+	 * Queues the message to the writer of its channel, or adds it to the messages published by the caller.
+	 */
+	private void publish(ChannelWriter writer, String channel, byte[] message, List<byte[][]> messages) throws IOException {
+		if(writer == null) {
+			messages.add(new byte[][] {channel.getBytes(UTF8), message});
+			return;
+		}
+		
+		try {
+			writer.queue.put(message);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while queueing a message to " + channel, e);
+		}
+	}
+	
+	/**
+	 * Publishes the given channel/message pairs through one pipeline.
+	 */
+	private void publish(List<byte[][]> messages) {
+		Jedis jedis = jedisPool.getResource();
+		try {
+			Pipeline pipeline = jedis.pipelined();
+			for(byte[][] message : messages) {
+				pipeline.publish(message[0], message[1]);
+			}
+			pipeline.sync();
+		}
+		finally {
+			jedis.close();
+		}
 	}
 	
 	@Override
@@ -111,61 +239,115 @@ public class RedisStorage implements Storage {
 
 	@Override
 	public void close() {
-		jedis.disconnect();
+		for(ChannelWriter writer : new ChannelWriter[] {itemsWriter, mediaItemsWriter, webPagesWriter}) {
+			if(writer != null) {
+				writer.stopWriter();
+			}
+		}
+		itemsWriter = mediaItemsWriter = webPagesWriter = null;
+		
 		jedisPool.close();
 	}
 	
 	@Override
 	public boolean checkStatus() {
+		logger.info("Redis sent " + items + " items, " + mItems + " media items and " 
+				+ wPages + " web pages!");
+		
+		// broken connections are dropped by the pool, as connections are tested on borrow
 		try {
-			logger.info("Redis sent " + items + " items, " + mItems + " media items and " 
-					+ wPages + " web pages!");
-
-			boolean connected;
-			synchronized(jedis) {
+			Jedis jedis = jedisPool.getResource();
+			try {
 				jedis.info();
-				connected = jedis.isConnected();
+				return jedis.isConnected();
 			}
-			if(!connected) {
-				connected = reconnect();
+			finally {
+				jedis.close();
 			}
-			return connected;
 		}
 		catch(Exception e) {
-			e.printStackTrace();
 			logger.error(e);
-			return reconnect();
+			return false;
 		}
 	}
 	
-	private boolean reconnect() {
-		synchronized(jedis) {
-			try {
-				if(jedis != null) {
-					jedis.disconnect();
+	@Override
+	public String getStorageName() {
+		return this.storageName;
+	}
+	
+	/**
+	 * Publishes the messages queued for a channel, in pipelines of up to batchSize messages.
+	 * A pipeline is sent when full, or flushInterval milliseconds after its first message.
+	 */
+	private class ChannelWriter extends Thread {
+		
+		private String channel;
+		private byte[] channelBytes;
+		private BlockingQueue<byte[]> queue;
+		
+		private volatile boolean running = true;
+		
+		public ChannelWriter(String channel) {
+			super("RedisStorage-" + channel);
+			setDaemon(true);
+			
+			this.channel = channel;
+			this.channelBytes = channel.getBytes(UTF8);
+			this.queue = new ArrayBlockingQueue<byte[]>(queueCapacity);
+			
+			Metrics.gauge("sfc_redis_queue_depth", new Gauge() {
+				@Override
+				public double getValue() {
+					return queue.size();
 				}
-			}
-			catch(Exception e) { 
-				logger.error(e);
-			}
+			}, "channel", channel);
 		}
-		try {
-			synchronized(jedis) {        	
-        		this.jedis = jedisPool.getResource();
-        		jedis.info();
-        		return jedis.isConnected();
+		
+		@Override
+		public void run() {
+			List<byte[][]> messages = new ArrayList<byte[][]>(batchSize);
+			long first = 0L;
+			while(running || !queue.isEmpty()) {
+				try {
+					long wait = messages.isEmpty() ? flushInterval : flushInterval - (System.currentTimeMillis() - first);
+					byte[] message = queue.poll(Math.max(0L, wait), TimeUnit.MILLISECONDS);
+					if(message != null) {
+						if(messages.isEmpty()) {
+							first = System.currentTimeMillis();
+						}
+						messages.add(new byte[][] {channelBytes, message});
+						if(messages.size() < batchSize && System.currentTimeMillis() - first < flushInterval) {
+							continue;
+						}
+					}
+				}
+				catch(InterruptedException e) {
+					// stopping, publish the queued messages
+				}
+				
+				if(!messages.isEmpty()) {
+					try {
+						publish(messages);
+					}
+					catch(Exception e) {
+						logger.error("Publishing " + messages.size() + " messages to " + channel + " failed.", e);
+					}
+					messages.clear();
+				}
 			}
 		}
-		catch(Exception e) {
-			logger.error(e);
-			return false;
+		
+		public void stopWriter() {
+			running = false;
+			interrupt();
+			try {
+				join();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 		}
-
-	}
-	
-	@Override
-	public String getStorageName() {
-		return this.storageName;
 	}
 
 }
@@ -0,0 +1,172 @@
+package gr.iti.mklab.sfc.storages;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+
+/**
+ * Bloom filter of string keys that grows with the number of keys, as described by Almeida et al.
+ * (Scalable Bloom Filters, 2007).
+ *
+ * Keys are added to the last filter of a chain. When that filter reaches its capacity, a new one
+ * with twice the capacity and a tighter false positive probability is appended, so that the overall
+ * false positive probability stays below twice the one of the first filter. A key is reported as
+ * possibly present if any filter of the chain might contain it.
+ *
+ * The chain can be written to and read from a file, see {@link #writeTo(File)} and {@link #readFrom(File)}.
+ *
+ */
+public class ScalableBloomFilter {
+	
+	private static final int VERSION = 1;
+	
+	// each filter has half the false positive probability of the previous one
+	private static final double TIGHTENING_RATIO = 0.5;
+	private static final int GROWTH = 2;
+	
+	private static final Funnel<CharSequence> FUNNEL = Funnels.stringFunnel(Charset.forName("UTF-8"));
+	
+	private static class Stage {
+		
+		final BloomFilter<CharSequence> filter;
+		final int capacity;
+		final double fpp;
+		long count = 0;
+		
+		Stage(BloomFilter<CharSequence> filter, int capacity, double fpp) {
+			this.filter = filter;
+			this.capacity = capacity;
+			this.fpp = fpp;
+		}
+	}
+	
+	private List<Stage> stages = new ArrayList<Stage>();
+	
+	/**
+	 * @param capacity expected number of keys of the first filter
+	 * @param fpp false positive probability of the first filter
+	 */
+	public ScalableBloomFilter(int capacity, double fpp) {
+		addStage(capacity, fpp);
+	}
+	
+	private ScalableBloomFilter() {
+	
+	}
+	
+	private Stage addStage(int capacity, double fpp) {
+		Stage stage = new Stage(BloomFilter.create(FUNNEL, capacity, fpp), capacity, fpp);
+		stages.add(stage);
+		return stage;
+	}
+	
+	/**
+	 * @return false if the key has definitely not been added, true if it might have been
+	 */
+	public synchronized boolean mightContain(String key) {
+		for(int i = stages.size() - 1; i >= 0; i--) {
+			if(stages.get(i).filter.mightContain(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public synchronized void put(String key) {
+		Stage stage = stages.get(stages.size() - 1);
+		if(stage.count >= stage.capacity) {
+			int capacity = (int) Math.min(Integer.MAX_VALUE, (long) GROWTH * stage.capacity);
+			stage = addStage(capacity, stage.fpp * TIGHTENING_RATIO);
+		}
+		
+		if(stage.filter.put(key)) {
+			stage.count++;
+		}
+	}
+	
+	/**
+	 * @return the number of keys added, approximately since keys that collide with previous ones are not counted
+	 */
+	public synchronized long size() {
+		long size = 0;
+		for(Stage stage : stages) {
+			size += stage.count;
+		}
+		return size;
+	}
+	
+	public synchronized int getFilters() {
+		return stages.size();
+	}
+	
+	/**
+	 * Writes the chain to the given file, through a temporary file that replaces it once complete.
+	 */
+	public synchronized void writeTo(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(stages.size());
+			for(Stage stage : stages) {
+				out.writeInt(stage.capacity);
+				out.writeDouble(stage.fpp);
+				out.writeLong(stage.count);
+				stage.filter.writeTo(out);
+			}
+		}
+		finally {
+			out.close();
+		}
+		
+		if(file.exists() && !file.delete()) {
+			throw new IOException("Cannot replace " + file);
+		}
+		if(!tmp.renameTo(file)) {
+			throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+	}
+	
+	public static ScalableBloomFilter readFrom(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int version = in.readInt();
+			if(version != VERSION) {
+				throw new IOException("Unsupported version " + version + " of " + file);
+			}
+			
+			ScalableBloomFilter bloomFilter = new ScalableBloomFilter();
+			int filters = in.readInt();
+			for(int i = 0; i < filters; i++) {
+				int capacity = in.readInt();
+				double fpp = in.readDouble();
+				long count = in.readLong();
+				
+				Stage stage = new Stage(BloomFilter.readFrom(in, FUNNEL), capacity, fpp);
+				stage.count = count;
+				bloomFilter.stages.add(stage);
+			}
+			
+			if(bloomFilter.stages.isEmpty()) {
+				throw new IOException("No filters in " + file);
+			}
+			return bloomFilter;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+}
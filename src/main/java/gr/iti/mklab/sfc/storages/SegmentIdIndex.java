@@ -0,0 +1,225 @@
+package gr.iti.mklab.sfc.storages;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Offsets of the latest record of each live item id of a {@link SegmentStorage}.
+ *
+ * The offsets are kept in an open addressing hash table, memory-mapped from a file in the directory
+ * of the segments, so the table is paged in and out by the operating system and the heap does not
+ * grow with the number of items. Ids are keyed by their 64-bit murmur3 hash: two ids with the same
+ * hash (very unlikely) share a slot, and only the latest of them can be found. Deleted ids keep their
+ * slot until the table grows.
+ *
+ * The table is rebuilt by the storage on open, so its file is discarded on close.
+ *
+ */
+class SegmentIdIndex {
+	
+	private static final String PREFIX = "ids-";
+	private static final String SUFFIX = ".index";
+	
+	private static final HashFunction HASH = Hashing.murmur3_128();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	// key (hash of the id) and value (offset of the record) of a slot
+	private static final int SLOT_SIZE = 16;
+	
+	private static final int INITIAL_SLOTS = 1 << 16;
+	private static final int MAX_SLOTS = 1 << 26;
+	
+	// offset of a deleted id
+	private static final long NONE = -1L;
+	
+	private File directory;
+	
+	private File file = null;
+	private RandomAccessFile raf = null;
+	private MappedByteBuffer table = null;
+	
+	private int slots;
+	private int generation = 0;
+	
+	// slots with a key, live or deleted
+	private int used = 0;
+	private int size = 0;
+	
+	SegmentIdIndex(File directory) {
+		this.directory = directory;
+	}
+	
+	/**
+	 * Creates an empty table, discarding the files of a previous one.
+	 */
+	synchronized void open() throws IOException {
+		close();
+		
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if(files != null) {
+			for(File stale : files) {
+				stale.delete();
+			}
+		}
+		
+		map(INITIAL_SLOTS);
+	}
+	
+	private void map(int slots) throws IOException {
+		File file = new File(directory, PREFIX + (generation++) + SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0L);
+		
+		this.table = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) slots * SLOT_SIZE);
+		this.file = file;
+		this.raf = raf;
+		this.slots = slots;
+		this.used = 0;
+		this.size = 0;
+	}
+	
+	private static long hash(String id) {
+		long hash = HASH.hashString(id, UTF8).asLong();
+		// 0 marks an empty slot
+		return hash == 0L ? 1L : hash;
+	}
+	
+	/**
+	 * @return the slot of the hash, or the empty slot where it would be inserted
+	 */
+	private int find(long hash) {
+		int mask = slots - 1;
+		int slot = (int) hash & mask;
+		while(true) {
+			long key = table.getLong(slot * SLOT_SIZE);
+			if(key == 0L || key == hash) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	/**
+	 * @return the offset of the latest record of the id, or -1 if it is not live
+	 */
+	synchronized long get(String id) {
+		if(table == null) {
+			return NONE;
+		}
+		
+		int slot = find(hash(id));
+		if(table.getLong(slot * SLOT_SIZE) == 0L) {
+			return NONE;
+		}
+		return table.getLong(slot * SLOT_SIZE + 8);
+	}
+	
+	synchronized void put(String id, long offset) throws IOException {
+		set(hash(id), offset);
+	}
+	
+	/**
+	 * @return true if the id was live
+	 */
+	synchronized boolean remove(String id) throws IOException {
+		long hash = hash(id);
+		int slot = find(hash);
+		if(table.getLong(slot * SLOT_SIZE) == 0L || table.getLong(slot * SLOT_SIZE + 8) == NONE) {
+			return false;
+		}
+		
+		set(hash, NONE);
+		return true;
+	}
+	
+	private void set(long hash, long offset) throws IOException {
+		int slot = find(hash);
+		int position = slot * SLOT_SIZE;
+		
+		long key = table.getLong(position);
+		if(key == 0L) {
+			if(offset == NONE) {
+				return;
+			}
+			if(2 * (used + 1) > slots) {
+				rehash();
+				set(hash, offset);
+				return;
+			}
+			used++;
+		}
+		
+		boolean live = (key != 0L && table.getLong(position + 8) != NONE);
+		size += (offset != NONE ? 1 : 0) - (live ? 1 : 0);
+		
+		table.putLong(position + 8, offset);
+		table.putLong(position, hash);
+	}
+	
+	/**
+	 * Copies the live ids to a new table, twice as large unless most slots belong to deleted ids.
+	 */
+	private void rehash() throws IOException {
+		int capacity = (2 * size < used) ? slots : 2 * slots;
+		if(capacity > MAX_SLOTS) {
+			throw new IOException("Index of the segments is full: " + size + " live items.");
+		}
+		
+		MappedByteBuffer old = table;
+		int oldSlots = slots;
+		File oldFile = file;
+		RandomAccessFile oldRaf = raf;
+		
+		map(capacity);
+		for(int slot = 0; slot < oldSlots; slot++) {
+			long key = old.getLong(slot * SLOT_SIZE);
+			long offset = old.getLong(slot * SLOT_SIZE + 8);
+			if(key != 0L && offset != NONE) {
+				set(key, offset);
+			}
+		}
+		
+		oldRaf.close();
+		oldFile.delete();
+	}
+	
+	/**
+	 * @return the number of live ids
+	 */
+	synchronized int size() {
+		return size;
+	}
+	
+	synchronized void close() {
+		if(raf == null) {
+			return;
+		}
+		
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// the file is deleted anyway
+		}
+		file.delete();
+		
+		table = null;
+		raf = null;
+		file = null;
+		used = 0;
+		size = 0;
+	}
+
+}
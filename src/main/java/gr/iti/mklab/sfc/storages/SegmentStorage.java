@@ -0,0 +1,548 @@
+package gr.iti.mklab.sfc.storages;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import gr.iti.mklab.framework.common.domain.Item;
+import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.management.ShardedStorage;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodec;
+import gr.iti.mklab.sfc.storages.codecs.ItemCodecs;
+
+/**
+ * Local storage of the items in an append-only log of memory-mapped segment files.
+ * It needs no external service and can be replayed into other storages, e.g. to rebuild
+ * a mongodb database or a solr collection (see {@link #replay(long, Storage)}).
+ *
+ * Each record holds its size, its type (item or tombstone), the time it was appended, the id
+ * of the item and the item encoded with the codec of the storage (java serialization by default,
+ * see {@link ItemCodecs}). Records are addressed by their offset in the log: the offset of their
+ * segment, which names the segment file, plus their position in it. Deleting an item appends a
+ * tombstone.
+ *
+ * Two indices are rebuilt by scanning the segments on open: the offset of the latest record of each
+ * live item id, in a hash table memory-mapped from a file of the directory (see {@link SegmentIdIndex}),
+ * and a sparse index in memory from append time to offset, with an entry every few kilobytes of records.
+ * Appended records are forced to disk periodically.
+ *
+ * The storages named in segments.replay.to are rebuilt from the log when the storage handler starts.
+ * A marker file is left in the directory for each storage rebuilt, so the log is replayed into it once:
+ * delete the marker to replay it again.
+ *
+ * 	segments.directory: directory of the segment files (default segments), suffixed with the shard of a sharded storage
+ * 	segments.size: size of a segment file, in bytes (default 67108864)
+ * 	segments.index.interval: bytes of records between two entries of the time index (default 4096)
+ * 	segments.flush.interval: milliseconds between two forces of the current segment (default 1000)
+ * 	segments.replay.to: comma separated ids of the storages to rebuild from the log (default none)
+ * 	segments.replay.since: time in milliseconds of the first items to replay (default 0, the whole log)
+ *
+ */
+@ThreadSafety(Policy.THREAD_SAFE)
+public class SegmentStorage implements BatchStorage {
+	
+	private static final String DIRECTORY = "segments.directory";
+	private static final String SEGMENT_SIZE = "segments.size";
+	private static final String INDEX_INTERVAL = "segments.index.interval";
+	private static final String FLUSH_INTERVAL = "segments.flush.interval";
+	private static final String REPLAY_TO = "segments.replay.to";
+	private static final String REPLAY_SINCE = "segments.replay.since";
+	
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String REPLAY_MARKER = "replayed-";
+	
+	private static final byte ITEM = 1, TOMBSTONE = 2;
+	
+	// size of the record (int), type (byte), time (long) and length of the id (short)
+	private static final int HEADER_SIZE = 15;
+	
+	// items passed at once to the storage being rebuilt
+	private static final int REPLAY_BATCH = 1000;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private Logger logger = LogManager.getLogger(SegmentStorage.class);
+	
+	private String storageName = "Segments";
+	
+	private File directory;
+	private int segmentSize;
+	private int indexInterval;
+	private long flushInterval;
+	
+	private List<String> replayTo = new ArrayList<String>();
+	private long replaySince;
+	
+	private ItemCodec codec;
+	
+	private static class Segment {
+		
+		long offset;
+		File file;
+		RandomAccessFile raf;
+		MappedByteBuffer buffer;
+		
+		Segment(File file, long offset) {
+			this.file = file;
+			this.offset = offset;
+		}
+		
+		long end() {
+			return offset + buffer.capacity();
+		}
+		
+		void close() {
+			buffer.force();
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// the mapping stays valid
+			}
+		}
+	}
+	
+	private ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+	private Segment current = null;
+	
+	// offset after the last record, published to readers once the record is written
+	private volatile long end = 0L;
+	
+	private SegmentIdIndex ids;
+	private ConcurrentNavigableMap<Long, Long> times = new ConcurrentSkipListMap<Long, Long>();
+	
+	private long lastTime = 0L;
+	private long lastIndexed = -1L;
+	
+	private long appended = 0L, deleted = 0L;
+	
+	private Thread flusher = null;
+	private volatile boolean closed = true;
+	
+	public SegmentStorage(Configuration config) {
+		this.directory = new File(ShardedStorage.getShardPath(config, config.getParameter(DIRECTORY, "segments")));
+		this.segmentSize = Integer.parseInt(config.getParameter(SEGMENT_SIZE, "67108864"));
+		this.indexInterval = Integer.parseInt(config.getParameter(INDEX_INTERVAL, "4096"));
+		this.flushInterval = Long.parseLong(config.getParameter(FLUSH_INTERVAL, "1000"));
+		
+		for(String storageId : config.getParameter(REPLAY_TO, "").split(",")) {
+			if(!storageId.trim().isEmpty()) {
+				replayTo.add(storageId.trim());
+			}
+		}
+		this.replaySince = Long.parseLong(config.getParameter(REPLAY_SINCE, "0"));
+		
+		this.ids = new SegmentIdIndex(directory);
+		this.codec = ItemCodecs.create(config, "java");
+	}
+	
+	@Override
+	public synchronized boolean open() {
+		if(!closed) {
+			return true;
+		}
+		
+		try {
+			if(!directory.exists() && !directory.mkdirs()) {
+				logger.error("Cannot create segments directory " + directory);
+				return false;
+			}
+			
+			recover();
+			if(current == null) {
+				roll(0);
+			}
+		}
+		catch(IOException e) {
+			logger.error("Cannot open the segments in " + directory, e);
+			return false;
+		}
+		
+		closed = false;
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!closed) {
+					try {
+						Thread.sleep(flushInterval);
+						force();
+					}
+					catch(InterruptedException e) {
+						break;
+					}
+					catch(Exception e) {
+						logger.error("Cannot force segment to disk.", e);
+					}
+				}
+			}
+		});
+		flusher.setName("SegmentStorageFlusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		
+		logger.info("Segment storage opened in " + directory + ": " + segments.size() + " segments, "
+				+ ids.size() + " items.");
+		return true;
+	}
+	
+	/**
+	 * Maps the segments of the directory and rebuilds the indices.
+	 */
+	private void recover() throws IOException {
+		segments.clear();
+		ids.open();
+		times.clear();
+		current = null;
+		lastIndexed = -1L;
+		
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		
+		for(File file : files) {
+			String name = file.getName();
+			long offset = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			
+			Segment segment = new Segment(file, offset);
+			segment.raf = new RandomAccessFile(file, "rw");
+			segment.buffer = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment.raf.length());
+			segments.put(offset, segment);
+			
+			ByteBuffer buffer = segment.buffer.duplicate();
+			while(buffer.remaining() >= HEADER_SIZE) {
+				int position = buffer.position();
+				int size = buffer.getInt();
+				if(size < HEADER_SIZE || size > buffer.remaining() + 4) {
+					// end of written data, or a torn record
+					buffer.position(position);
+					break;
+				}
+				
+				byte type = buffer.get();
+				long time = buffer.getLong();
+				String id = readId(buffer);
+				buffer.position(position + size);
+				
+				index(type, id, time, offset + position);
+			}
+			
+			current = segment;
+			end = offset + buffer.position();
+		}
+		
+		if(current != null) {
+			current.buffer.position((int) (end - current.offset));
+		}
+	}
+	
+	private static String readId(ByteBuffer buffer) {
+		byte[] id = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(id);
+		return new String(id, UTF8);
+	}
+	
+	private void index(byte type, String id, long time, long offset) throws IOException {
+		if(type == ITEM) {
+			ids.put(id, offset);
+		}
+		else {
+			ids.remove(id);
+		}
+		
+		if(lastIndexed < 0 || offset - lastIndexed >= indexInterval) {
+			if(!times.containsKey(time)) {
+				times.put(time, offset);
+			}
+			lastIndexed = offset;
+		}
+		lastTime = Math.max(lastTime, time);
+	}
+	
+	/**
+	 * Starts a new segment after the current one, large enough for a record of the given size.
+	 */
+	private void roll(int required) throws IOException {
+		long offset = 0L;
+		if(current != null) {
+			current.buffer.force();
+			offset = current.end();
+		}
+		
+		File file = new File(directory, String.format(SEGMENT_PREFIX + "%020d" + SEGMENT_SUFFIX, offset));
+		Segment segment = new Segment(file, offset);
+		segment.raf = new RandomAccessFile(file, "rw");
+		segment.buffer = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, required + 4));
+		
+		segments.put(offset, segment);
+		current = segment;
+		end = offset;
+	}
+	
+	private void append(byte type, String id, byte[] data) throws IOException {
+		byte[] idBytes = id.getBytes(UTF8);
+		if(idBytes.length > 0xFFFF) {
+			throw new IOException("Item id too long: " + id);
+		}
+		
+		// keep 4 zero bytes after each record as an end marker
+		int size = HEADER_SIZE + idBytes.length + data.length;
+		if(current.buffer.remaining() < size + 4) {
+			roll(size);
+		}
+		
+		// appended records are kept in time order
+		long time = Math.max(System.currentTimeMillis(), lastTime);
+		long offset = current.offset + current.buffer.position();
+		
+		MappedByteBuffer buffer = current.buffer;
+		buffer.putInt(size);
+		buffer.put(type);
+		buffer.putLong(time);
+		buffer.putShort((short) idBytes.length);
+		buffer.put(idBytes);
+		buffer.put(data);
+		
+		index(type, id, time, offset);
+		end = offset + size;
+	}
+	
+	@Override
+	public void store(Item item) throws IOException {
+		store(Collections.singletonList(item));
+	}
+	
+	@Override
+	public void store(List<Item> items) throws IOException {
+		// encoding happens outside the lock, in the thread of each consumer
+		List<byte[]> encoded = new ArrayList<byte[]>(items.size());
+		for(Item item : items) {
+			encoded.add(codec.encode(item));
+		}
+		
+		synchronized(this) {
+			if(closed) {
+				throw new IOException("Segment storage is closed");
+			}
+			
+			for(int i = 0; i < items.size(); i++) {
+				append(ITEM, items.get(i).getId(), encoded.get(i));
+			}
+			appended += items.size();
+		}
+	}
+	
+	@Override
+	public void store(ItemState itemState) {
+		// item states are not kept in the log
+	}
+	
+	@Override
+	public synchronized boolean delete(String id) throws IOException {
+		if(closed) {
+			throw new IOException("Segment storage is closed");
+		}
+		
+		if(ids.get(id) < 0) {
+			return false;
+		}
+		
+		append(TOMBSTONE, id, new byte[0]);
+		deleted++;
+		return true;
+	}
+	
+	/**
+	 * @return the latest version of the item with the given id, or null if there is none or it is deleted
+	 */
+	public Item get(String id) throws IOException {
+		long offset = ids.get(id);
+		if(offset < 0) {
+			return null;
+		}
+		return read(offset, id);
+	}
+	
+	/**
+	 * @return the item of the record at the given offset, or null if the record is of another id
+	 */
+	private Item read(long offset, String id) throws IOException {
+		Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+		if(entry == null) {
+			throw new IOException("No segment for offset " + offset);
+		}
+		
+		ByteBuffer buffer = entry.getValue().buffer.duplicate();
+		buffer.position((int) (offset - entry.getKey()));
+		
+		int size = buffer.getInt();
+		buffer.get();
+		buffer.getLong();
+		if(!readId(buffer).equals(id)) {
+			// the id shares its hash with the one of the record
+			return null;
+		}
+		
+		byte[] data = new byte[size - (int) (buffer.position() - (offset - entry.getKey()))];
+		buffer.get(data);
+		return codec.decode(data, Item.class);
+	}
+	
+	/**
+	 * Passes the live items appended since the given time to a storage, in the order they were appended.
+	 * Older versions of updated items and deleted items are skipped. Items appended during the replay
+	 * are not passed.
+	 *
+	 * @param since time in milliseconds, 0 to replay the whole log
+	 * @param storage the storage to rebuild
+	 * @return the number of items passed to the storage
+	 */
+	public long replay(long since, Storage storage) throws IOException {
+		long to = end;
+		if(segments.isEmpty()) {
+			return 0L;
+		}
+		
+		Map.Entry<Long, Long> start = times.floorEntry(since);
+		long offset = (start == null) ? segments.firstKey() : start.getValue();
+		
+		long replayed = 0L;
+		List<Item> batch = new ArrayList<Item>(REPLAY_BATCH);
+		for(Segment segment : segments.tailMap(segments.floorKey(offset)).values()) {
+			if(segment.offset >= to) {
+				break;
+			}
+			
+			ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position((int) (Math.max(offset, segment.offset) - segment.offset));
+			buffer.limit((int) (Math.min(to, segment.end()) - segment.offset));
+			
+			while(buffer.remaining() >= HEADER_SIZE) {
+				int position = buffer.position();
+				int size = buffer.getInt();
+				if(size <= 0) {
+					// end of the segment
+					break;
+				}
+				
+				byte type = buffer.get();
+				long time = buffer.getLong();
+				String id = readId(buffer);
+				
+				if(type != ITEM || time < since || ids.get(id) != segment.offset + position) {
+					buffer.position(position + size);
+					continue;
+				}
+				
+				byte[] data = new byte[size - (buffer.position() - position)];
+				buffer.get(data);
+				batch.add(codec.decode(data, Item.class));
+				
+				if(batch.size() >= REPLAY_BATCH) {
+					StorageUtils.store(storage, batch);
+					replayed += batch.size();
+					batch.clear();
+				}
+			}
+		}
+		
+		StorageUtils.store(storage, batch);
+		replayed += batch.size();
+		
+		logger.info(replayed + " items replayed from " + directory + " to " + storage.getStorageName());
+		return replayed;
+	}
+	
+	/**
+	 * @return the ids of the storages to rebuild from the log, as given by segments.replay.to
+	 */
+	public List<String> getReplayTargets() {
+		return replayTo;
+	}
+	
+	/**
+	 * Replays the log into each of the given storages that has not been rebuilt from it yet, and leaves
+	 * a marker file for it in the directory of the segments.
+	 *
+	 * @param targets the storages to rebuild, by id
+	 */
+	public void replay(Map<String, Storage> targets) {
+		for(Map.Entry<String, Storage> target : targets.entrySet()) {
+			File marker = new File(directory, REPLAY_MARKER + target.getKey());
+			if(marker.exists()) {
+				logger.info("Storage " + target.getKey() + " already rebuilt from " + directory + ". Delete " + marker
+						+ " to replay the log again.");
+				continue;
+			}
+			
+			try {
+				replay(replaySince, target.getValue());
+				if(!marker.createNewFile()) {
+					logger.warn("Cannot create replay marker " + marker);
+				}
+			}
+			catch(IOException e) {
+				logger.error("Failed to replay " + directory + " to " + target.getKey() + ". It is replayed again on the next start.", e);
+			}
+		}
+	}
+	
+	private synchronized void force() {
+		if(current != null) {
+			current.buffer.force();
+		}
+	}
+	
+	@Override
+	public boolean checkStatus() {
+		return !closed;
+	}
+	
+	@Override
+	public void close() {
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+		}
+		
+		flusher.interrupt();
+		
+		synchronized(this) {
+			for(Segment segment : segments.values()) {
+				segment.close();
+			}
+			logger.info("Segment storage closed. " + appended + " items appended, " + deleted + " deleted, "
+					+ ids.size() + " live items.");
+			ids.close();
+		}
+	}
+	
+	@Override
+	public String getStorageName() {
+		return this.storageName;
+	}
+
+}
@@ -0,0 +1,119 @@
+package gr.iti.mklab.sfc.storages;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Histogram;
+import gr.iti.mklab.sfc.metrics.Metrics;
+
+/**
+ * Buffers the beans of a solr collection and sends them in batches, with a single update request
+ * that asks solr to make them searchable within a given time (commitWithin, a soft commit by default),
+ * instead of an update request per document and explicit hard commits.
+ *
+ * Beans are batched by a {@link BatchBuffer}. Beans of a failed batch are retried by the caller of the
+ * failed {@link #add(List)}, or put back in the buffer and sent with the next batch if they were added
+ * earlier. Solr replaces documents by id, so a batch that is sent twice creates no duplicates.
+ *
+ */
+public class SolrIndexBuffer<T> {
+	
+	private String collection;
+	private volatile SolrServer server;
+	
+	private int commitWithin;
+	
+	private BatchBuffer<T> buffer;
+	
+	private Histogram batchLatency;
+	
+	/**
+	 * @param collection name of the collection, used in logs and metrics
+	 * @param batchSize number of beans that triggers a batch
+	 * @param capacity maximum number of beans kept while solr is unavailable
+	 * @param commitWithin milliseconds within which solr makes the beans of a batch searchable
+	 */
+	public SolrIndexBuffer(String collection, SolrServer server, int batchSize, int capacity, int commitWithin) {
+		this.collection = collection;
+		this.server = server;
+		this.commitWithin = commitWithin;
+		
+		this.buffer = new BatchBuffer<T>("solr collection " + collection, new BatchBuffer.Sender<T>() {
+			@Override
+			public void send(List<T> batch) throws IOException {
+				SolrIndexBuffer.this.send(batch);
+			}
+		}, batchSize, capacity);
+		
+		batchLatency = Metrics.histogram("sfc_solr_batch_latency_seconds", "collection", collection);
+		Metrics.gauge("sfc_solr_pending_documents", new Gauge() {
+			@Override
+			public double getValue() {
+				return getPending();
+			}
+		}, "collection", collection);
+		Metrics.gauge("sfc_solr_indexing_lag_seconds", new Gauge() {
+			@Override
+			public double getValue() {
+				return getLag() / 1000.;
+			}
+		}, "collection", collection);
+	}
+	
+	/**
+	 * Replaces the server, e.g. when the storage is reopened. Pending beans are kept.
+	 */
+	public void setServer(SolrServer server) {
+		this.server = server;
+	}
+	
+	public void add(T bean) throws IOException {
+		buffer.add(bean);
+	}
+	
+	/**
+	 * Buffers all the beans, then sends them if the buffer reached the size of a batch. 
+	 * If the batch fails the given beans are dropped, to be retried by the caller, and the other beans stay in the buffer.
+	 */
+	public void add(List<T> beans) throws IOException {
+		buffer.add(beans);
+	}
+	
+	/**
+	 * Sends the pending beans if the oldest of them was added more than maxAge milliseconds ago.
+	 */
+	public void flushIfOlder(long maxAge) throws IOException {
+		buffer.flushIfOlder(maxAge);
+	}
+	
+	public void flush() throws IOException {
+		buffer.flush();
+	}
+	
+	public int getPending() {
+		return buffer.getPending();
+	}
+	
+	/**
+	 * @return milliseconds since the oldest bean not yet sent was added
+	 */
+	public long getLag() {
+		return buffer.getLag();
+	}
+	
+	private void send(List<T> batch) throws IOException {
+		long start = System.nanoTime();
+		try {
+			server.addBeans(batch, commitWithin);
+			batchLatency.recordSince(start);
+		}
+		catch(SolrServerException | RuntimeException e) {
+			throw new IOException("Indexing " + batch.size() + " documents in " + collection + " failed.", e);
+		}
+	}
+
+}
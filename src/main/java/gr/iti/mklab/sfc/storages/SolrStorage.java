@@ -1,11 +1,15 @@
 package gr.iti.mklab.sfc.storages;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
 
 import gr.iti.mklab.framework.client.search.solr.SolrItemHandler;
 import gr.iti.mklab.framework.client.search.solr.SolrMediaItemHandler;
@@ -18,14 +22,25 @@ import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.ItemState;
 import gr.iti.mklab.framework.common.domain.MediaItem;
 import gr.iti.mklab.framework.common.domain.WebPage;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
 /**
  * Class for indexing items to solr
  * 
+ * Items, media items and web pages are buffered per collection and sent in batches, with a soft
+ * commit requested through commitWithin. The commits of checkStatus() are no longer needed.
+ * 
+ * 	solr.batch.size: number of documents sent in one update request (default 500)
+ * 	solr.batch.age: milliseconds after which a batch is sent even if not full (default 1000)
+ * 	solr.commitWithin: milliseconds within which solr makes the documents searchable (default 5000)
+ * 	solr.buffer.capacity: maximum number of documents kept per collection while solr is unavailable (default 50000)
+ * 
  * @author Manos Schinas - manosetro@iti.gr
  *
  */
-public class SolrStorage implements Storage {
+@ThreadSafety(Policy.THREAD_SAFE)
+public class SolrStorage implements BatchStorage {
 
 	private Logger logger = LogManager.getLogger(SolrStorage.class);
 	
@@ -38,6 +53,11 @@ public class SolrStorage implements Storage {
 	
 	private static final String ONLY_ORIGINAL = "solr.onlyOriginal";
 	
+	private static final String BATCH_SIZE = "solr.batch.size";
+	private static final String BATCH_AGE = "solr.batch.age";
+	private static final String COMMIT_WITHIN = "solr.commitWithin";
+	private static final String BUFFER_CAPACITY = "solr.buffer.capacity";
+	
 	private String hostname, service;
 	
 	private String itemsCollection = null;
@@ -54,6 +74,18 @@ public class SolrStorage implements Storage {
 	
 	private AtomicLong indexedItems = new AtomicLong(0l);
 	
+	private int batchSize, bufferCapacity, commitWithin;
+	private long batchAge;
+	
+	private List<SolrServer> servers = new ArrayList<SolrServer>();
+	
+	private SolrIndexBuffer<ItemBean> itemsBuffer = null;
+	private SolrIndexBuffer<MediaItemBean> mediaItemsBuffer = null;
+	private SolrIndexBuffer<WebPageBean> webPagesBuffer = null;
+	
+	private Thread flusher = null;
+	private volatile boolean closed = false;
+	
 	public SolrStorage(Configuration config) throws IOException {
 		this.hostname = config.getParameter(SolrStorage.HOSTNAME);
 		this.service = config.getParameter(SolrStorage.SERVICE);
@@ -62,63 +94,165 @@ public class SolrStorage implements Storage {
 		this.webPagesCollection = config.getParameter(SolrStorage.WEBPAGES_COLLECTION);
 	
 		this.onlyOriginal = Boolean.valueOf(config.getParameter(SolrStorage.ONLY_ORIGINAL));
+		
+		this.batchSize = Integer.parseInt(config.getParameter(BATCH_SIZE, "500"));
+		this.batchAge = Long.parseLong(config.getParameter(BATCH_AGE, "1000"));
+		this.commitWithin = Integer.parseInt(config.getParameter(COMMIT_WITHIN, "5000"));
+		this.bufferCapacity = Integer.parseInt(config.getParameter(BUFFER_CAPACITY, "50000"));
 	}
 	
+	/**
+	 * Buffers are created on the first open and kept when the storage is closed and reopened 
+	 * (e.g. by the status monitor during an outage), so their pending documents are not lost.
+	 */
 	@Override
 	public boolean open() {
 		try {
 			if(itemsCollection != null) {
 				solrItemHandler = SolrItemHandler.getInstance(hostname + "/" + service + "/" + itemsCollection);
+				itemsBuffer = connectBuffer(itemsBuffer, itemsCollection);
 			}
 			
 			if(mediaItemsCollection != null) {	
 				solrMediaHandler = SolrMediaItemHandler.getInstance(hostname + "/" + service+"/" + mediaItemsCollection);
+				mediaItemsBuffer = connectBuffer(mediaItemsBuffer, mediaItemsCollection);
 			}
 			
 			if(webPagesCollection != null) {	
 				solrWebPageHandler = SolrWebPageHandler.getInstance(hostname + "/" + service + "/" + webPagesCollection);
+				webPagesBuffer = connectBuffer(webPagesBuffer, webPagesCollection);
 			}
 			
 		} catch (Exception e) {
 			logger.error(e);
 			return false;
 		}
+		
+		closed = false;
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!closed) {
+					try {
+						Thread.sleep(Math.max(1L, batchAge / 2));
+					}
+					catch(InterruptedException e) {
+						break;
+					}
+					flush(batchAge);
+				}
+			}
+		});
+		flusher.setName("SolrStorage-Flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		
 		return true;	
 	}
-
-	@Override
-	public void store(Item item) throws IOException {
-
-		// Index only original Items and MediaItems come from original Items
-		if(!item.isOriginal() && onlyOriginal) {
-			return;
+	
+	/**
+	 * @return the buffer of a collection, created if null, connected to a new server
+	 */
+	private <T> SolrIndexBuffer<T> connectBuffer(SolrIndexBuffer<T> buffer, String collection) {
+		SolrServer server = new HttpSolrServer(hostname + "/" + service + "/" + collection);
+		servers.add(server);
+		if(buffer == null) {
+			return new SolrIndexBuffer<T>(collection, server, batchSize, bufferCapacity, commitWithin);
 		}
 		
-		if(solrItemHandler != null) {
-			ItemBean itemBean = new ItemBean(item);
-			boolean status = solrItemHandler.insert(itemBean);
-			if(status) {
-				indexedItems.incrementAndGet();
+		buffer.setServer(server);
+		return buffer;
+	}
+	
+	/**
+	 * Sends the buffered documents older than maxAge milliseconds. 
+	 * Documents that cannot be sent stay in their buffer, so failures are only logged.
+	 */
+	private void flush(long maxAge) {
+		List<SolrIndexBuffer<?>> buffers = new ArrayList<SolrIndexBuffer<?>>();
+		Collections.addAll(buffers, itemsBuffer, mediaItemsBuffer, webPagesBuffer);
+		for(SolrIndexBuffer<?> buffer : buffers) {
+			if(buffer != null) {
+				try {
+					buffer.flushIfOlder(maxAge);
+				}
+				catch(IOException e) {
+					logger.error(e.getMessage(), e);
+				}
 			}
 		}
-		
-		if(solrMediaHandler != null) {
-			for(MediaItem mediaItem : item.getMediaItems()) {
-				MediaItemBean mediaItemBean = new MediaItemBean(mediaItem);
-				solrMediaHandler.insert(mediaItemBean);
+	}
+
+	@Override
+	public void store(Item item) throws IOException {
+		store(Collections.singletonList(item));
+	}
+	
+	/**
+	 * Adds the documents of all the items to the buffers, then sends the full buffers from the
+	 * calling thread. Documents of the items are dropped from a buffer whose update failed, and
+	 * are sent again when the items are stored again. Documents of earlier items stay in their
+	 * buffer and are sent with the next batch.
+	 * 
+	 * @throws IOException if the update of a collection failed, after the documents are added to every
+	 * 	buffer. Solr replaces documents by id, so the items can be stored again.
+	 */
+	@Override
+	public void store(List<Item> items) throws IOException {
+		List<ItemBean> itemBeans = new ArrayList<ItemBean>(items.size());
+		List<MediaItemBean> mediaItemBeans = new ArrayList<MediaItemBean>();
+		List<WebPageBean> webPageBeans = new ArrayList<WebPageBean>();
+		for(Item item : items) {
+			// Index only original Items and MediaItems come from original Items
+			if(!item.isOriginal() && onlyOriginal) {
+				continue;
 			}
-		}
-		
-		if(solrWebPageHandler != null) {
-			List<WebPage> webPages = item.getWebPages();
-			if(webPages != null) {
-				for(WebPage webPage : webPages) {
-					WebPageBean webpageBean = new WebPageBean(webPage);
-					solrWebPageHandler.insert(webpageBean);
+			
+			if(itemsBuffer != null) {
+				itemBeans.add(new ItemBean(item));
+			}
+			
+			if(mediaItemsBuffer != null && item.getMediaItems() != null) {
+				for(MediaItem mediaItem : item.getMediaItems()) {
+					mediaItemBeans.add(new MediaItemBean(mediaItem));
+				}
+			}
+			
+			if(webPagesBuffer != null) {
+				List<WebPage> webPages = item.getWebPages();
+				if(webPages != null) {
+					for(WebPage webPage : webPages) {
+						webPageBeans.add(new WebPageBean(webPage));
+					}
 				}
 			}
 		}
 		
+		IOException failure = add(itemsBuffer, itemBeans, null);
+		failure = add(mediaItemsBuffer, mediaItemBeans, failure);
+		failure = add(webPagesBuffer, webPageBeans, failure);
+		if(failure != null) {
+			throw failure;
+		}
+		indexedItems.addAndGet(itemBeans.size());
+	}
+	
+	/**
+	 * @return the failure of the update, or the given failure of a previous collection
+	 */
+	private <T> IOException add(SolrIndexBuffer<T> buffer, List<T> beans, IOException failure) {
+		if(buffer == null) {
+			return failure;
+		}
+		
+		try {
+			buffer.add(beans);
+		}
+		catch(IOException e) {
+			logger.error(e.getMessage(), e);
+			return (failure == null) ? e : failure;
+		}
+		return failure;
 	}
 	
 	@Override
@@ -140,7 +274,6 @@ public class SolrStorage implements Storage {
 		if(itemsCollection != null) {
 			try {
 				solrItemHandler.count("*:*");
-				solrItemHandler.commit();
 			} 
 			catch (Exception e) {
 				logger.error(e);
@@ -151,7 +284,6 @@ public class SolrStorage implements Storage {
 		if(mediaItemsCollection != null) {
 			try {
 				solrMediaHandler.count("*:*");
-				solrMediaHandler.commit();
 			} 
 			catch (Exception e) {
 				logger.error(e);
@@ -162,7 +294,6 @@ public class SolrStorage implements Storage {
 		if(webPagesCollection != null) {
 			try {
 				solrWebPageHandler.count("*:*");
-				solrMediaHandler.commit();
 			} 
 			catch (Exception e) {
 				logger.error(e);
@@ -175,6 +306,25 @@ public class SolrStorage implements Storage {
 
 	@Override
 	public void close() {
+		closed = true;
+		if(flusher != null) {
+			flusher.interrupt();
+			try {
+				flusher.join();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			flusher = null;
+		}
+		// documents that cannot be sent now stay in their buffers, and are sent after the next open
+		flush(0L);
+		
+		for(SolrServer server : servers) {
+			server.shutdown();
+		}
+		servers.clear();
+		
 		if(solrItemHandler != null) {
 			try {
 				solrItemHandler.close();
@@ -3,9 +3,12 @@ package gr.iti.mklab.sfc.storages;
 import gr.iti.mklab.framework.common.domain.config.Configuration;
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
 
 import java.io.IOException;
 
+@ThreadSafety(Policy.THREAD_SAFE)
 public class StdoutStorage implements Storage {
 	
 	private String storageName = "StdOut";
@@ -0,0 +1,33 @@
+package gr.iti.mklab.sfc.storages;
+
+import gr.iti.mklab.framework.common.domain.Item;
+
+import java.io.IOException;
+import java.util.List;
+
+public class StorageUtils {
+	
+	/**
+	 * Stores a batch of items. Batch capable storages receive the whole batch, 
+	 * the rest of them receive the items one by one.
+	 * 
+	 * @param storage the target storage
+	 * @param items the batch of items
+	 * @throws IOException
+	 */
+	public static void store(Storage storage, List<Item> items) throws IOException {
+		if(items.isEmpty()) {
+			return;
+		}
+		
+		if(storage instanceof BatchStorage) {
+			((BatchStorage) storage).store(items);
+		}
+		else {
+			for(Item item : items) {
+				storage.store(item);
+			}
+		}
+	}
+
+}
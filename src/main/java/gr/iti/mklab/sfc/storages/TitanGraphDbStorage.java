@@ -1,21 +1,61 @@
 package gr.iti.mklab.sfc.storages;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.thinkaurelius.titan.core.TitanFactory;
 import com.thinkaurelius.titan.core.TitanGraph;
+import com.thinkaurelius.titan.core.TitanTransaction;
 import com.tinkerpop.blueprints.Compare;
+import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Vertex;
 
 import gr.iti.mklab.framework.common.domain.config.Configuration;
 import gr.iti.mklab.framework.common.domain.Item;
 import gr.iti.mklab.framework.common.domain.ItemState;
+import gr.iti.mklab.sfc.management.ThreadSafety;
+import gr.iti.mklab.sfc.management.ThreadSafety.Policy;
+import gr.iti.mklab.sfc.metrics.Gauge;
+import gr.iti.mklab.sfc.metrics.Histogram;
+import gr.iti.mklab.sfc.metrics.Metrics;
 
-public class TitanGraphDbStorage implements Storage {
-
+/**
+ * Class for storing the users of the items and their mentions and retweets in a titan graph.
+ *
+ * Items are added to a shared transaction, which is committed when it holds a number of items or,
+ * by a background thread, when it reaches a maximum age. The ids of the user vertices are cached,
+ * so that known users are fetched by id instead of an index query. If a commit fails, the items of
+ * the transaction are added again to the next one.
+ *
+ * If graph.aggregate.window is set, mentions and retweets are folded by an {@link InteractionAggregator}
+ * and written once per window, in their own transaction, as a single edge per pair of users whose weight
+ * is incremented, instead of an edge per tweet. The interactions of an item are counted once it is
+ * committed, so an item added again after a failed commit is not counted twice.
+ *
+ * 	titan.batch.size: number of items per transaction (default 1000)
+ * 	titan.batch.age: maximum age of a transaction, in milliseconds (default 1000)
+ * 	titan.cache.size: number of cached vertex ids (default 100000)
+ * 	titan.edge.property.weight, titan.edge.property.firstSeen, titan.edge.property.lastSeen:
+ * 		properties of the weighted edges (default weight, firstSeen, lastSeen)
+ *
+ */
+@ThreadSafety(Policy.THREAD_SAFE)
+public class TitanGraphDbStorage implements BatchStorage, InteractionStorage {
+	
+	private Logger logger = LogManager.getLogger(TitanGraphDbStorage.class);
+	
 	private static String STORAGE_BACKEND = "titan.storage.backend";
 	private static String STORAGE_TABLENAME = "titan.storage.tablename";
 	private static String VERTEX_USER_ID = "titan.vertex.userid";
@@ -23,6 +63,13 @@ public class TitanGraphDbStorage implements Storage {
 	private static String EDGE_MENTIONS = "titan.edge.mentions";
 	private static String EDGE_PROPERTY_TIMESTAMP = "titan.edge.property.timestamp";
 	private static String EDGE_PROPERTY_TWEETID = "titan.edge.property.tweetid";
+	private static String EDGE_PROPERTY_WEIGHT = "titan.edge.property.weight";
+	private static String EDGE_PROPERTY_FIRSTSEEN = "titan.edge.property.firstSeen";
+	private static String EDGE_PROPERTY_LASTSEEN = "titan.edge.property.lastSeen";
+	
+	private static String BATCH_SIZE = "titan.batch.size";
+	private static String BATCH_AGE = "titan.batch.age";
+	private static String CACHE_SIZE = "titan.cache.size";
 	
 	private String storageName = "Titan";
 	
@@ -36,8 +83,31 @@ public class TitanGraphDbStorage implements Storage {
 	private String edgePropertyTimestamp;
 	private String edgePropertyTweedId;
 	
+	private String edgePropertyWeight;
+	private String edgePropertyFirstSeen;
+	private String edgePropertyLastSeen;
+	
+	private int batchSize;
+	private long batchAge;
+	
 	private TitanGraph titanGraph;
 	
+	// the current transaction, with its items and the vertices it created
+	private TitanTransaction transaction = null;
+	private List<Item> uncommitted = new ArrayList<Item>();
+	private Map<String, Vertex> created = new HashMap<String, Vertex>();
+	private long started = 0L;
+	
+	// ids of the committed user vertices
+	private Cache<String, Object> vertexIds;
+	
+	private InteractionAggregator aggregator;
+	
+	private Histogram commitLatency = Metrics.histogram("sfc_titan_commit_latency_seconds");
+	
+	private Thread committer = null;
+	private volatile boolean closed = false;
+	
 	public TitanGraphDbStorage(Configuration config) {
 		this.storageBackend = config.getParameter(TitanGraphDbStorage.STORAGE_BACKEND);
 		this.storageTableName = config.getParameter(TitanGraphDbStorage.STORAGE_TABLENAME);
@@ -49,10 +119,29 @@ public class TitanGraphDbStorage implements Storage {
 		
 		this.edgePropertyTimestamp = config.getParameter(TitanGraphDbStorage.EDGE_PROPERTY_TIMESTAMP);
 		this.edgePropertyTweedId = config.getParameter(TitanGraphDbStorage.EDGE_PROPERTY_TWEETID);
+		
+		this.edgePropertyWeight = config.getParameter(EDGE_PROPERTY_WEIGHT, "weight");
+		this.edgePropertyFirstSeen = config.getParameter(EDGE_PROPERTY_FIRSTSEEN, "firstSeen");
+		this.edgePropertyLastSeen = config.getParameter(EDGE_PROPERTY_LASTSEEN, "lastSeen");
+		
+		this.batchSize = Integer.parseInt(config.getParameter(BATCH_SIZE, "1000"));
+		this.batchAge = Long.parseLong(config.getParameter(BATCH_AGE, "1000"));
+		
+		long cacheSize = Long.parseLong(config.getParameter(CACHE_SIZE, "100000"));
+		this.vertexIds = CacheBuilder.newBuilder().maximumSize(cacheSize).recordStats().build();
+		
+		Metrics.gauge("sfc_titan_cache_hit_ratio", new Gauge() {
+			@Override
+			public double getValue() {
+				return vertexIds.stats().hitRate();
+			}
+		});
+		
+		this.aggregator = InteractionAggregator.create(config, this, edgeMentions, edgeReTweets);
 	}
 	
 	@Override
-	public boolean open() {
+	public synchronized boolean open() {
 		BaseConfiguration conf = new BaseConfiguration();
 		conf.setProperty("storage.backend", storageBackend);
 		conf.setProperty("storage.tablename", storageTableName);
@@ -61,11 +150,90 @@ public class TitanGraphDbStorage implements Storage {
 		titanGraph.makeLabel(edgeMentions).make();
 		titanGraph.makeLabel(edgeReTweets).make();
 		titanGraph.commit();
+		
+		// vertices of a previous graph may have been deleted
+		vertexIds.invalidateAll();
+		transaction = null;
+		created.clear();
+		
+		closed = false;
+		committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!closed) {
+					try {
+						Thread.sleep(Math.max(1L, batchAge / 2));
+					} catch (InterruptedException e) {
+						break;
+					}
+					
+					try {
+						commitIfOlder(batchAge);
+					}
+					catch(IOException e) {
+						logger.error(e.getMessage(), e);
+					}
+				}
+			}
+		});
+		committer.setName("TitanGraphDbStorage-Committer");
+		committer.setDaemon(true);
+		committer.start();
+		
+		if(aggregator != null) {
+			aggregator.start();
+		}
+		
 		return true;
 	}
-
+	
 	@Override
 	public void store(Item item) throws IOException {
+		store(Collections.singletonList(item));
+	}
+	
+	@Override
+	public synchronized void store(List<Item> items) throws IOException {
+		begin();
+		for(Item item : items) {
+			add(item);
+			uncommitted.add(item);
+		}
+		
+		if(uncommitted.size() >= batchSize) {
+			try {
+				commit();
+			}
+			catch(IOException e) {
+				// the caller retries these items, the earlier ones are added to the next transaction
+				int size = uncommitted.size();
+				uncommitted.subList(size - items.size(), size).clear();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Starts a transaction if there is none, with the items of a failed commit. Their interactions
+	 * have not been aggregated yet, see {@link #commit()}.
+	 */
+	private void begin() {
+		if(transaction != null) {
+			return;
+		}
+		
+		transaction = titanGraph.newTransaction();
+		started = System.currentTimeMillis();
+		for(Item item : uncommitted) {
+			add(item);
+		}
+	}
+	
+	/**
+	 * Adds the vertices and edges of an item to the transaction. Its interactions are left to the
+	 * aggregator, if any, once the item is committed.
+	 */
+	private void add(Item item) {
 		String userId = item.getUserId();
 		String tweetId = item.getId();
 		long timestamp = item.getPublicationTime();
@@ -73,33 +241,142 @@ public class TitanGraphDbStorage implements Storage {
 		
 		Vertex source = getOrCreateVertex(userId, vertexUserId);
 		
-		//handle mentions
-		String[] mentions = item.getMentions();
-		for(String userMention : mentions) {
-			Edge edge;
-			//handle retweets
-			if(!item.isOriginal()) {
-				String userRetweets = item.getReferencedUserId();
+		//handle retweets
+		if(!item.isOriginal()) {
+			String userRetweets = item.getReferencedUserId();
+			if(userRetweets != null && aggregator == null) {
 				Vertex destination = getOrCreateVertex(userRetweets, vertexUserId);
-				edge = titanGraph.addEdge(null, source, destination, edgeReTweets);
-//				edge.setProperty("title", title);
-			}
-			else {
-				Vertex destination = getOrCreateVertex(userMention, vertexUserId);
-				edge = titanGraph.addEdge(null, source, destination, edgeMentions);
+				Edge edge = transaction.addEdge(null, source, destination, edgeReTweets);
 //				edge.setProperty("title", title);
+				edge.setProperty(edgePropertyTweedId, tweetId);
+				edge.setProperty(edgePropertyTimestamp, timestamp);
 			}
+			return;
+		}
+		
+		//handle mentions
+		String[] mentions = item.getMentions();
+		if(mentions == null || aggregator != null) {
+			return;
+		}
+		
+		for(String userMention : mentions) {
+			Vertex destination = getOrCreateVertex(userMention, vertexUserId);
+			Edge edge = transaction.addEdge(null, source, destination, edgeMentions);
+//			edge.setProperty("title", title);
 			edge.setProperty(edgePropertyTweedId, tweetId);
 			edge.setProperty(edgePropertyTimestamp, timestamp);
+		}
+	}
+	
+	/**
+	 * Counts the interactions of a committed item, so that an item is counted once however many
+	 * times it is added to a transaction.
+	 */
+	private void aggregate(Item item) {
+		String userId = item.getUserId();
+		long timestamp = item.getPublicationTime();
+		
+		if(!item.isOriginal()) {
+			String userRetweets = item.getReferencedUserId();
+			if(userRetweets != null) {
+				aggregator.add(userId, edgeReTweets, userRetweets, timestamp);
+			}
+			return;
+		}
+		
+		String[] mentions = item.getMentions();
+		if(mentions != null) {
+			for(String userMention : mentions) {
+				aggregator.add(userId, edgeMentions, userMention, timestamp);
+			}
+		}
+	}
+	
+	@Override
+	public synchronized void storeInteractions(List<Interaction> interactions) throws IOException {
+		begin();
+		for(Interaction interaction : interactions) {
+			Vertex source = getOrCreateVertex(interaction.getSource(), vertexUserId);
+			Vertex destination = getOrCreateVertex(interaction.getTarget(), vertexUserId);
+			
+			Edge edge = null;
+			for(Edge out : source.getEdges(Direction.OUT, interaction.getRelation())) {
+				if(out.getVertex(Direction.IN).getId().equals(destination.getId())) {
+					edge = out;
+					break;
+				}
+			}
 			
+			if(edge == null) {
+				edge = transaction.addEdge(null, source, destination, interaction.getRelation());
+				edge.setProperty(edgePropertyWeight, interaction.getCount());
+				edge.setProperty(edgePropertyFirstSeen, interaction.getFirstSeen());
+				edge.setProperty(edgePropertyLastSeen, interaction.getLastSeen());
+				continue;
+			}
+			
+			Long weight = edge.getProperty(edgePropertyWeight);
+			Long firstSeen = edge.getProperty(edgePropertyFirstSeen);
+			Long lastSeen = edge.getProperty(edgePropertyLastSeen);
+			edge.setProperty(edgePropertyWeight, (weight == null ? 0L : weight) + interaction.getCount());
+			edge.setProperty(edgePropertyFirstSeen, firstSeen == null ? interaction.getFirstSeen() : Math.min(firstSeen, interaction.getFirstSeen()));
+			edge.setProperty(edgePropertyLastSeen, lastSeen == null ? interaction.getLastSeen() : Math.max(lastSeen, interaction.getLastSeen()));
 		}
 		
-		titanGraph.commit();
+		// the aggregator keeps the interactions if the commit fails
+		commit();
 	}
-
+	
+	private synchronized void commitIfOlder(long maxAge) throws IOException {
+		if(transaction != null && System.currentTimeMillis() - started >= maxAge) {
+			commit();
+		}
+	}
+	
+	/**
+	 * Commits the current transaction, caches the ids of its new vertices and passes the interactions
+	 * of its items to the aggregator. On failure the transaction is rolled back and its items are kept
+	 * for the next one.
+	 */
+	private void commit() throws IOException {
+		if(transaction == null) {
+			return;
+		}
+		
+		long start = System.nanoTime();
+		try {
+			transaction.commit();
+			commitLatency.recordSince(start);
+			
+			for(Map.Entry<String, Vertex> vertex : created.entrySet()) {
+				vertexIds.put(vertex.getKey(), vertex.getValue().getId());
+			}
+			if(aggregator != null) {
+				for(Item item : uncommitted) {
+					aggregate(item);
+				}
+			}
+			uncommitted.clear();
+		}
+		catch(RuntimeException e) {
+			try {
+				transaction.rollback();
+			}
+			catch(RuntimeException re) {
+				logger.error("Rollback failed.", re);
+			}
+			throw new IOException("Commit of " + uncommitted.size() + " items to titan failed.", e);
+		}
+		finally {
+			transaction = null;
+			created.clear();
+		}
+	}
+	
 	@Override
 	public void store(ItemState itemState) {
-		System.out.println(itemState.toString());	
+		System.out.println(itemState.toString());
 	}
 	
 	
@@ -108,24 +385,64 @@ public class TitanGraphDbStorage implements Storage {
 		// TODO Auto-generated method stub
 		return false;
 	}
-
+	
 	@Override
 	public void close() {
-		titanGraph.shutdown();
+		closed = true;
+		if(committer != null) {
+			committer.interrupt();
+		}
+		
+		// committed items pass their interactions to the last window of the aggregator
+		synchronized(this) {
+			try {
+				commit();
+			}
+			catch(IOException e) {
+				logger.error(uncommitted.size() + " items are not committed to titan.", e);
+			}
+		}
+		
+		if(aggregator != null) {
+			aggregator.close();
+		}
+		
+		synchronized(this) {
+			titanGraph.shutdown();
+		}
 	}
 	
+	/**
+	 * Finds a user vertex by its cached id, by the vertices created in the current transaction, or by the index.
+	 */
 	private Vertex getOrCreateVertex(String vertexId, String vertexKey) {
-		Vertex userId;
-		if(titanGraph.query().has(vertexKey, Compare.EQUAL, vertexId).vertices().iterator().hasNext()) {
-			userId = titanGraph.query().has(vertexKey, Compare.EQUAL, vertexId).vertices().iterator().next();
+		Vertex userId = created.get(vertexId);
+		if(userId != null) {
+			return userId;
+		}
+		
+		Object id = vertexIds.getIfPresent(vertexId);
+		if(id != null) {
+			userId = transaction.getVertex(id);
+			if(userId != null) {
+				return userId;
+			}
+			vertexIds.invalidate(vertexId);
+		}
+		
+		Iterator<Vertex> vertices = transaction.query().has(vertexKey, Compare.EQUAL, vertexId).vertices().iterator();
+		if(vertices.hasNext()) {
+			userId = vertices.next();
+			vertexIds.put(vertexId, userId.getId());
 		}
 		else {
-			userId = titanGraph.addVertex(null);
+			userId = transaction.addVertex(null);
 			userId.setProperty(vertexKey, vertexId);
+			created.put(vertexId, userId);
 		}
 		return userId;
 	}
-
+	
 	@Override
 	public boolean checkStatus() {
 		if(titanGraph.isOpen()) {
@@ -135,7 +452,7 @@ public class TitanGraphDbStorage implements Storage {
 			return false;
 		}
 	}
-
+	
 	@Override
 	public String getStorageName() {
 		return this.storageName;
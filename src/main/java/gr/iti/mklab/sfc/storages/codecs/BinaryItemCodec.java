@@ -0,0 +1,512 @@
+package gr.iti.mklab.sfc.storages.codecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import gr.iti.mklab.framework.common.domain.JSONable;
+
+/**
+ * Compact binary form of the JSON representation of the objects, optionally compressed.
+ *
+ * Every message starts with a header: a magic byte, the format version and the compression, followed
+ * by the uncompressed length of the body when it is compressed. The body is the JSON tree of the object,
+ * with type tags instead of punctuation, numbers as variable length integers or 8-byte doubles, and the
+ * field names written once per message: later occurrences of a name refer to its first one by index.
+ *
+ * 	null, false, true: a tag
+ * 	integer: tag, zigzag varint
+ * 	double: tag, 8 bytes
+ * 	string: tag, varint length, UTF-8 bytes
+ * 	array: tag, values, end tag
+ * 	object: tag, (name, value) pairs, varint 0. A new name is written as varint ((length + 1) << 1)
+ * 		followed by its UTF-8 bytes, a name already written as varint (index << 1 | 1).
+ *
+ * Objects are encoded by Gson straight into the binary form, through a {@link JsonWriter} that writes
+ * tags instead of text, with the exposed fields of the objects like their toString(). Decoding builds
+ * the JSON tree from the tags and binds it with Gson, without going through text either. 
+ * See CodecBenchmark in the benchmarks module for the sizes and times against the JSON codec.
+ *
+ */
+public class BinaryItemCodec implements ItemCodec {
+	
+	public enum Compression {
+		NONE, DEFLATE, LZ4
+	}
+	
+	private static final byte MAGIC = (byte) 0xB5;
+	private static final byte VERSION = 2;
+	
+	private static final byte NULL = 0, FALSE = 1, TRUE = 2, INTEGER = 3, DOUBLE = 4, STRING = 5, ARRAY = 6, OBJECT = 7;
+	
+	// numbers that do not fit in a long or a double are written as text
+	private static final byte DECIMAL = 8;
+	
+	// end of an array
+	private static final byte END = 9;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private Compression compression;
+	
+	// the fields of the JSON representation are the exposed ones, see JSONable.toString()
+	private Gson encoder = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+	private Gson decoder = new Gson();
+	private LZ4Factory lz4 = null;
+	
+	public BinaryItemCodec(Compression compression) {
+		this.compression = compression;
+		if(compression == Compression.LZ4) {
+			lz4 = LZ4Factory.fastestInstance();
+		}
+	}
+	
+	@Override
+	public byte[] encode(JSONable object) throws IOException {
+		BinaryWriter writer = new BinaryWriter();
+		if(compression == Compression.NONE) {
+			writeHeader(writer.out);
+		}
+		
+		try {
+			encoder.toJson(object, object.getClass(), writer);
+		}
+		catch(JsonIOException | IllegalArgumentException e) {
+			throw new IOException("Cannot encode " + object.getClass().getSimpleName(), e);
+		}
+		
+		if(compression == Compression.NONE) {
+			return writer.out.toByteArray();
+		}
+		
+		byte[] body = writer.out.toByteArray();
+		ByteArrayOutputStream message = new ByteArrayOutputStream(body.length / 2 + 16);
+		writeHeader(message);
+		writeVarint(message, body.length);
+		compress(body, message);
+		return message.toByteArray();
+	}
+	
+	private void writeHeader(ByteArrayOutputStream out) {
+		out.write(MAGIC);
+		out.write(VERSION);
+		out.write(compression.ordinal());
+	}
+	
+	@Override
+	public <T extends JSONable> T decode(byte[] data, Class<T> type) throws IOException {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			if(buffer.get() != MAGIC) {
+				throw new IOException("Not an encoded object");
+			}
+			
+			byte version = buffer.get();
+			if(version != VERSION) {
+				throw new IOException("Unsupported version " + version);
+			}
+			
+			int ordinal = buffer.get();
+			if(ordinal < 0 || ordinal >= Compression.values().length) {
+				throw new IOException("Unknown compression " + ordinal);
+			}
+			
+			Compression bodyCompression = Compression.values()[ordinal];
+			if(bodyCompression != Compression.NONE) {
+				long length = Reader.readVarint(buffer);
+				if(length < 0 || length > Integer.MAX_VALUE) {
+					throw new IOException("Invalid body length " + length);
+				}
+				buffer = ByteBuffer.wrap(decompress(bodyCompression, data, buffer.position(), (int) length));
+			}
+			
+			JsonElement tree = new Reader(buffer).readValue();
+			return decoder.fromJson(tree, type);
+		}
+		catch(BufferUnderflowException | IllegalArgumentException | JsonParseException e) {
+			throw new IOException("Cannot decode " + type.getSimpleName(), e);
+		}
+	}
+	
+	private void compress(byte[] body, ByteArrayOutputStream out) {
+		if(compression == Compression.LZ4) {
+			byte[] compressed = lz4.fastCompressor().compress(body);
+			out.write(compressed, 0, compressed.length);
+			return;
+		}
+		
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(body);
+			deflater.finish();
+			byte[] chunk = new byte[4096];
+			while(!deflater.finished()) {
+				int n = deflater.deflate(chunk);
+				out.write(chunk, 0, n);
+			}
+		}
+		finally {
+			deflater.end();
+		}
+	}
+	
+	private byte[] decompress(Compression bodyCompression, byte[] data, int offset, int length) throws IOException {
+		byte[] body = new byte[length];
+		if(bodyCompression == Compression.LZ4) {
+			LZ4Factory factory = (lz4 == null) ? LZ4Factory.fastestInstance() : lz4;
+			try {
+				factory.fastDecompressor().decompress(data, offset, body, 0, length);
+			}
+			catch(LZ4Exception e) {
+				throw new IOException("Corrupted body", e);
+			}
+			return body;
+		}
+		
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, offset, data.length - offset);
+			int n = 0;
+			while(n < length && !inflater.finished()) {
+				int inflated = inflater.inflate(body, n, length - n);
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += inflated;
+			}
+			if(n != length) {
+				throw new IOException("Truncated body: " + n + " of " + length + " bytes");
+			}
+			return body;
+		}
+		catch(DataFormatException e) {
+			throw new IOException("Corrupted body", e);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+	
+	@Override
+	public String getContentType() {
+		return "application/x-sfc-binary";
+	}
+	
+	@Override
+	public boolean isText() {
+		return false;
+	}
+	
+	static void writeVarint(ByteArrayOutputStream out, long value) {
+		while((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+	
+	/**
+	 * Gson writer that writes the tags of the binary form instead of JSON text. Names are held 
+	 * until their value is written, so that null fields are skipped as by the JSON writer.
+	 */
+	private static class BinaryWriter extends JsonWriter {
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+		Map<String, Integer> names = new HashMap<String, Integer>();
+		String deferredName = null;
+		
+		BinaryWriter() {
+			// nothing is written to the text writer
+			super(new StringWriter(0));
+		}
+		
+		private void writeString(String value) {
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarint(out, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+		
+		private void writeDeferredName() {
+			if(deferredName == null) {
+				return;
+			}
+			
+			Integer index = names.get(deferredName);
+			if(index != null) {
+				writeVarint(out, ((long) index << 1) | 1);
+			}
+			else {
+				names.put(deferredName, names.size());
+				byte[] bytes = deferredName.getBytes(UTF8);
+				writeVarint(out, (long) (bytes.length + 1) << 1);
+				out.write(bytes, 0, bytes.length);
+			}
+			deferredName = null;
+		}
+		
+		private JsonWriter tag(byte tag) {
+			writeDeferredName();
+			out.write(tag);
+			return this;
+		}
+		
+		@Override
+		public JsonWriter beginArray() {
+			return tag(ARRAY);
+		}
+		
+		@Override
+		public JsonWriter endArray() {
+			out.write(END);
+			return this;
+		}
+		
+		@Override
+		public JsonWriter beginObject() {
+			return tag(OBJECT);
+		}
+		
+		@Override
+		public JsonWriter endObject() {
+			deferredName = null;
+			writeVarint(out, 0L);
+			return this;
+		}
+		
+		@Override
+		public JsonWriter name(String name) {
+			if(name == null) {
+				throw new NullPointerException("name == null");
+			}
+			deferredName = name;
+			return this;
+		}
+		
+		@Override
+		public JsonWriter value(String value) {
+			if(value == null) {
+				return nullValue();
+			}
+			tag(STRING);
+			writeString(value);
+			return this;
+		}
+		
+		// raw JSON, not produced by Gson itself
+		public JsonWriter jsonValue(String value) throws IOException {
+			throw new IOException("Raw JSON values cannot be encoded");
+		}
+		
+		@Override
+		public JsonWriter nullValue() {
+			if(deferredName != null && !getSerializeNulls()) {
+				// skip the field altogether
+				deferredName = null;
+				return this;
+			}
+			return tag(NULL);
+		}
+		
+		@Override
+		public JsonWriter value(boolean value) {
+			return tag(value ? TRUE : FALSE);
+		}
+		
+		public JsonWriter value(Boolean value) {
+			return (value == null) ? nullValue() : value(value.booleanValue());
+		}
+		
+		@Override
+		public JsonWriter value(long value) {
+			tag(INTEGER);
+			writeVarint(out, (value << 1) ^ (value >> 63));
+			return this;
+		}
+		
+		@Override
+		public JsonWriter value(double value) {
+			if(Double.isNaN(value) || Double.isInfinite(value)) {
+				if(!isLenient()) {
+					throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+				}
+				tag(DECIMAL);
+				writeString(Double.toString(value));
+				return this;
+			}
+			
+			tag(DOUBLE);
+			long bits = Double.doubleToLongBits(value);
+			for(int shift = 56; shift >= 0; shift -= 8) {
+				out.write((int) (bits >>> shift));
+			}
+			return this;
+		}
+		
+		public JsonWriter value(float value) {
+			return value((double) value);
+		}
+		
+		@Override
+		public JsonWriter value(Number value) {
+			if(value == null) {
+				return nullValue();
+			}
+			
+			if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+					|| value instanceof AtomicInteger || value instanceof AtomicLong) {
+				return value(value.longValue());
+			}
+			if(value instanceof Double || value instanceof Float) {
+				return value(value.doubleValue());
+			}
+			
+			// BigInteger, BigDecimal or a number parsed lazily by Gson
+			String text = value.toString();
+			if(!(value instanceof BigDecimal)) {
+				try {
+					return value(Long.parseLong(text));
+				}
+				catch(NumberFormatException e) {
+					// not a long
+				}
+			}
+			tag(DECIMAL);
+			writeString(text);
+			return this;
+		}
+		
+		@Override
+		public void flush() {
+			// nothing buffered
+		}
+		
+		@Override
+		public void close() {
+			// nothing to release
+		}
+	}
+	
+	private static class Reader {
+		
+		ByteBuffer in;
+		List<String> names = new ArrayList<String>();
+		
+		Reader(ByteBuffer in) {
+			this.in = in;
+		}
+		
+		static long readVarint(ByteBuffer in) throws IOException {
+			long value = 0L;
+			for(int shift = 0; shift < 64; shift += 7) {
+				byte b = in.get();
+				value |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+		
+		String readString() throws IOException {
+			int length = (int) readVarint(in);
+			return readUtf8(length);
+		}
+		
+		String readUtf8(int length) throws IOException {
+			if(length < 0 || length > in.remaining()) {
+				throw new IOException("Truncated string of " + length + " bytes");
+			}
+			String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+			in.position(in.position() + length);
+			return value;
+		}
+		
+		/**
+		 * @return the next name of an object, or null at its end
+		 */
+		String readName() throws IOException {
+			long header = readVarint(in);
+			if(header == 0) {
+				return null;
+			}
+			
+			if((header & 1) == 1) {
+				int index = (int) (header >>> 1);
+				if(index >= names.size()) {
+					throw new IOException("Unknown name " + index);
+				}
+				return names.get(index);
+			}
+			
+			String name = readUtf8((int) (header >>> 1) - 1);
+			names.add(name);
+			return name;
+		}
+		
+		JsonElement readValue() throws IOException {
+			byte tag = in.get();
+			switch(tag) {
+				case NULL:
+					return JsonNull.INSTANCE;
+				case FALSE:
+					return new JsonPrimitive(Boolean.FALSE);
+				case TRUE:
+					return new JsonPrimitive(Boolean.TRUE);
+				case INTEGER:
+					long zigzag = readVarint(in);
+					return new JsonPrimitive((zigzag >>> 1) ^ -(zigzag & 1));
+				case DOUBLE:
+					return new JsonPrimitive(Double.longBitsToDouble(in.getLong()));
+				case DECIMAL:
+					return new JsonPrimitive(new BigDecimal(readString()));
+				case STRING:
+					return new JsonPrimitive(readString());
+				case ARRAY:
+					JsonArray array = new JsonArray();
+					for(JsonElement value = readValue(); value != null; value = readValue()) {
+						array.add(value);
+					}
+					return array;
+				case OBJECT:
+					JsonObject object = new JsonObject();
+					for(String name = readName(); name != null; name = readName()) {
+						object.add(name, readValue());
+					}
+					return object;
+				case END:
+					// end of the array being read
+					return null;
+				default:
+					throw new IOException("Unknown tag " + tag);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+package gr.iti.mklab.sfc.storages.codecs;
+
+import java.io.IOException;
+
+import gr.iti.mklab.framework.common.domain.JSONable;
+
+/**
+ * Converts items, media items and web pages to the bytes written by the storages that send them
+ * out of the manager (redis, rabbitmq, flat files), and back for the consumers of these bytes.
+ *
+ * Implementations must be thread safe. See {@link ItemCodecs} for the available codecs.
+ *
+ */
+public interface ItemCodec {
+	
+	public byte[] encode(JSONable object) throws IOException;
+	
+	public <T extends JSONable> T decode(byte[] data, Class<T> type) throws IOException;
+	
+	/**
+	 * @return the MIME type of the encoded objects, e.g. for the properties of amqp messages
+	 */
+	public String getContentType();
+	
+	/**
+	 * @return whether the encoded objects are text without line breaks, that can be stored one per line
+	 */
+	public boolean isText();
+
+}
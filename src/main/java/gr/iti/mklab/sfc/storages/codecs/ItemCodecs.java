@@ -0,0 +1,43 @@
+package gr.iti.mklab.sfc.storages.codecs;
+
+import gr.iti.mklab.framework.common.domain.config.Configuration;
+import gr.iti.mklab.sfc.storages.codecs.BinaryItemCodec.Compression;
+
+/**
+ * Creates the codec of a storage from its configuration:
+ *
+ * 	codec: json (the toString() of the objects), java (java serialization) or binary (see {@link BinaryItemCodec})
+ * 	codec.compression: none, deflate or lz4. Applies to the binary codec.
+ *
+ * A header in the binary messages tells the version and the compression, so consumers can decode
+ * messages of any configuration.
+ *
+ */
+public class ItemCodecs {
+	
+	public static final String CODEC = "codec";
+	public static final String COMPRESSION = "codec.compression";
+	
+	/**
+	 * @param defaultCodec the codec of the storage if none is configured, so that existing consumers keep working
+	 */
+	public static ItemCodec create(Configuration config, String defaultCodec) {
+		String name = config.getParameter(CODEC, defaultCodec).trim().toLowerCase();
+		Compression compression = Compression.valueOf(config.getParameter(COMPRESSION, "none").trim().toUpperCase());
+		return create(name, compression);
+	}
+	
+	public static ItemCodec create(String name, Compression compression) {
+		switch(name) {
+			case "json":
+				return new JsonItemCodec();
+			case "java":
+				return new JavaItemCodec();
+			case "binary":
+				return new BinaryItemCodec(compression);
+			default:
+				throw new IllegalArgumentException("Unknown codec " + name);
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package gr.iti.mklab.sfc.storages.codecs;
+
+import java.io.IOException;
+
+import org.apache.commons.lang3.SerializationException;
+import org.apache.commons.lang3.SerializationUtils;
+
+import gr.iti.mklab.framework.common.domain.JSONable;
+
+/**
+ * Java serialization of the objects, as sent to rabbitmq before the codecs were introduced.
+ *
+ */
+public class JavaItemCodec implements ItemCodec {
+	
+	@Override
+	public byte[] encode(JSONable object) {
+		return SerializationUtils.serialize(object);
+	}
+	
+	@Override
+	public <T extends JSONable> T decode(byte[] data, Class<T> type) throws IOException {
+		try {
+			return type.cast(SerializationUtils.deserialize(data));
+		}
+		catch(SerializationException | ClassCastException e) {
+			throw new IOException("Cannot decode " + type.getSimpleName(), e);
+		}
+	}
+	
+	@Override
+	public String getContentType() {
+		return "application/x-java-serialized-object";
+	}
+	
+	@Override
+	public boolean isText() {
+		return false;
+	}
+
+}
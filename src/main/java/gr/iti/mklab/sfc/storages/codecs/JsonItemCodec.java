@@ -0,0 +1,46 @@
+package gr.iti.mklab.sfc.storages.codecs;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import gr.iti.mklab.framework.common.domain.JSONable;
+
+/**
+ * The JSON representation of the objects (their toString()), as published before the codecs were introduced.
+ *
+ */
+public class JsonItemCodec implements ItemCodec {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private Gson gson = new Gson();
+	
+	@Override
+	public byte[] encode(JSONable object) {
+		return object.toString().getBytes(UTF8);
+	}
+	
+	@Override
+	public <T extends JSONable> T decode(byte[] data, Class<T> type) throws IOException {
+		try {
+			return gson.fromJson(new String(data, UTF8), type);
+		}
+		catch(JsonParseException e) {
+			throw new IOException("Cannot decode " + type.getSimpleName(), e);
+		}
+	}
+	
+	@Override
+	public String getContentType() {
+		return "application/json";
+	}
+	
+	@Override
+	public boolean isText() {
+		return true;
+	}
+
+}
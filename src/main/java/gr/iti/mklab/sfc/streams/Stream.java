@@ -37,6 +37,9 @@ public abstract class Stream {
 	protected int maxRequests = 10;
 	protected long timeWindow = 1;
 	
+	// Maximum time to wait for the storage handler to drain before polling
+	protected long maxBackpressureWait = 60000L;
+	
 	//protected BlockingQueue<Feed> feedsQueue;
 	protected Retriever retriever = null;
 	protected StorageHandler storageHandler = null;
@@ -73,6 +76,15 @@ public abstract class Stream {
 			}
 		
 			try {
+				if(storageHandler != null && storageHandler.isOverloaded()) {
+					logger.info("Storage handler is overloaded (" + Math.round(100 * storageHandler.getQueueLoad()) 
+							+ "%). Wait before polling for (" + feed.getId() + ")");
+					if(!storageHandler.awaitCapacity(maxBackpressureWait)) {
+						logger.error("Storage handler did not drain in " + (maxBackpressureWait / 1000) 
+								+ " seconds. Poll for (" + feed.getId() + ") anyway.");
+					}
+				}
+				
 				response = retriever.retrieve(feed, requests);
 				if(storageHandler != null) {
 					for(Item item : response.getItems()) {
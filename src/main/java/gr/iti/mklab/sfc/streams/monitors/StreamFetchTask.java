@@ -23,6 +23,8 @@ import gr.iti.mklab.framework.common.domain.ItemState;
 import gr.iti.mklab.framework.common.domain.feeds.Feed;
 import gr.iti.mklab.framework.retrievers.Response;
 import gr.iti.mklab.sfc.management.StorageHandler;
+import gr.iti.mklab.sfc.metrics.Histogram;
+import gr.iti.mklab.sfc.metrics.Metrics;
 import gr.iti.mklab.sfc.streams.Stream;
 import gr.iti.mklab.sfc.streams.StreamException;
 
@@ -38,6 +40,8 @@ public class StreamFetchTask implements  Callable<Integer>, Runnable {
 	
 	private final Logger logger = LogManager.getLogger(StreamFetchTask.class);
 	
+	private static final String FETCH_LATENCY = "sfc_feed_fetch_latency_seconds";
+	
 	private Random rand = new Random();
 	
 	private Stream stream;
@@ -122,6 +126,8 @@ public class StreamFetchTask implements  Callable<Integer>, Runnable {
 	public void removeFeed(Feed feed) {
 		this.feeds.remove(feed.getId());
 		this.feedsQueue.remove(feed);
+		
+		Metrics.remove(FETCH_LATENCY, "stream", stream.getName(), "feed", feed.getId());
 	}
 
 	public void removeFeeds(List<Feed> feeds) {
@@ -195,6 +201,7 @@ public class StreamFetchTask implements  Callable<Integer>, Runnable {
 					logger.info("Poll for " + feed);
 					
 					long executionTime = System.currentTimeMillis();
+					long start = System.nanoTime();
 					
 					Response response = stream.poll(feed, remainingRequests);
 					totalItems += response.getNumberOfItems();
@@ -207,6 +214,7 @@ public class StreamFetchTask implements  Callable<Integer>, Runnable {
 					
 					FeedFetch feedFetch = feeds.get(feed.getId());
 					if(feedFetch != null) {
+						feedFetch.fetchLatency.recordSince(start);
 						feedFetch.setLastExecution(executionTime);
 						feedFetch.incFetchedItems(response.getNumberOfItems());
 						
@@ -271,6 +279,7 @@ public class StreamFetchTask implements  Callable<Integer>, Runnable {
 							int requestsPerFeed = Math.min(maxRequestsPerFeed, Math.max(availableRequests / feedsToPoll.size(), 1));
 							logger.info("Poll for [" + feed.getId() + "]. Requests: " + requestsPerFeed);
 							
+							long start = System.nanoTime();
 							Response response = stream.poll(feed, requestsPerFeed);
 							totalRetrievedItems += response.getNumberOfItems();
 						
@@ -282,6 +291,7 @@ public class StreamFetchTask implements  Callable<Integer>, Runnable {
 							
 							FeedFetch feedFetch = feeds.get(feed.getId());
 							if(feedFetch != null) {
+								feedFetch.fetchLatency.recordSince(start);
 								feedFetch.setLastExecution(lastExecutionTime);
 								feedFetch.incFetchedItems(response.getNumberOfItems());
 							}
@@ -373,8 +383,11 @@ public class StreamFetchTask implements  Callable<Integer>, Runnable {
 		
 		private Long fetchedItems = 0L;
 		
+		private Histogram fetchLatency;
+		
 		public FeedFetch(Feed feed) {
 			this.feed = feed;
+			this.fetchLatency = Metrics.histogram(FETCH_LATENCY, "stream", stream.getName(), "feed", feed.getId());
 		}
 
 		public Long getLastExecution() {
@@ -7,13 +7,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import gr.iti.mklab.framework.common.domain.feeds.Feed;
 import gr.iti.mklab.sfc.streams.Stream;
+import gr.iti.mklab.sfc.utils.Threads;
 
 
 /**
@@ -36,7 +36,7 @@ public class StreamsMonitor implements Runnable {
 	
 	public StreamsMonitor(int numberOfStreams) {
 		logger.info("Initialize Execution Service with " + numberOfStreams + " threads.");
-		executor = Executors.newFixedThreadPool(numberOfStreams + 1);
+		executor = Threads.newExecutor(numberOfStreams + 1, "StreamsMonitor");
 	}
 	
 	public int getNumberOfStreamFetchTasks() {
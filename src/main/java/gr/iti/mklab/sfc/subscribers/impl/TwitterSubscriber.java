@@ -8,7 +8,6 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.logging.log4j.LogManager;
@@ -35,6 +34,7 @@ import gr.iti.mklab.framework.common.domain.feeds.KeywordsFeed;
 import gr.iti.mklab.framework.common.domain.feeds.LocationFeed;
 import gr.iti.mklab.sfc.streams.StreamException;
 import gr.iti.mklab.sfc.subscribers.Subscriber;
+import gr.iti.mklab.sfc.utils.Threads;
 
 /**
  * Class for retrieving real-time Twitter content by subscribing on Twitter Streaming API. 
@@ -48,7 +48,9 @@ public class TwitterSubscriber extends Subscriber {
 	
 	private Logger  logger = LogManager.getLogger(TwitterSubscriber.class);
 	
-	private BlockingQueue<Status> queue = new LinkedBlockingQueue<Status>();
+	private static final String MAX_QUEUE_SIZE = "maxQueueSize";
+	
+	private BlockingQueue<Status> queue = null;
 	
 	public enum AccessLevel {
 		
@@ -233,21 +235,29 @@ public class TwitterSubscriber extends Subscriber {
 	
 	private StatusListener getListener() { 
 		return new StatusListener() {
-			long items = 0, deletion = 0;
+			long items = 0, deletion = 0, dropped = 0;
 			
 			@Override
 			public void onStatus(Status status) {
 				if(status != null) {
 					try {
-						queue.add(status);
 						if((++items)%5000==0) {
-							logger.info(items + " incoming items from twitter. " + deletion + " deletions.");
+							logger.info(items + " incoming items from twitter. " + deletion + " deletions. " + dropped + " dropped.");
 							logger.info(queue.size() + " statuses in queue");
+							if(storageHandler != null) {
+								logger.info("Storage handler load: " + Math.round(100 * storageHandler.getQueueLoad()) + "%");
+							}
+						}
+						
+						// The streaming API cannot be slowed down. Under backpressure shed retweets first 
+						// and drop the newest statuses only when the local buffer is full.
+						if(storageHandler != null && storageHandler.isOverloaded() && status.isRetweet()) {
+							dropped++;
+							return;
 						}
 						
-						if(queue.size() > 2000) {
-							logger.info("Twitter Queue size > 2000. Clear to prevent heapsize overflow.");
-							queue.clear();
+						if(!queue.offer(status)) {
+							dropped++;
 						}
 					}
 					catch(Exception e) {
@@ -357,6 +367,9 @@ public class TwitterSubscriber extends Subscriber {
 		String oAuthAccessToken 		= 	config.getParameter(ACCESS_TOKEN);
 		String oAuthAccessTokenSecret 	= 	config.getParameter(ACCESS_TOKEN_SECRET);
 		
+		int maxQueueSize = Integer.parseInt(config.getParameter(MAX_QUEUE_SIZE, "10000"));
+		queue = new LinkedBlockingQueue<Status>(maxQueueSize);
+		
 		String accessLevel = config.getParameter("AccessLevel");
 		if(accessLevel != null && accessLevel.equals("public")) {
 			this.accessLevel = AccessLevel.PUBLIC;
@@ -382,7 +395,7 @@ public class TwitterSubscriber extends Subscriber {
 			.setOAuthAccessTokenSecret(oAuthAccessTokenSecret);
 		twitter4j.conf.Configuration conf = cb.build();
 		
-		this.executorService = Executors.newFixedThreadPool(numberOfConsumers);
+		this.executorService = Threads.newExecutor(numberOfConsumers, "TwitterStreamConsumer");
 		for(int i=0; i<numberOfConsumers; i++) {
 			TwitterStreamConsumer consumer = new TwitterStreamConsumer();
 			streamConsumers.add(consumer);
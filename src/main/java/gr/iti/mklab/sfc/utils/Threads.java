@@ -0,0 +1,231 @@
+package gr.iti.mklab.sfc.utils;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Creates the threads and executors of the long running parts of the manager (consumers,
+ * storage lanes, stream fetch tasks, subscribers) according to the configured execution mode:
+ *
+ * 	PLATFORM: a platform thread per task and fixed size pools, as before
+ * 	VIRTUAL: a virtual thread per task. Needs a Java 21 runtime, otherwise falls back to PLATFORM.
+ * 	SHARED: all tasks run on a single, unbounded pool of platform threads
+ *
+ * The code is compiled for Java 7, so virtual threads are created through reflection.
+ * Blocking calls (Mongo, Solr, Jedis) are the same in every mode; note that on Java 21 a
+ * virtual thread blocking inside a synchronized block pins its carrier thread.
+ *
+ */
+public class Threads {
+	
+	public static final String EXECUTION_MODE = "execution.mode";
+	
+	public enum Mode {
+		PLATFORM, VIRTUAL, SHARED
+	}
+	
+	private static Logger logger = LogManager.getLogger(Threads.class);
+	
+	private static volatile Mode mode = Mode.PLATFORM;
+	
+	private static ThreadFactory virtualThreadFactory = null;
+	private static ExecutorService sharedExecutor = null;
+	
+	/**
+	 * Sets the execution mode. Should be called once, before any component is started.
+	 */
+	public static synchronized void configure(String name) {
+		Mode requested = Mode.valueOf(name.trim().toUpperCase());
+		if(requested == Mode.VIRTUAL) {
+			virtualThreadFactory = createVirtualThreadFactory();
+			if(virtualThreadFactory == null) {
+				logger.error("Virtual threads are not supported by this runtime (" + System.getProperty("java.version")
+						+ "). Use platform threads.");
+				requested = Mode.PLATFORM;
+			}
+		}
+		else if(requested == Mode.SHARED && sharedExecutor == null) {
+			sharedExecutor = Executors.newCachedThreadPool(namedFactory("Shared"));
+		}
+		
+		mode = requested;
+		logger.info("Execution mode: " + mode);
+	}
+	
+	public static Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Equivalent of Thread.ofVirtual().factory(), or null before Java 21.
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Virtual_", 0L);
+			
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch(Exception e) {
+			return null;
+		}
+	}
+	
+	private static ThreadFactory namedFactory(final String prefix) {
+		return new ThreadFactory() {
+			private AtomicInteger id = new AtomicInteger(0);
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, prefix + "_" + id.getAndIncrement());
+			}
+		};
+	}
+	
+	/**
+	 * Runs a long running task on its own thread, or on the shared pool.
+	 */
+	public static void execute(final Runnable task, final String name) {
+		switch(mode) {
+			case VIRTUAL:
+				Thread thread = virtualThreadFactory.newThread(task);
+				thread.setName(name);
+				thread.start();
+				break;
+			
+			case SHARED:
+				sharedExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						Thread current = Thread.currentThread();
+						String poolName = current.getName();
+						current.setName(name);
+						try {
+							task.run();
+						}
+						finally {
+							current.setName(poolName);
+						}
+					}
+				});
+				break;
+			
+			default:
+				new Thread(task, name).start();
+		}
+	}
+	
+	/**
+	 * @param threads the size of the pool in PLATFORM mode. Ignored in the other modes.
+	 * @param name prefix of the thread names
+	 */
+	public static ExecutorService newExecutor(int threads, String name) {
+		switch(mode) {
+			case VIRTUAL:
+				// virtual threads are cheap, the pool grows with the tasks
+				return Executors.newCachedThreadPool(virtualThreadFactory);
+			
+			case SHARED:
+				return new SharedExecutorView(sharedExecutor);
+			
+			default:
+				return Executors.newFixedThreadPool(threads, namedFactory(name));
+		}
+	}
+	
+	/**
+	 * An executor that submits to the shared pool, while shutting down only its own tasks.
+	 */
+	private static class SharedExecutorView extends AbstractExecutorService {
+		
+		private ExecutorService shared;
+		
+		private Set<Thread> running = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+		private AtomicInteger active = new AtomicInteger(0);
+		private volatile boolean shutdown = false;
+		
+		public SharedExecutorView(ExecutorService shared) {
+			this.shared = shared;
+		}
+		
+		@Override
+		public void execute(final Runnable command) {
+			if(shutdown) {
+				throw new RejectedExecutionException("Executor is shut down");
+			}
+			
+			active.incrementAndGet();
+			shared.execute(new Runnable() {
+				@Override
+				public void run() {
+					running.add(Thread.currentThread());
+					try {
+						command.run();
+					}
+					finally {
+						running.remove(Thread.currentThread());
+						Thread.interrupted();
+						synchronized(SharedExecutorView.this) {
+							active.decrementAndGet();
+							SharedExecutorView.this.notifyAll();
+						}
+					}
+				}
+			});
+		}
+		
+		@Override
+		public void shutdown() {
+			shutdown = true;
+		}
+		
+		@Override
+		public List<Runnable> shutdownNow() {
+			shutdown = true;
+			for(Thread thread : running) {
+				thread.interrupt();
+			}
+			return new ArrayList<Runnable>();
+		}
+		
+		@Override
+		public boolean isShutdown() {
+			return shutdown;
+		}
+		
+		@Override
+		public boolean isTerminated() {
+			return shutdown && active.get() == 0;
+		}
+		
+		@Override
+		public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+			while(!isTerminated()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package gr.iti.mklab.sfc.storages.codecs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.gson.annotations.Expose;
+
+import gr.iti.mklab.framework.common.domain.JSONable;
+import gr.iti.mklab.sfc.storages.codecs.BinaryItemCodec.Compression;
+
+public class BinaryItemCodecTest {
+	
+	public static class Media extends JSONable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Expose String url;
+		@Expose int width;
+		@Expose Double ratio;
+	}
+	
+	public static class Document extends JSONable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		@Expose String title;
+		@Expose long publicationTime;
+		@Expose boolean original;
+		@Expose double score;
+		@Expose Long shares;
+		@Expose String missing;
+		@Expose String[] tags;
+		@Expose List<Media> media;
+		@Expose Map<String, Integer> counts;
+		
+		// not part of the JSON representation
+		String internal;
+	}
+	
+	private static Document document() {
+		Document document = new Document();
+		document.title = "Σεισμός 5,2 Ρίχτερ στην Κρήτη, αισθητός και στην Αθήνα \"quoted\"";
+		document.publicationTime = -1444644000000L;
+		document.original = true;
+		document.score = 0.1;
+		document.shares = Long.MAX_VALUE;
+		document.tags = new String[] {"earthquake", "", "earthquake"};
+		document.media = new ArrayList<Media>();
+		for(int i = 0; i < 3; i++) {
+			Media media = new Media();
+			media.url = "http://pbs.twimg.com/media/" + i + ".jpg";
+			media.width = Integer.MIN_VALUE + i;
+			media.ratio = (i == 1) ? null : 1.5 * i;
+			document.media.add(media);
+		}
+		document.counts = new LinkedHashMap<String, Integer>();
+		document.counts.put("likes", 12);
+		document.counts.put("url", -3);
+		document.internal = "internal";
+		return document;
+	}
+	
+	private static void assertRoundTrip(Compression compression) throws IOException {
+		BinaryItemCodec codec = new BinaryItemCodec(compression);
+		Document document = document();
+		
+		Document decoded = codec.decode(codec.encode(document), Document.class);
+		
+		assertEquals(document.title, decoded.title);
+		assertEquals(document.publicationTime, decoded.publicationTime);
+		assertEquals(document.original, decoded.original);
+		assertEquals(document.score, decoded.score, 0.0);
+		assertEquals(document.shares, decoded.shares);
+		assertNull(decoded.missing);
+		assertArrayEquals(document.tags, decoded.tags);
+		assertEquals(document.counts, decoded.counts);
+		assertNull(decoded.internal);
+		
+		assertEquals(document.media.size(), decoded.media.size());
+		for(int i = 0; i < document.media.size(); i++) {
+			assertEquals(document.media.get(i).url, decoded.media.get(i).url);
+			assertEquals(document.media.get(i).width, decoded.media.get(i).width);
+			assertEquals(document.media.get(i).ratio, decoded.media.get(i).ratio);
+		}
+	}
+	
+	@Test
+	public void roundTrip() throws IOException {
+		assertRoundTrip(Compression.NONE);
+	}
+	
+	@Test
+	public void roundTripDeflate() throws IOException {
+		assertRoundTrip(Compression.DEFLATE);
+	}
+	
+	@Test
+	public void roundTripLz4() throws IOException {
+		assertRoundTrip(Compression.LZ4);
+	}
+	
+	@Test
+	public void decodesAnyCompression() throws IOException {
+		byte[] data = new BinaryItemCodec(Compression.LZ4).encode(document());
+		Document decoded = new BinaryItemCodec(Compression.NONE).decode(data, Document.class);
+		assertEquals(document().title, decoded.title);
+	}
+	
+	@Test
+	public void rejectsCorruptedMessages() {
+		BinaryItemCodec codec = new BinaryItemCodec(Compression.NONE);
+		try {
+			byte[] data = codec.encode(document());
+			byte[] truncated = new byte[data.length / 2];
+			System.arraycopy(data, 0, truncated, 0, truncated.length);
+			codec.decode(truncated, Document.class);
+			fail("Truncated message decoded");
+		}
+		catch(IOException e) {
+			// expected
+		}
+	}
+
+}